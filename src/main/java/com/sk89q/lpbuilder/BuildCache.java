@@ -0,0 +1,259 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.lpbuilder;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.sk89q.mclauncher.util.LauncherUtils;
+
+/**
+ * Remembers the versions and hashes of the files of the last build, so that
+ * an incremental build can skip hashing, copying and zipping the files that
+ * did not change since.
+ * 
+ * <p>A file is taken to be unchanged if its size and modification time are
+ * the same. Files that were modified just before they were looked at are
+ * not remembered, as a later change within the resolution of the
+ * modification time could not be told apart.</p>
+ */
+class BuildCache {
+    
+    private static final String HEADER = "buildcache 1";
+    private static final long SETTLE_TIME = 3000;
+    
+    private final File file;
+    private final Map<String, Entry> previous = new HashMap<String, Entry>();
+    private final Map<String, Entry> current = new TreeMap<String, Entry>();
+    private long started;
+    
+    /**
+     * Create a new cache.
+     * 
+     * @param file the file that the cache is kept in
+     */
+    BuildCache(File file) {
+        this.file = file;
+    }
+    
+    /**
+     * Read the cache of the last build, if there is one.
+     * 
+     * @throws IOException on I/O error
+     */
+    void load() throws IOException {
+        previous.clear();
+        current.clear();
+        started = System.currentTimeMillis();
+        
+        if (!file.exists()) {
+            return;
+        }
+        
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), "UTF-8"));
+            if (!HEADER.equals(reader.readLine())) {
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length == 6) {
+                    try {
+                        previous.put(parts[0], new Entry(parts[1], parts[2], 
+                                Long.parseLong(parts[3]), parts[4], parts[5]));
+                    } catch (NumberFormatException e) {
+                    }
+                }
+            }
+        } finally {
+            LauncherUtils.close(reader);
+        }
+    }
+    
+    /**
+     * Get what was remembered of a file in the last build.
+     * 
+     * <p>This may be called from several threads at once.</p>
+     * 
+     * @param key the relative path of the file
+     * @param stamp the stamp of the file now, from {@link #getStamp(File)}
+     * @return the entry, or null if the file changed or is not known
+     */
+    Entry get(String key, String stamp) {
+        Entry entry = previous.get(key);
+        if (entry != null && entry.getStamp().equals(stamp)) {
+            return entry;
+        }
+        return null;
+    }
+    
+    /**
+     * Remember a file for the next build. Files that are not remembered again
+     * in this build are forgotten.
+     * 
+     * @param key the relative path of the file
+     * @param lastModified the newest modification time of what the entry was
+     *                     computed from
+     * @param entry the entry
+     */
+    void put(String key, long lastModified, Entry entry) {
+        if (lastModified < started - SETTLE_TIME) {
+            current.put(key, entry);
+        }
+    }
+    
+    /**
+     * Write the cache for the next build.
+     * 
+     * @throws IOException on I/O error
+     */
+    void save() throws IOException {
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        File temp = new File(file.getPath() + ".tmp");
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(temp), "UTF-8"));
+            writer.write(HEADER);
+            writer.newLine();
+            for (Map.Entry<String, Entry> entry : current.entrySet()) {
+                Entry value = entry.getValue();
+                writer.write(entry.getKey() + "\t" + value.getStamp() + "\t" + 
+                        value.getOutput() + "\t" + value.getSize() + "\t" + 
+                        value.getVersion() + "\t" + value.getHash());
+                writer.newLine();
+            }
+        } finally {
+            LauncherUtils.close(writer);
+        }
+        
+        file.delete();
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not write " + file);
+        }
+    }
+    
+    /**
+     * Get the stamp of a file, which changes whenever the file does.
+     * 
+     * @param file the file
+     * @return the stamp
+     */
+    static String getStamp(File file) {
+        return file.length() + ":" + file.lastModified();
+    }
+    
+    /**
+     * Get the stamp of a group of files, which changes whenever one of the
+     * files does or when files are added, removed or renamed.
+     * 
+     * @param files the files
+     * @return the stamp
+     */
+    static String getStamp(List<RelativizedFile> files) {
+        StringBuilder builder = new StringBuilder();
+        for (RelativizedFile file : files) {
+            builder.append(file.getPath()).append('\0');
+            builder.append(getStamp(file.getFile())).append('\0');
+        }
+        return files.size() + ":" + LauncherUtils.getDigestAsHex(builder.toString(), "MD5");
+    }
+    
+    /**
+     * What is remembered of a file.
+     */
+    static class Entry {
+        private final String stamp;
+        private final String output;
+        private final long size;
+        private final String version;
+        private final String hash;
+        
+        Entry(String stamp, String output, long size, String version, String hash) {
+            this.stamp = stamp;
+            this.output = output;
+            this.size = size;
+            this.version = version;
+            this.hash = hash;
+        }
+
+        /**
+         * Get the stamp of the file when it was remembered.
+         * 
+         * @return the stamp
+         */
+        public String getStamp() {
+            return stamp;
+        }
+
+        /**
+         * Get the relative path that the file was written to in the output
+         * directory.
+         * 
+         * @return the relative path
+         */
+        public String getOutput() {
+            return output;
+        }
+
+        /**
+         * Get the size of the file that was written.
+         * 
+         * @return the size
+         */
+        public long getSize() {
+            return size;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+        
+        /**
+         * Returns whether the file that was written is still in place.
+         * 
+         * @param outputDir the output directory
+         * @param output the relative path that the file would be written to
+         * @return true if it is still in place
+         */
+        public boolean isWritten(File outputDir, String output) {
+            File written = new File(outputDir, output);
+            return this.output.equals(output) && written.length() == size;
+        }
+    }
+
+}
@@ -0,0 +1,240 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.lpbuilder;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.sk89q.mclauncher.util.LauncherUtils;
+
+/**
+ * Keeps copies of the files of earlier builds, so that patches from those
+ * versions to the current one can be created.
+ * 
+ * <p>Copies are kept by hash, so a file that did not change between builds
+ * is only kept once.</p>
+ */
+class BuildHistory {
+    
+    private final File dir;
+    private final File indexFile;
+    private final Map<String, List<Version>> versions = new LinkedHashMap<String, List<Version>>();
+
+    BuildHistory(File dir) {
+        this.dir = dir;
+        this.indexFile = new File(dir, "index.dat");
+    }
+    
+    /**
+     * Read the history, if there is any.
+     * 
+     * @throws IOException on I/O error
+     */
+    void load() throws IOException {
+        versions.clear();
+        
+        if (!indexFile.exists()) {
+            return;
+        }
+        
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(indexFile), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length == 3) {
+                    getList(parts[0]).add(new Version(parts[1], parts[2]));
+                }
+            }
+        } finally {
+            LauncherUtils.close(reader);
+        }
+    }
+    
+    /**
+     * Get the earlier versions of a file.
+     * 
+     * @param path the relative path of the file
+     * @return the versions, most recent first
+     */
+    List<Version> getVersions(String path) {
+        List<Version> list = versions.get(path);
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<Version>(list);
+    }
+    
+    /**
+     * Get the copy of a version.
+     * 
+     * @param version the version
+     * @return the file, which may not exist
+     */
+    File getFile(Version version) {
+        return getFile(version.getHash());
+    }
+    
+    private File getFile(String hash) {
+        return new File(dir, "objects/" + hash.toLowerCase());
+    }
+    
+    /**
+     * Keep a copy of a file, unless one with the same hash is already kept.
+     * 
+     * <p>Unlike the other methods, this may be called from several threads
+     * at once.</p>
+     * 
+     * @param hash the hash of the file
+     * @param file the file
+     * @throws IOException on I/O error
+     */
+    void keep(String hash, File file) throws IOException {
+        File copy = getFile(hash);
+        if (copy.exists()) {
+            return;
+        }
+        
+        copy.getParentFile().mkdirs();
+        File temp = File.createTempFile(copy.getName(), ".tmp", copy.getParentFile());
+        LauncherUtils.copyFile(file, temp);
+        if (!temp.renameTo(copy)) {
+            temp.delete();
+            if (!copy.exists()) {
+                throw new IOException("Could not keep a copy of " + file);
+            }
+        }
+    }
+    
+    /**
+     * Record the current version of a file, keeping a copy of it.
+     * 
+     * @param path the relative path of the file
+     * @param version the version
+     * @param hash the hash of the file
+     * @param file the file
+     * @throws IOException on I/O error
+     */
+    void add(String path, String version, String hash, File file) throws IOException {
+        List<Version> list = getList(path);
+        Version entry = new Version(version, hash);
+        if (!list.isEmpty() && list.get(0).getHash().equalsIgnoreCase(hash)) {
+            return;
+        }
+        
+        keep(hash, file);
+        list.add(0, entry);
+    }
+    
+    /**
+     * Forget all but the given number of versions of every file, and delete
+     * the copies that are no longer needed.
+     * 
+     * @param depth the number of versions to keep
+     */
+    void trim(int depth) {
+        Set<String> kept = new HashSet<String>();
+        for (List<Version> list : versions.values()) {
+            while (list.size() > depth) {
+                list.remove(list.size() - 1);
+            }
+            for (Version version : list) {
+                kept.add(getFile(version).getName());
+            }
+        }
+        
+        File[] copies = new File(dir, "objects").listFiles();
+        if (copies != null) {
+            for (File copy : copies) {
+                if (!kept.contains(copy.getName())) {
+                    copy.delete();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Write the history.
+     * 
+     * @throws IOException on I/O error
+     */
+    void save() throws IOException {
+        dir.mkdirs();
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(indexFile), "UTF-8"));
+            for (Map.Entry<String, List<Version>> entry : versions.entrySet()) {
+                for (Version version : entry.getValue()) {
+                    writer.write(entry.getKey() + "\t" + version.getVersion() + 
+                            "\t" + version.getHash());
+                    writer.newLine();
+                }
+            }
+        } finally {
+            LauncherUtils.close(writer);
+        }
+    }
+    
+    private List<Version> getList(String path) {
+        List<Version> list = versions.get(path);
+        if (list == null) {
+            list = new ArrayList<Version>();
+            versions.put(path, list);
+        }
+        return list;
+    }
+    
+    /**
+     * One version of a file.
+     */
+    static class Version {
+        private final String version;
+        private final String hash;
+        
+        Version(String version, String hash) {
+            this.version = version;
+            this.hash = hash;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+    }
+
+}
@@ -79,9 +79,19 @@ public class FileSignatureBuilder {
         }
     }
 
+    /**
+     * Returns whether a file is hashed by the contents of its entries.
+     * 
+     * @param file the file
+     * @return true for a jar or zip file
+     */
+    public boolean isZip(File file) {
+        return ZIP_NAMES.matcher(file.getName()).matches();
+    }
+
     public byte[] smartFromFile(File file) throws IOException {
         try {
-            if (ZIP_NAMES.matcher(file.getName()).matches()) {
+            if (isZip(file)) {
                 return fromZipContents(file);
             }
         } catch (IOException e) {
@@ -91,12 +101,24 @@ public class FileSignatureBuilder {
     }
 
     public byte[] fromFile(File file) throws IOException {
+        return fromFile(file, createDigest());
+    }
+
+    /**
+     * Hash a file with the given digest.
+     * 
+     * @param file the file
+     * @param digest the digest to use
+     * @return the hash
+     * @throws IOException on I/O error
+     */
+    public byte[] fromFile(File file, MessageDigest digest) throws IOException {
         InputStream fis = null;
         BufferedInputStream bis = null;
         try {
             fis = new FileInputStream(file);
             bis = new BufferedInputStream(fis);
-            return fromInputStream(bis);
+            return fromInputStream(bis, digest);
         } finally {
             LauncherUtils.close(bis);
             LauncherUtils.close(fis);
@@ -104,7 +126,18 @@ public class FileSignatureBuilder {
     }
     
     public byte[] fromInputStream(InputStream is) throws IOException {
-        MessageDigest digest = createDigest();
+        return fromInputStream(is, createDigest());
+    }
+    
+    /**
+     * Hash a stream with the given digest.
+     * 
+     * @param is the stream
+     * @param digest the digest to use
+     * @return the hash
+     * @throws IOException on I/O error
+     */
+    public byte[] fromInputStream(InputStream is, MessageDigest digest) throws IOException {
         byte[] buf = new byte[1024 * 2];
         int len;
         while ((len = is.read(buf, 0, buf.length)) != -1) {
@@ -0,0 +1,444 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.lpbuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import com.sk89q.mclauncher.util.LauncherUtils;
+
+/**
+ * Writes a zip file whose entries are compressed on several threads.
+ * 
+ * <p>Each file is read once, to hash it and deflate it into a buffer, which
+ * is kept in memory if it is small and in a temporary file otherwise. The
+ * buffers are then written out with their headers in the order that the
+ * files were given in, so the zip file is the same however many threads
+ * are used. Only a limited number of files are compressed ahead of the one
+ * that is being written out, to bound the space that buffers take.</p>
+ * 
+ * <p>Zip64 is not written, so the caller must check with
+ * {@link #canWrite(List)} first.</p>
+ */
+class ParallelZipWriter {
+    
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_HEADER = 0x06054b50;
+    private static final int VERSION = 20;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int METHOD_DEFLATED = 8;
+    private static final long MAX_SIZE = 0xF0000000L;
+    private static final int MAX_ENTRIES = 0xFFFF;
+    private static final int MEMORY_LIMIT = 1024 * 1024;
+    
+    private final ExecutorService executor;
+    private final int window;
+    private final FileSignatureBuilder builder;
+    
+    /**
+     * Create a new writer.
+     * 
+     * @param executor the executor to compress files with
+     * @param window the number of files to compress ahead
+     * @param builder the builder to hash files with
+     */
+    ParallelZipWriter(ExecutorService executor, int window, FileSignatureBuilder builder) {
+        this.executor = executor;
+        this.window = Math.max(1, window);
+        this.builder = builder;
+    }
+    
+    /**
+     * Returns whether the given files can be written without Zip64.
+     * 
+     * @param files the files
+     * @return true if they can be written
+     */
+    static boolean canWrite(List<RelativizedFile> files) {
+        if (files.size() >= MAX_ENTRIES) {
+            return false;
+        }
+        long total = 0;
+        for (RelativizedFile file : files) {
+            // Deflating can make a file slightly larger
+            total += file.getFile().length() + file.getPath().length() * 3 + 1024;
+        }
+        return total < MAX_SIZE;
+    }
+    
+    /**
+     * Write a zip file.
+     * 
+     * @param files the files to put into the zip file, in order
+     * @param target the zip file
+     * @return the hashes of the files, in the same order
+     * @throws IOException on I/O error
+     * @throws InterruptedException on interruption
+     */
+    List<byte[]> write(List<RelativizedFile> files, File target) 
+            throws IOException, InterruptedException {
+        List<byte[]> digests = new ArrayList<byte[]>(files.size());
+        List<CompressedFile> written = new ArrayList<CompressedFile>(files.size());
+        LinkedList<Future<CompressedFile>> pending = new LinkedList<Future<CompressedFile>>();
+        int next = 0;
+        
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(target), 1024 * 64);
+            long offset = 0;
+            
+            while (next < files.size() && pending.size() < window) {
+                pending.add(submit(files.get(next++), target));
+            }
+            
+            while (!pending.isEmpty()) {
+                CompressedFile compressed = get(pending.removeFirst());
+                if (next < files.size()) {
+                    pending.add(submit(files.get(next++), target));
+                }
+                
+                try {
+                    compressed.offset = offset;
+                    byte[] header = compressed.getLocalHeader();
+                    out.write(header);
+                    compressed.transferTo(out);
+                    offset += header.length + compressed.compressedSize;
+                } finally {
+                    compressed.discard();
+                }
+                
+                digests.add(compressed.digest);
+                written.add(compressed);
+            }
+            
+            long centralOffset = offset;
+            for (CompressedFile compressed : written) {
+                byte[] header = compressed.getCentralHeader();
+                out.write(header);
+                offset += header.length;
+            }
+            
+            if (offset > 0xFFFFFFFFL) {
+                throw new IOException("Too much to put into " + target);
+            }
+            
+            ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+            end.putInt(END_HEADER);
+            end.putShort((short) 0);
+            end.putShort((short) 0);
+            end.putShort((short) written.size());
+            end.putShort((short) written.size());
+            end.putInt((int) (offset - centralOffset));
+            end.putInt((int) centralOffset);
+            end.putShort((short) 0);
+            out.write(end.array());
+            out.close();
+        } finally {
+            LauncherUtils.close(out);
+            discardAll(pending);
+        }
+        
+        return digests;
+    }
+    
+    private Future<CompressedFile> submit(final RelativizedFile file, final File target) {
+        return executor.submit(new Callable<CompressedFile>() {
+            @Override
+            public CompressedFile call() throws Exception {
+                return compress(file, target);
+            }
+        });
+    }
+    
+    private static CompressedFile get(Future<CompressedFile> future) 
+            throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        }
+    }
+    
+    /**
+     * Throw away the buffers of files that were compressed but will not be
+     * written, after an error.
+     * 
+     * @param pending the files
+     */
+    private static void discardAll(List<Future<CompressedFile>> pending) {
+        boolean interrupted = Thread.interrupted();
+        for (Future<CompressedFile> future : pending) {
+            if (interrupted) {
+                future.cancel(true);
+            }
+            try {
+                future.get().discard();
+            } catch (Exception e) {
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Hash and deflate a file.
+     * 
+     * @param file the file
+     * @param target the zip file, next to which large buffers are kept
+     * @return the compressed file
+     * @throws IOException on I/O error
+     */
+    private CompressedFile compress(RelativizedFile file, File target) throws IOException {
+        CompressedFile compressed = new CompressedFile(file.getPath(), 
+                toDosTime(file.getFile().lastModified()));
+        MessageDigest digest = builder.createDigest();
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        SpillingOutputStream buffer = new SpillingOutputStream(target);
+        
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file.getFile()));
+            DeflaterOutputStream out = new DeflaterOutputStream(buffer, deflater, 1024 * 16);
+            byte[] buf = new byte[1024 * 16];
+            long size = 0;
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                digest.update(buf, 0, len);
+                crc.update(buf, 0, len);
+                out.write(buf, 0, len);
+                size += len;
+            }
+            out.finish();
+            buffer.close();
+            
+            compressed.size = size;
+            compressed.crc = crc.getValue();
+            compressed.digest = digest.digest();
+            compressed.compressedSize = buffer.getSize();
+            compressed.data = buffer.getData();
+            compressed.spillFile = buffer.getSpillFile();
+            return compressed;
+        } catch (IOException e) {
+            LauncherUtils.close(buffer);
+            if (buffer.getSpillFile() != null) {
+                buffer.getSpillFile().delete();
+            }
+            throw e;
+        } finally {
+            LauncherUtils.close(in);
+            deflater.end();
+        }
+    }
+    
+    /**
+     * Convert a time to the MS-DOS date and time that zip files use.
+     * 
+     * @param time the time, in milliseconds
+     * @return the date and time
+     */
+    private static long toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21 | 
+                calendar.get(Calendar.DAY_OF_MONTH) << 16 | 
+                calendar.get(Calendar.HOUR_OF_DAY) << 11 | 
+                calendar.get(Calendar.MINUTE) << 5 | 
+                calendar.get(Calendar.SECOND) >> 1;
+    }
+    
+    /**
+     * A file that was hashed and deflated, but may not have been written
+     * out yet.
+     */
+    private static class CompressedFile {
+        private final byte[] name;
+        private final long dosTime;
+        private long size;
+        private long compressedSize;
+        private long crc;
+        private byte[] digest;
+        private byte[] data;
+        private File spillFile;
+        private long offset;
+        
+        CompressedFile(String name, long dosTime) throws IOException {
+            this.name = name.getBytes("UTF-8");
+            this.dosTime = dosTime;
+        }
+        
+        byte[] getLocalHeader() {
+            ByteBuffer header = ByteBuffer.allocate(30 + name.length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(LOCAL_HEADER);
+            header.putShort((short) VERSION);
+            header.putShort((short) FLAG_UTF8);
+            header.putShort((short) METHOD_DEFLATED);
+            header.putInt((int) dosTime);
+            header.putInt((int) crc);
+            header.putInt((int) compressedSize);
+            header.putInt((int) size);
+            header.putShort((short) name.length);
+            header.putShort((short) 0);
+            header.put(name);
+            return header.array();
+        }
+        
+        byte[] getCentralHeader() {
+            ByteBuffer header = ByteBuffer.allocate(46 + name.length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(CENTRAL_HEADER);
+            header.putShort((short) VERSION);
+            header.putShort((short) VERSION);
+            header.putShort((short) FLAG_UTF8);
+            header.putShort((short) METHOD_DEFLATED);
+            header.putInt((int) dosTime);
+            header.putInt((int) crc);
+            header.putInt((int) compressedSize);
+            header.putInt((int) size);
+            header.putShort((short) name.length);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putInt(0);
+            header.putInt((int) offset);
+            header.put(name);
+            return header.array();
+        }
+        
+        void transferTo(OutputStream out) throws IOException {
+            if (data != null) {
+                out.write(data);
+                return;
+            }
+            
+            InputStream in = null;
+            try {
+                in = new FileInputStream(spillFile);
+                byte[] buf = new byte[1024 * 64];
+                int len;
+                while ((len = in.read(buf)) != -1) {
+                    out.write(buf, 0, len);
+                }
+            } finally {
+                LauncherUtils.close(in);
+            }
+        }
+        
+        void discard() {
+            data = null;
+            if (spillFile != null) {
+                spillFile.delete();
+            }
+        }
+    }
+    
+    /**
+     * Keeps what is written in memory, until it grows too large, at which
+     * point it is moved to a temporary file.
+     */
+    private static class SpillingOutputStream extends OutputStream {
+        private final File target;
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private OutputStream spill;
+        private File spillFile;
+        private long size;
+        
+        SpillingOutputStream(File target) {
+            this.target = target;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (spill == null && memory.size() + len > MEMORY_LIMIT) {
+                spillFile = File.createTempFile(target.getName(), ".part", 
+                        target.getAbsoluteFile().getParentFile());
+                spill = new BufferedOutputStream(new FileOutputStream(spillFile), 1024 * 64);
+                memory.writeTo(spill);
+                memory = null;
+            }
+            if (spill != null) {
+                spill.write(b, off, len);
+            } else {
+                memory.write(b, off, len);
+            }
+            size += len;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            if (spill != null) {
+                spill.close();
+            }
+        }
+        
+        long getSize() {
+            return size;
+        }
+        
+        byte[] getData() {
+            return memory != null ? memory.toByteArray() : null;
+        }
+        
+        File getSpillFile() {
+            return spillFile;
+        }
+    }
+
+}
@@ -26,15 +26,30 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipFile;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
@@ -43,15 +58,22 @@ import lzma.sdk.lzma.Encoder;
 import lzma.streams.LzmaOutputStream;
 
 import com.sk89q.mclauncher.config.Configuration;
+import com.sk89q.mclauncher.model.EntryDiff;
 import com.sk89q.mclauncher.model.FileGroup;
+import com.sk89q.mclauncher.model.FileGroup.VerificationMethod;
 import com.sk89q.mclauncher.model.PackageFile;
 import com.sk89q.mclauncher.model.PackageManifest;
+import com.sk89q.mclauncher.model.Patch;
 import com.sk89q.mclauncher.model.SingleFile;
 import com.sk89q.mclauncher.model.UpdateManifest;
+import com.sk89q.mclauncher.update.BinaryManifest;
 import com.sk89q.mclauncher.util.BasicArgsParser;
 import com.sk89q.mclauncher.util.BasicArgsParser.ArgsContext;
+import com.sk89q.mclauncher.util.BinaryDelta;
+import com.sk89q.mclauncher.util.JarEntryList;
 import com.sk89q.mclauncher.util.LauncherUtils;
 import com.sk89q.mclauncher.util.SimpleLogFormatter;
+import com.sk89q.mclauncher.util.XmlUtils;
 
 /**
  * Builds an update package for SKMCLauncher.
@@ -60,6 +82,8 @@ public class UpdateBuilder implements Runnable {
 
     private static final Logger logger = Logger.getLogger(UpdateBuilder.class
             .getCanonicalName());
+    private static final VerificationMethod VERIFICATION = VerificationMethod.SHA256;
+    private static final String ARCHIVE_KEY_PREFIX = "//archive/";
 
     private final File updateDir;
     private final File outputDir;
@@ -72,6 +96,17 @@ public class UpdateBuilder implements Runnable {
     private UpdateBuilderConfig config = new UpdateBuilderConfig();
     private String updateFilename = "update.xml";
     private String packageFilename = "package.xml";
+    private String binaryPackageFilename;
+    private File historyDir;
+    private int patchDepth = 3;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean incremental = false;
+    private File cacheFile;
+    private BuildCache cache;
+    private int fileCount;
+    private int reusedFiles;
+    private int reusedArchives;
+    private BuildHistory history;
 
     /**
      * Create a new builder with the given source directory and output directory.
@@ -135,6 +170,134 @@ public class UpdateBuilder implements Runnable {
         this.packageFilename = packageFilename;
     }
 
+    /**
+     * Get the filename of the binary package manifest that is written next
+     * to the XML one.
+     * 
+     * @return the filename, or null if none is written
+     */
+    public String getBinaryPackageFilename() {
+        return binaryPackageFilename;
+    }
+
+    /**
+     * Set the filename of the binary package manifest that is written next
+     * to the XML one. Launchers that can read it will download it instead
+     * of the XML one.
+     * 
+     * @param binaryPackageFilename the filename, or null to write none
+     */
+    public void setBinaryPackageFilename(String binaryPackageFilename) {
+        this.binaryPackageFilename = binaryPackageFilename;
+    }
+
+    /**
+     * Get the directory that copies of earlier builds are kept in.
+     * 
+     * @return the directory
+     */
+    public File getHistoryDir() {
+        if (historyDir == null) {
+            File absolute = outputDir.getAbsoluteFile();
+            return new File(absolute.getParentFile(), absolute.getName() + ".history");
+        }
+        return historyDir;
+    }
+
+    /**
+     * Set the directory that copies of earlier builds are kept in. It should
+     * not be inside the output directory, as it does not need to be uploaded.
+     * 
+     * @param historyDir the directory, or null to put it next to the output
+     */
+    public void setHistoryDir(File historyDir) {
+        this.historyDir = historyDir;
+    }
+
+    /**
+     * Get the number of earlier versions of each file that patches are
+     * created from.
+     * 
+     * @return the number of versions
+     */
+    public int getPatchDepth() {
+        return patchDepth;
+    }
+
+    /**
+     * Set the number of earlier versions of each file that patches are
+     * created from.
+     * 
+     * @param patchDepth the number of versions, or 0 to create no patches
+     */
+    public void setPatchDepth(int patchDepth) {
+        this.patchDepth = Math.max(0, patchDepth);
+    }
+
+    /**
+     * Returns whether files that did not change since the last build are
+     * reused rather than hashed, copied and zipped again.
+     * 
+     * @return true if builds are incremental
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * Set whether files that did not change since the last build are reused
+     * rather than hashed, copied and zipped again.
+     * 
+     * @param incremental true to make builds incremental
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * Get the file that what was learned of files in the last build is kept
+     * in, for incremental builds.
+     * 
+     * @return the file
+     */
+    public File getCacheFile() {
+        if (cacheFile == null) {
+            File absolute = outputDir.getAbsoluteFile();
+            return new File(absolute.getParentFile(), absolute.getName() + ".buildcache");
+        }
+        return cacheFile;
+    }
+
+    /**
+     * Set the file that what was learned of files in the last build is kept
+     * in, for incremental builds. Like the history, it should not be inside
+     * the output directory, so that it is neither uploaded nor cleaned.
+     * 
+     * @param cacheFile the file, or null to put it next to the output
+     */
+    public void setCacheFile(File cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * Get the number of threads that files are processed with.
+     * 
+     * @return the number of threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Set the number of threads that files are processed with. The package
+     * is the same however many threads are used.
+     * 
+     * @param threads the number of threads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
     public UpdateBuilderConfig getConfiguration() {
         return config;
     }
@@ -168,13 +331,12 @@ public class UpdateBuilder implements Runnable {
      * @throws JAXBException parsing error
      */
     public void loadConfiguration(File file) throws FileNotFoundException, JAXBException {
-        JAXBContext context = JAXBContext.newInstance(UpdateBuilderConfig.class);
-        Unmarshaller um = context.createUnmarshaller();
+        Unmarshaller um = XmlUtils.getContext(UpdateBuilderConfig.class).createUnmarshaller();
         FileReader reader = null;
         UpdateBuilderConfig config;
         try {
             reader = new FileReader(file);
-            config = (UpdateBuilderConfig) um.unmarshal(new FileReader(file));;
+            config = (UpdateBuilderConfig) um.unmarshal(reader);
         } finally {
             LauncherUtils.close(reader);
         }
@@ -190,13 +352,51 @@ public class UpdateBuilder implements Runnable {
     /**
      * Collect all the files needed for this update.
      * 
+     * <p>The source directory is walked first, and then the files are hashed,
+     * copied and diffed against their earlier versions on several threads.
+     * The results are added to the package in the order of the walk, so the
+     * package is the same however many threads are used.</p>
+     * 
      * <p>Call this once.</p>
      * 
      * @throws IOException on I/O error
      * @throws InterruptedException on interruption
      */
     private void collectFiles() throws IOException, InterruptedException {
-        collectFiles(updateDir, "", updateDir, null);
+        List<FileGroup> groups = new ArrayList<FileGroup>();
+        List<CollectedFile> files = new ArrayList<CollectedFile>();
+        collectFiles(updateDir, "", updateDir, null, groups, files);
+        
+        logger.info(String.format("Processing %d files on %d threads...", 
+                files.size(), threads));
+        processAll(files);
+        
+        for (CollectedFile collected : files) {
+            SingleFile singleFile = collected.singleFile;
+            collected.group.getFiles().add(singleFile);
+            collected.group.getPatches().addAll(collected.patches);
+            collected.group.getEntryDiffs().addAll(collected.entryDiffs);
+            if (history != null) {
+                history.add(collected.path, singleFile.getVersion(), 
+                        singleFile.getHash(), collected.file);
+            }
+            if (cache != null) {
+                cache.put(collected.sourcePath, collected.lastModified, 
+                        new BuildCache.Entry(collected.stamp, collected.path, 
+                                singleFile.getSize(), singleFile.getVersion(), 
+                                singleFile.getHash()));
+            }
+            if (collected.reused) {
+                reusedFiles++;
+            }
+        }
+        fileCount = files.size();
+        
+        for (FileGroup group : groups) {
+            if (group.getFiles().size() > 0) {
+                packageManifest.getFileGroups().add(group);
+            }
+        }
     }
 
     /**
@@ -206,11 +406,14 @@ public class UpdateBuilder implements Runnable {
      * @param relativeDir the relative directory
      * @param dir the actual directory with files
      * @param group file group to use, or null to create one
+     * @param groups the list to add created groups to
+     * @param files the list to add files that still have to be processed to
      * @throws IOException on I/O error
      * @throws InterruptedException on interruption
      */
     private void collectFiles(
-            File baseDir, String relativeDir, File dir, FileGroup group) 
+            File baseDir, String relativeDir, File dir, FileGroup group,
+            List<FileGroup> groups, List<CollectedFile> files) 
             throws IOException, InterruptedException {
         logger.info("Collecting files in '" + dir.getAbsolutePath() + "'");
         
@@ -224,45 +427,356 @@ public class UpdateBuilder implements Runnable {
             }
             group.setDest(withSlash);
             group.setSource(withSlash);
+            group.setVerify(VERIFICATION);
             addGroup = true;
         }
         
-        for (File f : dir.listFiles()) {
-            if (Thread.interrupted()) {
-                throw new InterruptedException();
-            }
+        File[] children = dir.listFiles();
+        if (children == null) {
+            throw new IOException("Could not list the files in " + dir.getAbsolutePath());
+        }
+        
+        // The order of listFiles() depends on the file system
+        Arrays.sort(children);
+        
+        for (File f : children) {
+            LauncherUtils.checkInterrupted();
             
             if (f.isDirectory()) {
                 if (shouldRoleIgnore(f)) {
                     continue;
                 } else if (isForCurrentRole(f)) {
-                    collectFiles(baseDir, relativeDir, f, group);
+                    collectFiles(baseDir, relativeDir, f, group, groups, files);
                 } else {
                     collectFiles(baseDir, 
                             LauncherUtils.joinUnixPath(relativeDir, f.getName()),
-                            f, null);
+                            f, null, groups, files);
                 }
             } else {
                 String fileRelative = LauncherUtils.joinUnixPath(
                         relativeDir, f.getName());
-                logger.info("-> " + LauncherUtils.getRelative(baseDir, f));
                 
                 SingleFile singleFile = createSingleFile(fileRelative, f);
                 if (singleFile != null) {
-                    singleFile.setSize(f.length());
-                    singleFile.setVersion(versionBuilder.smartFromFile(f));
-                    singleFile.setFilename(f.getName());
-                    copyFile(f, new File(outputDir, fileRelative));
-                    group.getFiles().add(singleFile);
+                    files.add(new CollectedFile(
+                            group, fileRelative, f, singleFile,
+                            LauncherUtils.getRelative(baseDir, f)));
+                } else {
+                    logger.info("-> " + LauncherUtils.getRelative(baseDir, f) + 
+                            " (archived)");
                 }
             }
         }
         
-        if (addGroup && group.getFiles().size() > 0) {
-            packageManifest.getFileGroups().add(group);
+        if (addGroup) {
+            groups.add(group);
+        }
+    }
+    
+    /**
+     * Hash, copy and diff the given files on several threads.
+     * 
+     * @param files the files
+     * @throws IOException on I/O error
+     * @throws InterruptedException on interruption
+     */
+    private void processAll(List<CollectedFile> files) 
+            throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(
+                threads, new BuilderThreadFactory());
+        
+        try {
+            List<Future<CollectedFile>> futures = new ArrayList<Future<CollectedFile>>();
+            for (CollectedFile collected : files) {
+                futures.add(executor.submit(collected));
+            }
+            
+            // Log in the order of the walk as the files are done
+            for (Future<CollectedFile> future : futures) {
+                CollectedFile collected = future.get();
+                logger.info("-> " + collected.sourcePath + 
+                        (collected.reused ? " (unchanged)" : ""));
+                for (String message : collected.messages) {
+                    logger.info(message);
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        } finally {
+            executor.shutdownNow();
         }
     }
     
+    /**
+     * Create patches to a file from its earlier versions.
+     * 
+     * <p>A patch is only kept if it is much smaller than the file.</p>
+     * 
+     * @param collected the file
+     * @throws IOException on I/O error
+     */
+    private void createPatches(CollectedFile collected) throws IOException {
+        FileGroup group = collected.group;
+        String path = collected.path;
+        File file = collected.file;
+        SingleFile singleFile = collected.singleFile;
+        
+        if (history == null) {
+            return;
+        }
+        
+        for (BuildHistory.Version previous : history.getVersions(path)) {
+            if (previous.getHash().equalsIgnoreCase(singleFile.getHash()) || 
+                    previous.getVersion().equals(singleFile.getVersion())) {
+                continue;
+            }
+            
+            File previousFile = history.getFile(previous);
+            if (!previousFile.exists()) {
+                continue;
+            }
+            
+            String patchName = String.format("_patches/%s.%s-%s.patch", file.getName(), 
+                    abbreviate(previous.getHash()), abbreviate(singleFile.getHash()));
+            File patchFile = new File(outputDir, group.getSource() + patchName);
+            
+            // The patch from the last build is the same if the file is
+            if (!collected.reused || !patchFile.exists()) {
+                patchFile.getParentFile().mkdirs();
+                File tempFile = new File(patchFile.getPath() + ".tmp");
+                OutputStream out = null;
+                try {
+                    out = new BufferedOutputStream(new FileOutputStream(tempFile));
+                    BinaryDelta.create(previousFile, file, out);
+                } finally {
+                    LauncherUtils.close(out);
+                }
+                
+                patchFile.delete();
+                if (!tempFile.renameTo(patchFile)) {
+                    tempFile.delete();
+                    throw new IOException("Failed to write " + patchFile);
+                }
+            }
+            
+            if (patchFile.length() > file.length() * 0.8) {
+                collected.messages.add("    No patch from " + previous.getVersion() + "; too large");
+                patchFile.delete();
+                continue;
+            }
+            
+            collected.messages.add(String.format("    Patch from %s: %,d bytes", 
+                    previous.getVersion(), patchFile.length()));
+            
+            Patch patch = new Patch();
+            patch.setTarget(singleFile.getFilename());
+            patch.setFrom(previous.getVersion());
+            patch.setSize(patchFile.length());
+            patch.setHash(singleFile.getHash());
+            patch.setFilename(patchName);
+            collected.patches.add(patch);
+        }
+    }
+    
+    /**
+     * Publish the list of entries of a jar or zip file, along with the
+     * entries that changed since its earlier versions, so that clients can
+     * download only those entries.
+     * 
+     * <p>Entries are kept by hash, so an entry is only kept once however
+     * many versions it is in. As with patches, this is only done for an
+     * earlier version if the download is much smaller than the file.</p>
+     * 
+     * @param collected the file
+     * @throws IOException on I/O error
+     */
+    private void createEntryDiffs(CollectedFile collected) throws IOException {
+        FileGroup group = collected.group;
+        String path = collected.path;
+        File file = collected.file;
+        SingleFile singleFile = collected.singleFile;
+        
+        if (history == null || singleFile.isFiltered() || !versionBuilder.isZip(file)) {
+            return;
+        }
+        
+        String listName = String.format("_entries/%s.%s.list", 
+                file.getName(), abbreviate(singleFile.getHash()));
+        File listFile = new File(outputDir, group.getSource() + listName);
+        
+        JarEntryList list;
+        if (collected.reused && listFile.exists()) {
+            list = readList(listFile);
+        } else {
+            list = readEntries(file);
+        }
+        if (list == null || !list.hasUniqueNames() || 
+                !list.getSignature().equalsIgnoreCase(singleFile.getVersion())) {
+            return;
+        }
+        
+        ZipFile zip = new ZipFile(file);
+        try {
+            for (BuildHistory.Version previous : history.getVersions(path)) {
+                if (previous.getHash().equalsIgnoreCase(singleFile.getHash()) || 
+                        previous.getVersion().equals(singleFile.getVersion())) {
+                    continue;
+                }
+                
+                JarEntryList previousList = readEntries(history.getFile(previous));
+                if (previousList == null) {
+                    continue;
+                }
+                
+                Set<String> known = new HashSet<String>();
+                for (JarEntryList.Entry entry : previousList.getEntries()) {
+                    known.add(entry.getHash());
+                }
+                
+                List<JarEntryList.Entry> changed = new ArrayList<JarEntryList.Entry>();
+                long estimate = 0;
+                for (JarEntryList.Entry entry : list.getEntries()) {
+                    if (known.add(entry.getHash())) {
+                        changed.add(entry);
+                        estimate += zip.getEntry(entry.getName()).getCompressedSize();
+                    }
+                }
+                
+                if (estimate > file.length() * 0.8) {
+                    collected.messages.add(
+                            "    No entry diff from " + previous.getVersion() + "; too large");
+                    continue;
+                }
+                
+                if (!listFile.exists()) {
+                    listFile.getParentFile().mkdirs();
+                    File tempFile = new File(listFile.getPath() + ".tmp");
+                    OutputStream out = null;
+                    try {
+                        out = new BufferedOutputStream(new FileOutputStream(tempFile));
+                        list.write(out);
+                    } finally {
+                        LauncherUtils.close(out);
+                    }
+                    if (!tempFile.renameTo(listFile)) {
+                        tempFile.delete();
+                        throw new IOException("Failed to write " + listFile);
+                    }
+                }
+                
+                long size = listFile.length();
+                for (JarEntryList.Entry entry : changed) {
+                    size += writeEntryObject(group, zip, entry);
+                }
+                
+                collected.messages.add(String.format("    Entry diff from %s: %d entries, %,d bytes", 
+                        previous.getVersion(), changed.size(), size));
+                
+                EntryDiff diff = new EntryDiff();
+                diff.setTarget(singleFile.getFilename());
+                diff.setFrom(previous.getVersion());
+                diff.setSize(size);
+                diff.setFilename(listName);
+                collected.entryDiffs.add(diff);
+            }
+        } finally {
+            zip.close();
+        }
+    }
+    
+    /**
+     * Hash the entries of a jar or zip file.
+     * 
+     * @param file the file
+     * @return the list, or null if the file could not be read as a zip
+     */
+    private JarEntryList readEntries(File file) {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            return JarEntryList.fromZip(in);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            LauncherUtils.close(in);
+        }
+    }
+    
+    /**
+     * Read a list of entries that was written by an earlier build.
+     * 
+     * @param file the file
+     * @return the list, or null if the file could not be read
+     */
+    private JarEntryList readList(File file) {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            return JarEntryList.read(in);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            LauncherUtils.close(in);
+        }
+    }
+    
+    /**
+     * Write an entry of a jar or zip file, gzipped, to the entries of the
+     * group, unless an earlier build already did.
+     * 
+     * @param group the group
+     * @param zip the file
+     * @param entry the entry
+     * @return the size of the written entry
+     * @throws IOException on I/O error
+     */
+    private long writeEntryObject(FileGroup group, ZipFile zip, JarEntryList.Entry entry) 
+            throws IOException {
+        File target = new File(outputDir, group.getSource() + 
+                EntryDiff.OBJECTS_DIR + entry.getHash());
+        if (target.exists()) {
+            return target.length();
+        }
+        
+        // Other threads may be writing the same entry
+        target.getParentFile().mkdirs();
+        File tempFile = File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = zip.getInputStream(zip.getEntry(entry.getName()));
+            out = new GZIPOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tempFile)));
+            byte[] buffer = new byte[1024 * 16];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+        } finally {
+            LauncherUtils.close(out);
+            LauncherUtils.close(in);
+        }
+        
+        if (!tempFile.renameTo(target)) {
+            tempFile.delete();
+            if (!target.exists()) {
+                throw new IOException("Failed to write " + target);
+            }
+        }
+        return target.length();
+    }
+    
+    private static String abbreviate(String hash) {
+        return hash.length() > 12 ? hash.substring(0, 12) : hash;
+    }
+    
     /**
      * Create the {@link SingleFile} for a given file, otherwise return null if the
      * file needs to go into an archive.
@@ -333,34 +847,67 @@ public class UpdateBuilder implements Runnable {
         FileGroup group = new FileGroup();
         group.setDest(".");
         group.setSource("");
+        group.setVerify(VERIFICATION);
         
-        for (Map.Entry<String, ZipBucket> entry : buckets.entrySet()) {
-            if (Thread.interrupted()) {
-                throw new InterruptedException();
-            }
-            
-            String filename = entry.getKey();
-            File target = new File(outputDir, filename);
-            target.getParentFile().mkdirs();
-            logger.info("-> " + filename);
-            
-            ZipBucket bucket = entry.getValue();
-            bucket.writeContents(versionBuilder, updateDir, target);
-            bucket.setSize(target.length());
-            bucket.setFilename(filename);
-
-            // Match patterns and apply properties
-            List<FilePattern> filePatterns = config.getFilePatterns();
-            if (filePatterns != null) {
-                for (FilePattern pattern : filePatterns) {
-                    if (pattern.matchesPath(filename)) {
-                        logger.info("    Pattern: " + filename + ": " + pattern);
-                        bucket.inheritGenericProperties(pattern);
+        ExecutorService executor = Executors.newFixedThreadPool(
+                threads, new BuilderThreadFactory());
+        
+        try {
+            for (Map.Entry<String, ZipBucket> entry : buckets.entrySet()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                
+                String filename = entry.getKey();
+                File target = new File(outputDir, filename);
+                target.getParentFile().mkdirs();
+                logger.info("-> " + filename);
+                
+                ZipBucket bucket = entry.getValue();
+                String stamp = null;
+                long lastModified = 0;
+                BuildCache.Entry cached = null;
+                if (cache != null) {
+                    lastModified = bucket.getLastModified();
+                    stamp = BuildCache.getStamp(bucket.getContents());
+                    cached = cache.get(ARCHIVE_KEY_PREFIX + filename, stamp);
+                }
+                
+                if (cached != null && cached.isWritten(outputDir, filename)) {
+                    logger.info("    Unchanged since the last build");
+                    bucket.setVersion(cached.getVersion());
+                    bucket.setSize(cached.getSize());
+                    bucket.setHash(cached.getHash());
+                    reusedArchives++;
+                } else {
+                    bucket.writeContents(versionBuilder, updateDir, target, 
+                            executor, threads * 4);
+                    bucket.setSize(target.length());
+                    bucket.setHash(versionBuilder.fromFile(target, createHashDigest()));
+                }
+                bucket.setFilename(filename);
+                
+                if (cache != null) {
+                    cache.put(ARCHIVE_KEY_PREFIX + filename, lastModified, 
+                            new BuildCache.Entry(stamp, filename, bucket.getSize(), 
+                                    bucket.getVersion(), bucket.getHash()));
+                }
+
+                // Match patterns and apply properties
+                List<FilePattern> filePatterns = config.getFilePatterns();
+                if (filePatterns != null) {
+                    for (FilePattern pattern : filePatterns) {
+                        if (pattern.matchesPath(filename)) {
+                            logger.info("    Pattern: " + filename + ": " + pattern);
+                            bucket.inheritGenericProperties(pattern);
+                        }
                     }
                 }
+                
+                group.getFiles().add(bucket);
             }
-            
-            group.getFiles().add(bucket);
+        } finally {
+            executor.shutdownNow();
         }
         
         if (group.getFiles().size() > 0) {
@@ -378,14 +925,26 @@ public class UpdateBuilder implements Runnable {
     public void build() throws JAXBException, IOException, InterruptedException {
         logger.info("Output directory: " + outputDir.getAbsolutePath());
         
+        if (patchDepth > 0) {
+            logger.info("History directory: " + getHistoryDir().getAbsolutePath());
+            history = new BuildHistory(getHistoryDir());
+            history.load();
+        }
+        
+        if (incremental) {
+            logger.info("Build cache: " + getCacheFile().getAbsolutePath());
+            cache = new BuildCache(getCacheFile());
+            cache.load();
+        }
+        
         collectFiles();
         commitBuckets();
         
         getUpdateManifest().setPackageURL(getPackageFilename());
+        getUpdateManifest().setBinaryPackageURL(getBinaryPackageFilename());
         
-        JAXBContext context = JAXBContext.newInstance(
-                PackageManifest.class, UpdateManifest.class);
-        Marshaller m = context.createMarshaller();
+        Marshaller m = XmlUtils.getContext(
+                PackageManifest.class, UpdateManifest.class).createMarshaller();
         m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
 
         if (Thread.interrupted()) {
@@ -395,9 +954,33 @@ public class UpdateBuilder implements Runnable {
         File packageFile = new File(outputDir, getPackageFilename());
         File updateFile = new File(outputDir, getUpdateFilename());
         marshal(m, getPackageManifest(), packageFile);
+        
+        File binaryPackageFile = null;
+        if (getBinaryPackageFilename() != null) {
+            binaryPackageFile = new File(outputDir, getBinaryPackageFilename());
+            writeBinary(getPackageManifest(), binaryPackageFile);
+        }
+        
         marshal(m, getUpdateManifest(), updateFile);
+        
+        if (history != null) {
+            history.trim(patchDepth);
+            history.save();
+        }
+        
+        if (cache != null) {
+            cache.save();
+            logger.info(String.format(
+                    "Reused %d of %d files and %d of %d archives from the last build", 
+                    reusedFiles, fileCount, reusedArchives, buckets.size()));
+        }
 
         logger.info("Package manifest: " + packageFile.getAbsolutePath());
+        if (binaryPackageFile != null) {
+            logger.info("Binary package manifest: " + binaryPackageFile.getAbsolutePath() +
+                    " (" + binaryPackageFile.length() + " bytes, against " + 
+                    packageFile.length() + ")");
+        }
         logger.info("Update manifest: " + updateFile.getAbsolutePath());
 
         logger.info("------------------------------------------------------------------------");
@@ -422,6 +1005,32 @@ public class UpdateBuilder implements Runnable {
         }
     }
     
+    /**
+     * Create the digest that the hashes of the uploaded files are computed
+     * with, which the launcher verifies downloads against.
+     * 
+     * @return the digest
+     */
+    private static MessageDigest createHashDigest() {
+        try {
+            return MessageDigest.getInstance(VERIFICATION.getAlgorithm());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    private void writeBinary(PackageManifest manifest, File file) throws IOException {
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(file);
+            BufferedOutputStream buf = new BufferedOutputStream(fos);
+            BinaryManifest.write(manifest, buf);
+            buf.close();
+        } finally {
+            LauncherUtils.close(fos);
+        }
+    }
+
     private void marshal(Marshaller m, Object object, File file) 
             throws JAXBException, IOException {
         FileOutputStream fos = null;
@@ -526,9 +1135,15 @@ public class UpdateBuilder implements Runnable {
         parser.addValueArg("name");
         parser.addValueArg("version");
         parser.addValueArg("package-filename");
+        parser.addValueArg("binary-package-filename");
         parser.addValueArg("update-filename");
         parser.addValueArg("config");
+        parser.addValueArg("history");
+        parser.addValueArg("patch-depth");
+        parser.addValueArg("threads");
         parser.addFlagArg("clean");
+        parser.addFlagArg("binary");
+        parser.addFlagArg("incremental");
         
         ArgsContext context;
         try {
@@ -549,8 +1164,12 @@ public class UpdateBuilder implements Runnable {
         String name = context.get("name");
         String version = context.get("version");
         String packageFilename = context.get("package-filename");
+        String binaryPackageFilename = context.get("binary-package-filename");
         String updateFilename = context.get("update-filename");
         String configPath = context.get("config");
+        String historyPath = context.get("history");
+        String patchDepth = context.get("patch-depth");
+        String threads = context.get("threads");
         
         File updateDir = new File(filesDirStr);
         File outputDir = new File(outputDirStr);
@@ -575,9 +1194,39 @@ public class UpdateBuilder implements Runnable {
             builder.setPackageFilename(packageFilename);
         }
         
+        if (binaryPackageFilename != null) {
+            builder.setBinaryPackageFilename(binaryPackageFilename);
+        } else if (context.has("binary")) {
+            builder.setBinaryPackageFilename("package.dat");
+        }
+        
         if (updateFilename != null) {
             builder.setUpdateFilename(updateFilename);
         }
+        
+        if (historyPath != null) {
+            builder.setHistoryDir(new File(historyPath));
+        }
+        
+        builder.setIncremental(context.has("incremental"));
+        
+        if (patchDepth != null) {
+            try {
+                builder.setPatchDepth(Integer.parseInt(patchDepth));
+            } catch (NumberFormatException e) {
+                logger.warning("Use -patch-depth with a number of versions");
+                System.exit(1);
+            }
+        }
+        
+        if (threads != null) {
+            try {
+                builder.setThreads(Integer.parseInt(threads));
+            } catch (NumberFormatException e) {
+                logger.warning("Use -threads with a number of threads");
+                System.exit(1);
+            }
+        }
 
         UpdateManifest updateManifest = builder.getUpdateManifest();
         
@@ -616,4 +1265,79 @@ public class UpdateBuilder implements Runnable {
         build(builder);
     }
 
+    /**
+     * A file of the package that is still to be hashed, copied and diffed,
+     * and afterwards, the results of doing so.
+     */
+    private class CollectedFile implements Callable<CollectedFile> {
+        private final FileGroup group;
+        private final String path;
+        private final File file;
+        private final SingleFile singleFile;
+        private final String sourcePath;
+        private String stamp;
+        private long lastModified;
+        private boolean reused;
+        private final List<Patch> patches = new ArrayList<Patch>();
+        private final List<EntryDiff> entryDiffs = new ArrayList<EntryDiff>();
+        private final List<String> messages = new ArrayList<String>();
+        
+        CollectedFile(FileGroup group, String path, File file, 
+                SingleFile singleFile, String sourcePath) {
+            this.group = group;
+            this.path = path;
+            this.file = file;
+            this.singleFile = singleFile;
+            this.sourcePath = sourcePath;
+        }
+        
+        @Override
+        public CollectedFile call() throws Exception {
+            BuildCache.Entry cached = null;
+            if (cache != null) {
+                // Taken before hashing, so a change while hashing is caught next time
+                lastModified = file.lastModified();
+                stamp = BuildCache.getStamp(file);
+                cached = cache.get(sourcePath, stamp);
+            }
+            
+            singleFile.setFilename(file.getName());
+            if (cached != null) {
+                reused = true;
+                singleFile.setSize(cached.getSize());
+                singleFile.setVersion(cached.getVersion());
+                singleFile.setHash(cached.getHash());
+            } else {
+                singleFile.setSize(file.length());
+                singleFile.setVersion(versionBuilder.smartFromFile(file));
+                singleFile.setHash(versionBuilder.fromFile(file, createHashDigest()));
+            }
+            
+            if (cached == null || !cached.isWritten(outputDir, path)) {
+                copyFile(file, new File(outputDir, path));
+            }
+            
+            createPatches(this);
+            createEntryDiffs(this);
+            if (history != null) {
+                history.keep(singleFile.getHash(), file);
+            }
+            return this;
+        }
+    }
+    
+    /**
+     * Creates named daemon threads for processing files.
+     */
+    private static class BuilderThreadFactory implements ThreadFactory {
+        private int count = 0;
+        
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Update Builder #" + (++count));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
 }
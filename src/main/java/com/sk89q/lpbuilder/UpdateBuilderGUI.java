@@ -79,7 +79,9 @@ public class UpdateBuilderGUI extends JFrame {
     private JTextField updateText;
     private JCheckBox includeLibsCheck;
     private JCheckBox cleanCheck;
+    private JCheckBox incrementalCheck;
     private JCheckBox zipConfigsCheck;
+    private JCheckBox binaryPackageCheck;
     private JButton buildButton;
     
     private Thread buildThread;
@@ -145,7 +147,9 @@ public class UpdateBuilderGUI extends JFrame {
         String updateFilename = validate("Update filename", updateText.getText(), true, null);
         boolean includeLibs = includeLibsCheck.isSelected();
         final boolean clean = cleanCheck.isSelected();
+        boolean incremental = incrementalCheck.isSelected();
         boolean zipConfigs = zipConfigsCheck.isSelected();
+        boolean binaryPackage = binaryPackageCheck.isSelected();
         
         // Check if source == output
         if (sourceDir.equals(outputDir)) {
@@ -174,6 +178,11 @@ public class UpdateBuilderGUI extends JFrame {
         if (packageFilename != null)
             builder.setPackageFilename(packageFilename);
         
+        if (binaryPackage)
+            builder.setBinaryPackageFilename("package.dat");
+        
+        builder.setIncremental(incremental);
+        
         if (updateFilename != null)
             builder.setUpdateFilename(updateFilename);
         
@@ -389,6 +398,12 @@ public class UpdateBuilderGUI extends JFrame {
         cleanCheck.setBorder(null);
         cleanCheck.setSelected(true);
         panel.add(cleanCheck, fieldConstraints);
+
+        panel.add(Box.createGlue(), labelConstraints);
+        incrementalCheck = new JCheckBox("Reuse files that did not change since the last build");
+        incrementalCheck.setBorder(null);
+        incrementalCheck.setSelected(false);
+        panel.add(incrementalCheck, fieldConstraints);
         
         label = new JLabel("Package filename:");
         panel.add(label, labelConstraints);
@@ -396,6 +411,12 @@ public class UpdateBuilderGUI extends JFrame {
         packageText.setText("package.xml");
         label.setLabelFor(packageText);
         panel.add(packageText, fieldConstraints);
+
+        panel.add(Box.createGlue(), labelConstraints);
+        binaryPackageCheck = new JCheckBox("Also write a compact binary package manifest");
+        binaryPackageCheck.setBorder(null);
+        binaryPackageCheck.setSelected(false);
+        panel.add(binaryPackageCheck, fieldConstraints);
         
         label = new JLabel("Update filename:");
         panel.add(label, labelConstraints);
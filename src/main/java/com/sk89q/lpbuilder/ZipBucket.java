@@ -23,7 +23,9 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -39,6 +41,60 @@ class ZipBucket extends Archive {
         contents.add(new RelativizedFile(path, file));
     }
 
+    /**
+     * Get the files that are to go into the archive.
+     * 
+     * @return the files
+     */
+    List<RelativizedFile> getContents() {
+        return Collections.unmodifiableList(contents);
+    }
+
+    /**
+     * Get the newest modification time of the files that are to go into
+     * the archive.
+     * 
+     * @return the modification time
+     */
+    long getLastModified() {
+        long newest = 0;
+        for (RelativizedFile file : contents) {
+            newest = Math.max(newest, file.getFile().lastModified());
+        }
+        return newest;
+    }
+
+    /**
+     * Write the archive, compressing its files on the given executor.
+     * 
+     * <p>Archives too large to be written without Zip64 are written on the
+     * calling thread instead.</p>
+     * 
+     * @param builder the signature builder
+     * @param baseDir the base directory
+     * @param target the archive
+     * @param executor the executor
+     * @param window the number of files to compress ahead
+     * @throws IOException on I/O error
+     * @throws InterruptedException on interruption
+     */
+    public void writeContents(FileSignatureBuilder builder, File baseDir, File target,
+            ExecutorService executor, int window) throws IOException, InterruptedException {
+        if (!ParallelZipWriter.canWrite(contents)) {
+            writeContents(builder, baseDir, target);
+            return;
+        }
+        
+        ParallelZipWriter writer = new ParallelZipWriter(executor, window, builder);
+        List<byte[]> digests = writer.write(contents, target);
+        
+        SignatureList list = builder.createList();
+        for (int i = 0; i < contents.size(); i++) {
+            list.add(contents.get(i).getPath(), digests.get(i));
+        }
+        setVersion(list.toDigest());
+    }
+
     public void writeContents(FileSignatureBuilder builder, File baseDir, File target)
             throws IOException {
         SignatureList list = builder.createList();
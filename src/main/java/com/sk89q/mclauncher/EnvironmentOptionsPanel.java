@@ -58,6 +58,11 @@ public class EnvironmentOptionsPanel extends OptionsPanel {
         
         createFieldGroup("Display");
         addField(Def.LWJGL_DEBUG, new JCheckBox("LWJGL debugging mode"));
+        
+        createFieldGroup("Updates");
+        addField(Def.UPDATE_PERSISTENT_CONNECTIONS, new JCheckBox("Reuse connections between downloads"));
+        addField(Def.UPDATE_PIPELINED_EXTRACTION, new JCheckBox("Extract archives while downloading"))
+            .setToolTipText("Saves disk I/O, but an interrupted download has to start over");
     }
 
 }
@@ -75,6 +75,8 @@ public class LaunchOptions extends JPanel implements ListSelectionListener {
     private JTextField passText;
     private JCheckBox rememberPass;
     private JCheckBox forceUpdateCheck;
+    private JCheckBox verifyCheck;
+    private JCheckBox rollbackCheck;
     private JCheckBox changeComponentsCheck;
     private JCheckBox playOfflineCheck;
     private JCheckBox showConsoleCheck;
@@ -143,6 +145,12 @@ public class LaunchOptions extends JPanel implements ListSelectionListener {
         forceUpdateCheck = new JCheckBox("Force a game update");
         forceUpdateCheck.setBorder(null);
         
+        verifyCheck = new JCheckBox("Verify and repair game files");
+        verifyCheck.setBorder(null);
+        
+        rollbackCheck = new JCheckBox("Undo the last game update");
+        rollbackCheck.setBorder(null);
+        
         changeComponentsCheck = new JCheckBox("Re-select install options (if any)");
         changeComponentsCheck.setBorder(null);
     
@@ -169,6 +177,8 @@ public class LaunchOptions extends JPanel implements ListSelectionListener {
         add(rememberPass, checkboxC);
         add(autoConnectCheck, checkboxC);
         add(forceUpdateCheck, checkboxC);
+        add(verifyCheck, checkboxC);
+        add(rollbackCheck, checkboxC);
         add(changeComponentsCheck, checkboxC);
         add(playOfflineCheck, checkboxC);
         add(showConsoleCheck, checkboxC);
@@ -178,6 +188,8 @@ public class LaunchOptions extends JPanel implements ListSelectionListener {
         jarLabel.setVisible(false);
         jarCombo.setVisible(false);
         forceUpdateCheck.setVisible(false);
+        verifyCheck.setVisible(false);
+        rollbackCheck.setVisible(false);
         changeComponentsCheck.setVisible(false);
         showConsoleCheck.setVisible(false);
         playOfflineCheck.setVisible(false);
@@ -233,6 +245,8 @@ public class LaunchOptions extends JPanel implements ListSelectionListener {
                 jarLabel.setVisible(true);
                 jarCombo.setVisible(true);
                 forceUpdateCheck.setVisible(true);
+                verifyCheck.setVisible(true);
+                rollbackCheck.setVisible(true);
                 changeComponentsCheck.setVisible(true);
                 showConsoleCheck.setVisible(true);
                 playOfflineCheck.setVisible(true);
@@ -388,6 +402,22 @@ public class LaunchOptions extends JPanel implements ListSelectionListener {
         forceUpdateCheck.setSelected(update);
     }
 
+    public boolean isVerifying() {
+        return verifyCheck.isSelected();
+    }
+    
+    public void setVerify(boolean verify) {
+        verifyCheck.setSelected(verify);
+    }
+
+    public boolean isRollingBack() {
+        return rollbackCheck.isSelected();
+    }
+    
+    public void setRollback(boolean rollback) {
+        rollbackCheck.setSelected(rollback);
+    }
+
     public boolean isForcingIncrementalUpdate() {
         return changeComponentsCheck.isSelected();
     }
@@ -397,7 +427,7 @@ public class LaunchOptions extends JPanel implements ListSelectionListener {
     }
 
     public boolean isUpdateRequested() {
-        return isForcingUpdate() || isForcingIncrementalUpdate();
+        return isForcingUpdate() || isVerifying() || isForcingIncrementalUpdate();
     }
 
     public boolean hasLoginSet() {
@@ -21,6 +21,7 @@ package com.sk89q.mclauncher;
 import java.io.File;
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.util.logging.Logger;
 
 import javax.net.ssl.SSLHandshakeException;
 import javax.swing.JFrame;
@@ -41,6 +42,7 @@ import com.sk89q.mclauncher.session.MinecraftSession.LoginException;
 import com.sk89q.mclauncher.session.MinecraftSession.OutdatedLauncherException;
 import com.sk89q.mclauncher.session.MinecraftSession.UserNotPremiumException;
 import com.sk89q.mclauncher.session.OfflineSession;
+import com.sk89q.mclauncher.update.StagedDeployment;
 import com.sk89q.mclauncher.update.UpdateCache;
 import com.sk89q.mclauncher.update.UpdateCheck;
 import com.sk89q.mclauncher.update.UpdateException;
@@ -55,6 +57,9 @@ import com.sk89q.mclauncher.util.Task;
  */
 public class LaunchTask extends Task {
     
+    private static final Logger logger = 
+            Logger.getLogger(LaunchTask.class.getCanonicalName());
+    
     public enum UpdateRequirement {
         NEVER,
         CHECK_FOR_UPDATE,
@@ -207,6 +212,25 @@ public class LaunchTask extends Task {
     public void checkForUpdates() throws 
             ExecutionException, InterruptedException, UpdateException {
         
+        // Undo an update that was interrupted part way, or the last update
+        // if asked to, before anything else looks at the installed files
+        StagedDeployment deployment = new StagedDeployment(minecraftDir);
+        try {
+            if (launchOptions.isRollingBack()) {
+                if (deployment.canRollback()) {
+                    fireStatusChange("Undoing the last update...");
+                    deployment.rollback();
+                    return;
+                }
+                logger.info("There is no update to undo");
+            }
+            
+            deployment.recover();
+        } catch (IOException e) {
+            throw new UpdateException("The game files could not be restored " +
+                    "to their previous version: " + e.getMessage(), e);
+        }
+        
         // Don't update in offline mode
         if (launchOptions.isPlayingOffline()) {
             return;
@@ -219,7 +243,7 @@ public class LaunchTask extends Task {
 
         fireStatusChange("Checking for updates...");
         
-        File cacheFile = new File(minecraftDir, "update_cache.xml");
+        File cacheFile = new File(minecraftDir, "update_cache.dat");
         UpdateCache cache = new UpdateCache(cacheFile);
         UpdateCheck updateCheck = configuration.createUpdateCheck(session, cache);
         UpdateType updateType;
@@ -229,6 +253,8 @@ public class LaunchTask extends Task {
             updateType = UpdateType.FULL;
         } else if (launchOptions.isForcingUpdate()) {
             updateType = UpdateType.FULL;
+        } else if (launchOptions.isVerifying()) {
+            updateType = UpdateType.VERIFY;
         } else if (launchOptions.isForcingIncrementalUpdate()) {
             updateType = UpdateType.INCREMENTAL;
         
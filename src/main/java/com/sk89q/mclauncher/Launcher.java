@@ -45,6 +45,7 @@ import com.sk89q.mclauncher.config.Constants;
 import com.sk89q.mclauncher.config.Def;
 import com.sk89q.mclauncher.config.LauncherOptions;
 import com.sk89q.mclauncher.security.X509KeyRing;
+import com.sk89q.mclauncher.util.BandwidthLimiter;
 import com.sk89q.mclauncher.util.BasicArgsParser;
 import com.sk89q.mclauncher.util.BasicArgsParser.ArgsContext;
 import com.sk89q.mclauncher.util.ConsoleFrame;
@@ -108,6 +109,9 @@ public class Launcher {
         
         System.setProperty("http.agent", "SKMCLauncher/" + VERSION + " (+http://www.sk89q.com)");
         
+        // Keep enough idle connections around for parallel downloads to reuse
+        System.setProperty("http.maxConnections", "16");
+        
         SimpleLogFormatter.setAsFormatter();
         
         // Read options
@@ -116,6 +120,7 @@ public class Launcher {
         File optionsFile = new File(base, "config.xml");
         options = new LauncherOptions(optionsFile);
         options.load();
+        BandwidthLimiter.getInstance().readSettings(options.getSettings());
         
         // If the options file does not exist, try to import old data
         if (!optionsFile.exists()) {
@@ -19,6 +19,8 @@
 package com.sk89q.mclauncher;
 
 import javax.swing.JCheckBox;
+import javax.swing.JSpinner;
+import javax.swing.SpinnerNumberModel;
 
 import com.sk89q.mclauncher.config.Def;
 import com.sk89q.mclauncher.config.SettingsList;
@@ -48,6 +50,25 @@ public class LauncherOptionsPanel extends OptionsPanel {
 
         createFieldGroup("Addons");
         addField(Def.FAST_TEST, new JCheckBox("Addon test uses offline mode"));
+
+        createFieldGroup("Updates");
+        addField(Def.UPDATE_DOWNLOAD_THREADS, "Simultaneous downloads:",
+                new JSpinner(new SpinnerNumberModel(1, 1, 32, 1)));
+        addField(Def.UPDATE_HOST_THREADS, "Simultaneous downloads per server:",
+                new JSpinner(new SpinnerNumberModel(1, 1, 32, 1)));
+        addField(Def.UPDATE_INSTALL_THREADS, "Simultaneous installs:",
+                new JSpinner(new SpinnerNumberModel(1, 1, 32, 1)));
+        addField(Def.UPDATE_SEGMENT_THRESHOLD, "Split downloads larger than (MB):",
+                new JSpinner(new SpinnerNumberModel(0, 0, 1024 * 4, 8)))
+            .setToolTipText("Large files are downloaded over several connections. 0 disables this.");
+        addField(Def.UPDATE_SEGMENTS, "Connections per split download:",
+                new JSpinner(new SpinnerNumberModel(1, 1, 16, 1)));
+        addField(Def.UPDATE_RATE_LIMIT, "Download speed limit (KB/s):",
+                new JSpinner(new SpinnerNumberModel(0, 0, 1024 * 1024, 64)))
+            .setToolTipText("Shared by all downloads. 0 means no limit.");
+        addField(Def.UPDATE_STORE_SIZE, "Shared download store size (MB):",
+                new JSpinner(new SpinnerNumberModel(0, 0, 1024 * 64, 256)))
+            .setToolTipText("Files used by several configurations are only downloaded once. 0 disables this.");
     }
 
 }
@@ -47,6 +47,7 @@ import com.sk89q.mclauncher.config.Configuration;
 import com.sk89q.mclauncher.config.ConfigurationList;
 import com.sk89q.mclauncher.config.LauncherOptions;
 import com.sk89q.mclauncher.util.ActionListeners;
+import com.sk89q.mclauncher.util.BandwidthLimiter;
 import com.sk89q.mclauncher.util.ButtonsPanel;
 import com.sk89q.mclauncher.util.LinkButton;
 import com.sk89q.mclauncher.util.SwingHelper;
@@ -103,6 +104,9 @@ public class OptionsDialog extends JDialog {
             }
         }
 
+        // Apply new speed limits to downloads that are already running
+        BandwidthLimiter.getInstance().readSettings(options.getSettings());
+
         if (!options.save()) {
             JOptionPane.showMessageDialog(this,
                     "Your options could not be saved to disk.", "Save error",
@@ -46,6 +46,15 @@ public class Def {
     public static final String JAVA_CONSOLE = "java.console";
     public static final String LWJGL_DEBUG = "lwjgl.debug";
     public static final String LAST_INSTALL_DIR = "dir.last-install";
+    public static final String UPDATE_DOWNLOAD_THREADS = "update.download-threads";
+    public static final String UPDATE_HOST_THREADS = "update.download-threads-per-host";
+    public static final String UPDATE_INSTALL_THREADS = "update.install-threads";
+    public static final String UPDATE_SEGMENT_THRESHOLD = "update.segmented-download-threshold";
+    public static final String UPDATE_SEGMENTS = "update.segments-per-download";
+    public static final String UPDATE_PERSISTENT_CONNECTIONS = "update.persistent-connections";
+    public static final String UPDATE_PIPELINED_EXTRACTION = "update.pipelined-extraction";
+    public static final String UPDATE_STORE_SIZE = "update.store-size";
+    public static final String UPDATE_RATE_LIMIT = "update.rate-limit";
     
     private Def() {
     }
@@ -15,7 +15,6 @@
  * You should have received a copy of the GNU General Public License
  * along with this program. If not, see <http://www.gnu.org/licenses/>.
 */
-
 package com.sk89q.mclauncher.model;
 
 import java.io.BufferedOutputStream;
@@ -23,61 +22,101 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
 import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 import java.util.jar.JarInputStream;
+import java.util.zip.ZipEntry;
+
+import javax.xml.bind.annotation.XmlTransient;
 
 import com.sk89q.mclauncher.update.UninstallLog;
+import com.sk89q.mclauncher.update.ZipExtractor;
 import com.sk89q.mclauncher.util.LauncherUtils;
 
 public class Archive extends PackageFile {
+    
+    private transient File stagedDir;
+    
+    /**
+     * Get the directory that the archive has already been extracted to.
+     * 
+     * @return the directory, or null if the archive has not been extracted
+     */
+    @XmlTransient
+    public File getStagedDir() {
+        return stagedDir;
+    }
+
+    public void setStagedDir(File stagedDir) {
+        this.stagedDir = stagedDir;
+    }
+
+    /**
+     * Returns whether this archive is of a type that can be extracted.
+     * 
+     * @return true if it can be extracted
+     */
+    @XmlTransient
+    public boolean isExtractable() {
+        return getFinalFilename().endsWith(".zip") || getFinalFilename().endsWith(".jar");
+    }
 
     @Override
     public void deploy(UninstallLog log) throws IOException {
         File parent = getFile().getParentFile();
         
-        if (getFinalFilename().endsWith(".zip") || getFinalFilename().endsWith(".jar")) {
-            InputStream inputStream = null;
-            JarInputStream zip = null;
+        if (stagedDir != null) {
+            promote(stagedDir, parent, log);
+            stagedDir = null;
+        } else if (isExtractable()) {
+            File zipFile = getTempFile();
+            File unfiltered = null;
+            JarFile zip = null;
             
             try {
-                inputStream = getInputStream();
-                zip = new JarInputStream(inputStream);
+                // Random access needs the archive itself, so undo any
+                // compression of the download into a file first
+                if (isFiltered()) {
+                    unfiltered = new File(getTempFile().getPath() + ".zip");
+                    unfilter(unfiltered);
+                    zipFile = unfiltered;
+                }
+                
+                // As with the JarInputStream used before, the signatures of
+                // signed archives are checked as their entries are read
+                zip = new JarFile(zipFile, true);
+                ZipExtractor extractor = new ZipExtractor(
+                        zip, Runtime.getRuntime().availableProcessors());
                 
-                JarEntry entry;
-                while ((entry = zip.getNextJarEntry()) != null) {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
                     if (entry.isDirectory() || isMetaInf(entry.getName())) {
                         continue;
                     }
                     
-                    BufferedOutputStream out = null;
-                    try {
-                        File target = new File(getFile().getParentFile(), entry.getName());
-                        checkSubchild(parent, target);
-                        log.add(getFile(), target);
+                    File target = new File(parent, entry.getName());
+                    checkSubchild(parent, target);
+                    log.add(getFile(), target);
 
-                        // If we're not replacing, don't delete the existing file!
-                        if (getOverwrite() != null && target.exists()) {
-                            continue;
-                        }
-                        
-                        target.getParentFile().mkdirs();
-                        out = new BufferedOutputStream(
-                                new FileOutputStream(target));
-            
-                        byte[] buffer = new byte[8192];
-            
-                        int ret = zip.read(buffer, 0, buffer.length);
-                        while (ret >= 1) {
-                            out.write(buffer, 0, ret);
-                            ret = zip.read(buffer, 0, buffer.length);
-                        }
-                    } finally {
-                        LauncherUtils.close(out);
+                    // If we're not replacing, don't delete the existing file!
+                    if (getOverwrite() != null && target.exists()) {
+                        continue;
                     }
+                    
+                    extractor.add(entry, target);
                 }
+                
+                extractor.extract();
             } finally {
-                LauncherUtils.close(zip);
-                LauncherUtils.close(inputStream);
+                if (zip != null) {
+                    zip.close();
+                }
+                if (unfiltered != null) {
+                    unfiltered.delete();
+                }
             }
             
             getTempFile().delete();
@@ -86,6 +125,144 @@ public class Archive extends PackageFile {
         }
     }
     
+    /**
+     * Extract the archive from a stream of the downloaded data into the given
+     * directory, which can later be moved into place with 
+     * {@link #deploy(UninstallLog)} after setting it with
+     * {@link #setStagedDir(File)}.
+     * 
+     * <p>The stream is read to its end even after the last entry, so that
+     * whatever is writing to it is never left blocked.</p>
+     * 
+     * @param in the downloaded data, before any stream filters
+     * @param dir the directory to extract to
+     * @throws IOException on I/O error
+     */
+    public void extract(InputStream in, File dir) throws IOException {
+        InputStream filtered = filter(in);
+        JarInputStream zip = new JarInputStream(filtered);
+        
+        JarEntry entry;
+        while ((entry = zip.getNextJarEntry()) != null) {
+            if (entry.isDirectory() || isMetaInf(entry.getName())) {
+                continue;
+            }
+            
+            File target = new File(dir, entry.getName());
+            checkSubchild(dir, target);
+            write(zip, target);
+        }
+        
+        // The central directory and anything after it is left unread
+        drain(filtered);
+        drain(in);
+    }
+    
+    /**
+     * Move extracted files into place.
+     * 
+     * @param dir the directory to move files from
+     * @param target the directory to move them into
+     * @param log the uninstall log
+     * @throws IOException on I/O error
+     */
+    private void promote(File dir, File target, UninstallLog log) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Could not read the extracted files in " + dir);
+        }
+        
+        for (File file : files) {
+            File dest = new File(target, file.getName());
+            checkSubchild(getFile().getParentFile(), dest);
+            
+            if (file.isDirectory()) {
+                promote(file, dest, log);
+                file.delete();
+                continue;
+            }
+            
+            log.add(getFile(), dest);
+            
+            // If we're not replacing, don't delete the existing file!
+            if (getOverwrite() != null && dest.exists()) {
+                file.delete();
+                continue;
+            }
+            
+            dest.getParentFile().mkdirs();
+            dest.delete();
+            if (!file.renameTo(dest)) {
+                LauncherUtils.copyFile(file, dest);
+                file.delete();
+            }
+        }
+    }
+    
+    /**
+     * Write the downloaded archive, with its stream filters applied, to a
+     * file.
+     * 
+     * @param target the file
+     * @throws IOException on I/O error
+     */
+    private void unfilter(File target) throws IOException {
+        InputStream in = null;
+        OutputStream out = null;
+        
+        try {
+            in = getInputStream();
+            out = new FileOutputStream(target);
+            
+            byte[] buffer = new byte[1024 * 64];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+        } finally {
+            LauncherUtils.close(out);
+            LauncherUtils.close(in);
+        }
+    }
+    
+    /**
+     * Write the current entry of an archive to a file.
+     * 
+     * @param zip the archive
+     * @param target the file
+     * @throws IOException on I/O error
+     */
+    private static void write(JarInputStream zip, File target) throws IOException {
+        BufferedOutputStream out = null;
+        try {
+            target.getParentFile().mkdirs();
+            out = new BufferedOutputStream(
+                    new FileOutputStream(target));
+
+            byte[] buffer = new byte[8192];
+
+            int ret = zip.read(buffer, 0, buffer.length);
+            while (ret >= 1) {
+                out.write(buffer, 0, ret);
+                ret = zip.read(buffer, 0, buffer.length);
+            }
+        } finally {
+            LauncherUtils.close(out);
+        }
+    }
+    
+    /**
+     * Read a stream to its end.
+     * 
+     * @param in the stream
+     * @throws IOException on I/O error
+     */
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (in.read(buffer) != -1) {
+        }
+    }
+    
     /**
      * Returns whether the given path is in META-INF.
      * 
@@ -0,0 +1,98 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.model;
+
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlValue;
+
+/**
+ * Updates a jar or zip file from one earlier version by downloading only
+ * the entries that changed, and putting the file together again.
+ * 
+ * <p>The list of entries is shared by every earlier version, while the
+ * changed entries are kept gzipped by hash under
+ * {@link #OBJECTS_DIR} in the group.</p>
+ */
+public class EntryDiff {
+    
+    public static final String OBJECTS_DIR = "_entries/objects/";
+    
+    private String target;
+    private String from;
+    private long size;
+    private String filename;
+
+    /**
+     * Get the filename of the file that this updates, as it is in the group.
+     * 
+     * @return the filename
+     */
+    @XmlAttribute(name = "file")
+    public String getTarget() {
+        return target;
+    }
+
+    public void setTarget(String target) {
+        this.target = target;
+    }
+
+    /**
+     * Get the version that this updates from.
+     * 
+     * @return the version
+     */
+    @XmlAttribute
+    public String getFrom() {
+        return from;
+    }
+
+    public void setFrom(String from) {
+        this.from = from;
+    }
+
+    /**
+     * Get the number of bytes to download, which is the list and every
+     * entry that changed since the version that this updates from.
+     * 
+     * @return the size
+     */
+    @XmlAttribute
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    /**
+     * Get the filename of the list of entries.
+     * 
+     * @return the filename
+     */
+    @XmlValue
+    public String getFilename() {
+        return filename;
+    }
+
+    public void setFilename(String filename) {
+        this.filename = filename;
+    }
+
+}
@@ -31,6 +31,7 @@ import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlElements;
 import javax.xml.bind.annotation.XmlEnumValue;
 import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlTransient;
 
 import com.sk89q.mclauncher.util.LauncherUtils;
 
@@ -38,12 +39,28 @@ import com.sk89q.mclauncher.util.LauncherUtils;
 public class FileGroup {
     
     public enum VerificationMethod {
-        @XmlEnumValue("md5") MD5;
+        @XmlEnumValue("md5") MD5("MD5"),
+        @XmlEnumValue("sha1") SHA1("SHA-1"),
+        @XmlEnumValue("sha256") SHA256("SHA-256");
+        
+        private final String algorithm;
+        
+        private VerificationMethod(String algorithm) {
+            this.algorithm = algorithm;
+        }
+        
+        public String getAlgorithm() {
+            return algorithm;
+        }
     }
     
     private String source;
     private String dest;
     private VerificationMethod verify;
+    private String algorithm;
+    private List<String> mirrors = new ArrayList<String>();
+    private List<Patch> patches = new ArrayList<Patch>();
+    private List<EntryDiff> entryDiffs = new ArrayList<EntryDiff>();
 
     private List<PackageFile> files = new ArrayList<PackageFile>();
 
@@ -74,6 +91,120 @@ public class FileGroup {
         this.verify = verify;
     }
 
+    /**
+     * Get the name of the digest algorithm to verify files with, for
+     * algorithms that {@link VerificationMethod} does not list. This takes
+     * precedence over the verification method.
+     * 
+     * @return the algorithm name, as known to {@link MessageDigest}, or null
+     */
+    @XmlAttribute
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public void setAlgorithm(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Get the mirrors of this group. Each mirror is used in place of the
+     * source, and may be relative to the base URL.
+     * 
+     * @return the list of mirrors
+     */
+    @XmlElement(name = "mirror")
+    public List<String> getMirrors() {
+        return mirrors;
+    }
+
+    public void setMirrors(List<String> mirrors) {
+        this.mirrors = mirrors;
+    }
+    
+    /**
+     * Get the patches that update files of this group from earlier versions.
+     * 
+     * @return the list of patches
+     */
+    @XmlElement(name = "patch")
+    public List<Patch> getPatches() {
+        return patches;
+    }
+
+    public void setPatches(List<Patch> patches) {
+        this.patches = patches;
+    }
+    
+    /**
+     * Find the patch that updates a file from the given version.
+     * 
+     * @param file the file
+     * @param version the version that is installed
+     * @return the patch, or null if there is none
+     */
+    public Patch findPatch(PackageFile file, String version) {
+        if (patches == null) {
+            return null;
+        }
+        for (Patch patch : patches) {
+            if (file.getFilename().equals(patch.getTarget()) && 
+                    version.equals(patch.getFrom())) {
+                return patch;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Get the lists of changed entries that update jar and zip files of this
+     * group from earlier versions.
+     * 
+     * @return the list of entry diffs
+     */
+    @XmlElement(name = "entries")
+    public List<EntryDiff> getEntryDiffs() {
+        return entryDiffs;
+    }
+
+    public void setEntryDiffs(List<EntryDiff> entryDiffs) {
+        this.entryDiffs = entryDiffs;
+    }
+    
+    /**
+     * Find the entry diff that updates a file from the given version.
+     * 
+     * @param file the file
+     * @param version the version that is installed
+     * @return the entry diff, or null if there is none
+     */
+    public EntryDiff findEntryDiff(PackageFile file, String version) {
+        if (entryDiffs == null) {
+            return null;
+        }
+        for (EntryDiff diff : entryDiffs) {
+            if (file.getFilename().equals(diff.getTarget()) && 
+                    version.equals(diff.getFrom())) {
+                return diff;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Get the source followed by every mirror.
+     * 
+     * @return the list of sources
+     */
+    public List<String> getSources() {
+        List<String> sources = new ArrayList<String>();
+        sources.add(getSource());
+        if (mirrors != null) {
+            sources.addAll(mirrors);
+        }
+        return sources;
+    }
+
     @XmlElements({ 
             @XmlElement(name = "archive", type = Archive.class),
             @XmlElement(name = "file", type = SingleFile.class) })
@@ -94,8 +225,43 @@ public class FileGroup {
     }
 
     public URL getURL(URL baseUrl, PackageFile file) {
+        return getURL(baseUrl, getSource(), file);
+    }
+
+    public URL getURL(URL baseUrl, String source, PackageFile file) {
         try {
-            return LauncherUtils.concat(baseUrl, getSource() + file.getFilename());
+            return LauncherUtils.concat(baseUrl, source + file.getFilename());
+        } catch (MalformedURLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public URL getURL(URL baseUrl, Patch patch) {
+        try {
+            return LauncherUtils.concat(baseUrl, getSource() + patch.getFilename());
+        } catch (MalformedURLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public URL getURL(URL baseUrl, EntryDiff diff) {
+        try {
+            return LauncherUtils.concat(baseUrl, getSource() + diff.getFilename());
+        } catch (MalformedURLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Get the URL of a changed entry.
+     * 
+     * @param baseUrl the base URL
+     * @param hash the hash of the entry
+     * @return the URL
+     */
+    public URL getEntryURL(URL baseUrl, String hash) {
+        try {
+            return LauncherUtils.concat(baseUrl, getSource() + EntryDiff.OBJECTS_DIR + hash);
         } catch (MalformedURLException e) {
             throw new RuntimeException(e);
         }
@@ -107,11 +273,28 @@ public class FileGroup {
         }
     }
     
-    public MessageDigest createMessageDigest() throws NoSuchAlgorithmException {
+    /**
+     * Get the name of the digest algorithm that files are verified with.
+     * 
+     * @return the algorithm name, or null if files are not verified
+     */
+    @XmlTransient
+    public String getDigestAlgorithm() {
+        if (getAlgorithm() != null) {
+            return getAlgorithm();
+        }
         if (getVerify() == null) {
             return null;
         }
-        return MessageDigest.getInstance(getVerify().name());
+        return getVerify().getAlgorithm();
+    }
+    
+    public MessageDigest createMessageDigest() throws NoSuchAlgorithmException {
+        String algorithm = getDigestAlgorithm();
+        if (algorithm == null) {
+            return null;
+        }
+        return MessageDigest.getInstance(algorithm);
     }
 
 }
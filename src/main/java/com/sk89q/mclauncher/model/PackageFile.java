@@ -50,6 +50,7 @@ public abstract class PackageFile {
     private String filename;
     private String finalFilename;
     private String version;
+    private String hash;
     private ExistingFilePolicy overwrite;
 
     private transient boolean ignored;
@@ -166,6 +167,25 @@ public abstract class PackageFile {
         this.version = LauncherUtils.getHexString(digest);
     }
 
+    /**
+     * Get the expected digest of the downloaded file, in hex, computed with
+     * the algorithm of the file's group.
+     * 
+     * @return the hash, or null if not known
+     */
+    @XmlAttribute
+    public String getHash() {
+        return hash;
+    }
+
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+
+    public void setHash(byte[] digest) {
+        this.hash = LauncherUtils.getHexString(digest);
+    }
+
     @XmlAttribute
     public ExistingFilePolicy getOverwrite() {
         return overwrite;
@@ -234,7 +254,18 @@ public abstract class PackageFile {
 
     @XmlTransient
     public InputStream getInputStream() throws IOException {
-        InputStream in = new BufferedInputStream(new FileInputStream(getTempFile()));
+        return filter(new BufferedInputStream(new FileInputStream(getTempFile())));
+    }
+
+    /**
+     * Apply the stream filters of this file (decompression, for example) to
+     * a stream of the downloaded data.
+     * 
+     * @param in the downloaded data
+     * @return the filtered stream
+     * @throws IOException on I/O error
+     */
+    public InputStream filter(InputStream in) throws IOException {
         for (String filterExt : filterExts) {
             in = FileStreamFilters.get(filterExt).filter(in);
         }
@@ -0,0 +1,103 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.model;
+
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlValue;
+
+import com.sk89q.mclauncher.util.LauncherUtils;
+
+/**
+ * A binary patch that turns one earlier version of a file in the same
+ * group into its current version.
+ */
+public class Patch {
+    
+    private String target;
+    private String from;
+    private long size;
+    private String hash;
+    private String filename;
+
+    /**
+     * Get the filename of the file that this patch updates, as it is in
+     * the group.
+     * 
+     * @return the filename
+     */
+    @XmlAttribute(name = "file")
+    public String getTarget() {
+        return target;
+    }
+
+    public void setTarget(String target) {
+        this.target = target;
+    }
+
+    /**
+     * Get the version that this patch applies to.
+     * 
+     * @return the version
+     */
+    @XmlAttribute
+    public String getFrom() {
+        return from;
+    }
+
+    public void setFrom(String from) {
+        this.from = from;
+    }
+
+    @XmlAttribute
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    /**
+     * Get the hash of the file once patched.
+     * 
+     * @return the hash, in hex
+     */
+    @XmlAttribute
+    public String getHash() {
+        return hash;
+    }
+
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+
+    public void setHash(byte[] hash) {
+        this.hash = LauncherUtils.getHexString(hash);
+    }
+
+    @XmlValue
+    public String getFilename() {
+        return filename;
+    }
+
+    public void setFilename(String filename) {
+        this.filename = filename;
+    }
+
+}
@@ -34,6 +34,7 @@ public class UpdateManifest {
     private String name;
     private String latestVersion;
     private String packageUrl;
+    private String binaryPackageUrl;
     private String newsUrl;
     
     @XmlElement
@@ -76,6 +77,22 @@ public class UpdateManifest {
         return LauncherUtils.concat(baseUrl, getPackageURL());
     }
 
+    @XmlElement(name = "binarypackageurl")
+    public String getBinaryPackageURL() {
+        return binaryPackageUrl;
+    }
+
+    public void setBinaryPackageURL(String binaryPackageUrl) {
+        this.binaryPackageUrl = binaryPackageUrl;
+    }
+
+    public URL toBinaryPackageURL(URL baseUrl) throws MalformedURLException {
+        if (getBinaryPackageURL() == null) {
+            return null;
+        }
+        return LauncherUtils.concat(baseUrl, getBinaryPackageURL());
+    }
+
     @XmlElement(name = "newsURL")
     public String getNewsUrl() {
         return newsUrl;
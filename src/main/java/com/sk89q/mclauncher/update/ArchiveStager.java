@@ -0,0 +1,165 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.sk89q.mclauncher.update;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sk89q.mclauncher.model.Archive;
+import com.sk89q.mclauncher.util.LauncherUtils;
+
+/**
+ * Extracts an archive into a staging directory while it is being downloaded.
+ * 
+ * <p>The downloader writes to {@link #getOutputStream()}, and the data is
+ * decompressed and extracted on a separate thread as it arrives, so that the
+ * archive never has to be written to disk and read back. The extracted files
+ * stay in the staging directory until the download has been verified.</p>
+ */
+public class ArchiveStager {
+    
+    private static final Logger logger = Logger.getLogger(
+            ArchiveStager.class.getCanonicalName());
+    private static final int PIPE_SIZE = 1024 * 1024;
+    
+    private final Archive archive;
+    private final File dir;
+    private final PipedInputStream in;
+    private final PipedOutputStream out;
+    private final FutureTask<Object> task;
+    
+    /**
+     * Construct the stager. Anything left in the staging directory is
+     * deleted.
+     * 
+     * @param archive the archive
+     * @param dir the staging directory
+     * @throws IOException on I/O error
+     * @throws InterruptedException on interruption
+     */
+    public ArchiveStager(Archive archive, File dir) 
+            throws IOException, InterruptedException {
+        this.archive = archive;
+        this.dir = dir;
+        
+        LauncherUtils.cleanDir(dir);
+        dir.mkdirs();
+        
+        in = new PipedInputStream(PIPE_SIZE);
+        out = new PipedOutputStream(in);
+        task = new FutureTask<Object>(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                extract();
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Get the stream that the downloaded data has to be written to.
+     * 
+     * @return the stream
+     */
+    public OutputStream getOutputStream() {
+        return out;
+    }
+    
+    /**
+     * Get the staging directory.
+     * 
+     * @return the directory
+     */
+    public File getDir() {
+        return dir;
+    }
+    
+    /**
+     * Start extracting on a new thread.
+     */
+    public void start() {
+        Thread thread = new Thread(task, "Archive Extractor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Extract the archive. The pipe is closed on failure so that the
+     * download stops too.
+     * 
+     * @throws IOException on I/O error
+     */
+    private void extract() throws IOException {
+        try {
+            archive.extract(in, dir);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to extract " + archive.getFilename(), e);
+            throw e;
+        } finally {
+            LauncherUtils.close(in);
+        }
+    }
+    
+    /**
+     * Wait for the rest of the archive to be extracted once the download has
+     * finished.
+     * 
+     * @throws IOException if the archive could not be extracted
+     * @throws InterruptedException on interruption
+     */
+    public void finish() throws IOException, InterruptedException {
+        LauncherUtils.close(out);
+        
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Could not extract " + archive.getFilename(), cause);
+        }
+    }
+    
+    /**
+     * Stop extracting and delete the staging directory.
+     */
+    public void abort() {
+        task.cancel(true);
+        LauncherUtils.close(out);
+        LauncherUtils.close(in);
+        
+        try {
+            LauncherUtils.cleanDir(dir);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        dir.delete();
+    }
+
+}
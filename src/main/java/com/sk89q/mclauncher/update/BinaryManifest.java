@@ -0,0 +1,531 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.sk89q.mclauncher.model.Archive;
+import com.sk89q.mclauncher.model.Component;
+import com.sk89q.mclauncher.model.EntryDiff;
+import com.sk89q.mclauncher.model.FileGroup;
+import com.sk89q.mclauncher.model.FileGroup.VerificationMethod;
+import com.sk89q.mclauncher.model.Message;
+import com.sk89q.mclauncher.model.Message.ContentType;
+import com.sk89q.mclauncher.model.PackageFile;
+import com.sk89q.mclauncher.model.PackageFile.ExistingFilePolicy;
+import com.sk89q.mclauncher.model.PackageManifest;
+import com.sk89q.mclauncher.model.Patch;
+import com.sk89q.mclauncher.model.SingleFile;
+import com.sk89q.mclauncher.util.Platform;
+
+/**
+ * Reads and writes package manifests in a compact binary form, which holds
+ * exactly what the XML form does.
+ * 
+ * <p>Every string is kept once in a sorted table, without the prefix that
+ * it shares with the string before it, so the many paths that start the
+ * same way cost little. Everything else refers to strings by their index.
+ * Numbers are written as variable-length integers, and hashes and versions
+ * that are hex are written as their bytes. The whole is deflated.</p>
+ */
+public final class BinaryManifest {
+    
+    private static final int MAGIC = 0x534B424D;
+    private static final int FORMAT_VERSION = 1;
+    
+    private static final int DIGEST_NULL = 0;
+    private static final int DIGEST_BYTES = 1;
+    private static final int DIGEST_STRING = 2;
+    
+    private static final int SINGLE_FILE = 0;
+    private static final int ARCHIVE = 1;
+    
+    private BinaryManifest() {
+    }
+    
+    /**
+     * Write a manifest.
+     * 
+     * @param manifest the manifest
+     * @param out the stream to write to, which is not closed
+     * @throws IOException on I/O error
+     */
+    public static void write(PackageManifest manifest, OutputStream out) throws IOException {
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeByte(FORMAT_VERSION);
+        header.flush();
+        
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, 1024 * 64);
+        Writer writer = new Writer(new DataOutputStream(
+                new BufferedOutputStream(deflated, 1024 * 64)));
+        
+        writer.collect(manifest);
+        writer.writeTable();
+        writer.writeManifest(manifest);
+        
+        writer.out.flush();
+        deflated.finish();
+        deflater.end();
+    }
+    
+    /**
+     * Read a manifest.
+     * 
+     * @param in the stream to read from, which is not closed
+     * @return the manifest
+     * @throws IOException on I/O error, or if the manifest is not valid
+     */
+    public static PackageManifest read(InputStream in) throws IOException {
+        DataInputStream header = new DataInputStream(in);
+        if (header.readInt() != MAGIC) {
+            throw new IOException("Not a binary package manifest");
+        }
+        int version = header.readUnsignedByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unknown binary package manifest version " + version);
+        }
+        
+        Reader reader = new Reader(new DataInputStream(
+                new BufferedInputStream(new InflaterInputStream(in), 1024 * 64)));
+        try {
+            reader.readTable();
+            PackageManifest manifest = reader.readManifest();
+            
+            // Reading to the end checks the checksum of the deflated data
+            if (reader.in.read() != -1) {
+                throw new IOException("The binary package manifest is damaged");
+            }
+            return manifest;
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("The binary package manifest is damaged", e);
+        }
+    }
+    
+    /**
+     * Returns whether a string is written as the bytes that it is the hex of,
+     * which is only done if it can be written back exactly the same.
+     * 
+     * @param s the string
+     * @return true to write it as bytes
+     */
+    private static boolean isHex(String s) {
+        if (s.length() == 0 || s.length() % 2 != 0) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static String name(Enum<?> value) {
+        return value != null ? value.name() : null;
+    }
+    
+    private static <T extends Enum<T>> T parseEnum(Class<T> type, String name) {
+        if (name == null) {
+            return null;
+        }
+        try {
+            return Enum.valueOf(type, name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+    
+    private static class Writer {
+        private final DataOutputStream out;
+        private final Set<String> strings = new HashSet<String>();
+        private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+        private String[] table;
+        
+        Writer(DataOutputStream out) {
+            this.out = out;
+        }
+        
+        private void add(String s) {
+            if (s != null) {
+                strings.add(s);
+            }
+        }
+        
+        private void addDigest(String s) {
+            if (s != null && !isHex(s)) {
+                strings.add(s);
+            }
+        }
+        
+        void collect(PackageManifest manifest) {
+            add(manifest.getVersion());
+            for (Component component : manifest.getComponents()) {
+                add(component.getId());
+                add(component.getTitle());
+                add(component.getDescription());
+            }
+            for (Message message : manifest.getMessages()) {
+                add(message.getId());
+                add(message.getTitle());
+                add(message.getVersion());
+                add(name(message.getPhase()));
+                add(name(message.getType()));
+                add(message.getContent());
+            }
+            for (FileGroup group : manifest.getFileGroups()) {
+                add(group.getSource());
+                add(group.getDest());
+                add(name(group.getVerify()));
+                add(group.getAlgorithm());
+                for (String mirror : group.getMirrors()) {
+                    add(mirror);
+                }
+                for (Patch patch : group.getPatches()) {
+                    add(patch.getTarget());
+                    addDigest(patch.getFrom());
+                    addDigest(patch.getHash());
+                    add(patch.getFilename());
+                }
+                for (EntryDiff diff : group.getEntryDiffs()) {
+                    add(diff.getTarget());
+                    addDigest(diff.getFrom());
+                    add(diff.getFilename());
+                }
+                for (PackageFile file : group.getFiles()) {
+                    add(file.getFilename());
+                    add(name(file.getPlatform()));
+                    add(file.getComponentFilter());
+                    addDigest(file.getVersion());
+                    addDigest(file.getHash());
+                    add(name(file.getOverwrite()));
+                }
+            }
+        }
+        
+        void writeTable() throws IOException {
+            table = strings.toArray(new String[strings.size()]);
+            Arrays.sort(table);
+            writeVarLong(table.length);
+            String last = "";
+            for (int i = 0; i < table.length; i++) {
+                String s = table[i];
+                indexes.put(s, i + 1);
+                int shared = 0;
+                int max = Math.min(last.length(), s.length());
+                while (shared < max && last.charAt(shared) == s.charAt(shared)) {
+                    shared++;
+                }
+                if (shared > 0 && Character.isHighSurrogate(s.charAt(shared - 1))) {
+                    shared--;
+                }
+                byte[] suffix = s.substring(shared).getBytes("UTF-8");
+                writeVarLong(shared);
+                writeVarLong(suffix.length);
+                out.write(suffix);
+                last = s;
+            }
+        }
+        
+        void writeManifest(PackageManifest manifest) throws IOException {
+            writeString(manifest.getVersion());
+            
+            writeVarLong(manifest.getComponents().size());
+            for (Component component : manifest.getComponents()) {
+                writeString(component.getId());
+                writeString(component.getTitle());
+                writeString(component.getDescription());
+                out.writeByte((component.isDefaultSelected() ? 1 : 0) | 
+                        (component.isRequired() ? 2 : 0));
+            }
+            
+            writeVarLong(manifest.getMessages().size());
+            for (Message message : manifest.getMessages()) {
+                writeString(message.getId());
+                writeString(message.getTitle());
+                writeString(message.getVersion());
+                writeString(name(message.getPhase()));
+                out.writeBoolean(message.isAgreement());
+                writeString(name(message.getType()));
+                writeString(message.getContent());
+            }
+            
+            writeVarLong(manifest.getFileGroups().size());
+            for (FileGroup group : manifest.getFileGroups()) {
+                writeString(group.getSource());
+                writeString(group.getDest());
+                writeString(name(group.getVerify()));
+                writeString(group.getAlgorithm());
+                
+                writeVarLong(group.getMirrors().size());
+                for (String mirror : group.getMirrors()) {
+                    writeString(mirror);
+                }
+                
+                writeVarLong(group.getPatches().size());
+                for (Patch patch : group.getPatches()) {
+                    writeString(patch.getTarget());
+                    writeDigest(patch.getFrom());
+                    writeVarLong(patch.getSize());
+                    writeDigest(patch.getHash());
+                    writeString(patch.getFilename());
+                }
+                
+                writeVarLong(group.getEntryDiffs().size());
+                for (EntryDiff diff : group.getEntryDiffs()) {
+                    writeString(diff.getTarget());
+                    writeDigest(diff.getFrom());
+                    writeVarLong(diff.getSize());
+                    writeString(diff.getFilename());
+                }
+                
+                writeVarLong(group.getFiles().size());
+                for (PackageFile file : group.getFiles()) {
+                    out.writeByte(file instanceof Archive ? ARCHIVE : SINGLE_FILE);
+                    writeString(file.getFilename());
+                    writeVarLong(file.getSize());
+                    writeString(name(file.getPlatform()));
+                    writeString(file.getComponentFilter());
+                    writeDigest(file.getVersion());
+                    writeDigest(file.getHash());
+                    writeString(name(file.getOverwrite()));
+                }
+            }
+        }
+        
+        private void writeString(String s) throws IOException {
+            writeVarLong(s != null ? indexes.get(s) : 0);
+        }
+        
+        private void writeDigest(String s) throws IOException {
+            if (s == null) {
+                out.writeByte(DIGEST_NULL);
+            } else if (isHex(s)) {
+                out.writeByte(DIGEST_BYTES);
+                writeVarLong(s.length() / 2);
+                for (int i = 0; i < s.length(); i += 2) {
+                    out.writeByte(Integer.parseInt(s.substring(i, i + 2), 16));
+                }
+            } else {
+                out.writeByte(DIGEST_STRING);
+                writeString(s);
+            }
+        }
+        
+        private void writeVarLong(long value) throws IOException {
+            if (value < 0) {
+                throw new IOException("Negative value " + value);
+            }
+            while ((value & ~0x7FL) != 0) {
+                out.writeByte((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte((int) value);
+        }
+    }
+    
+    private static class Reader {
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+        
+        private final DataInputStream in;
+        private String[] table;
+        
+        Reader(DataInputStream in) {
+            this.in = in;
+        }
+        
+        void readTable() throws IOException {
+            table = new String[readCount()];
+            String last = "";
+            for (int i = 0; i < table.length; i++) {
+                int shared = readCount();
+                byte[] suffix = new byte[readCount()];
+                in.readFully(suffix);
+                last = last.substring(0, shared) + new String(suffix, "UTF-8");
+                table[i] = last;
+            }
+        }
+        
+        PackageManifest readManifest() throws IOException {
+            PackageManifest manifest = new PackageManifest();
+            manifest.setVersion(readString());
+            
+            int count = readCount();
+            for (int i = 0; i < count; i++) {
+                Component component = new Component();
+                component.setId(readString());
+                component.setTitle(readString());
+                component.setDescription(readString());
+                int flags = in.readUnsignedByte();
+                component.setDefaultSelected((flags & 1) != 0);
+                component.setRequired((flags & 2) != 0);
+                manifest.getComponents().add(component);
+            }
+            
+            count = readCount();
+            for (int i = 0; i < count; i++) {
+                Message message = new Message();
+                message.setId(readString());
+                message.setTitle(readString());
+                message.setVersion(readString());
+                message.setPhase(parseEnum(Phase.class, readString()));
+                message.setAgreement(in.readBoolean());
+                message.setType(parseEnum(ContentType.class, readString()));
+                message.setContent(readString());
+                manifest.getMessages().add(message);
+            }
+            
+            count = readCount();
+            List<FileGroup> groups = new ArrayList<FileGroup>(count);
+            for (int i = 0; i < count; i++) {
+                groups.add(readGroup());
+            }
+            manifest.setFileGroups(groups);
+            
+            return manifest;
+        }
+        
+        private FileGroup readGroup() throws IOException {
+            FileGroup group = new FileGroup();
+            group.setSource(readString());
+            group.setDest(readString());
+            group.setVerify(parseEnum(VerificationMethod.class, readString()));
+            group.setAlgorithm(readString());
+            
+            int count = readCount();
+            for (int i = 0; i < count; i++) {
+                group.getMirrors().add(readString());
+            }
+            
+            count = readCount();
+            for (int i = 0; i < count; i++) {
+                Patch patch = new Patch();
+                patch.setTarget(readString());
+                patch.setFrom(readDigest());
+                patch.setSize(readVarLong());
+                patch.setHash(readDigest());
+                patch.setFilename(readString());
+                group.getPatches().add(patch);
+            }
+            
+            count = readCount();
+            for (int i = 0; i < count; i++) {
+                EntryDiff diff = new EntryDiff();
+                diff.setTarget(readString());
+                diff.setFrom(readDigest());
+                diff.setSize(readVarLong());
+                diff.setFilename(readString());
+                group.getEntryDiffs().add(diff);
+            }
+            
+            count = readCount();
+            List<PackageFile> files = new ArrayList<PackageFile>(count);
+            for (int i = 0; i < count; i++) {
+                int type = in.readUnsignedByte();
+                PackageFile file;
+                if (type == ARCHIVE) {
+                    file = new Archive();
+                } else if (type == SINGLE_FILE) {
+                    file = new SingleFile();
+                } else {
+                    throw new IOException("Unknown type of file " + type);
+                }
+                file.setFilename(readString());
+                file.setSize(readVarLong());
+                file.setPlatform(parseEnum(Platform.class, readString()));
+                file.setComponentFilter(readString());
+                file.setVersion(readDigest());
+                file.setHash(readDigest());
+                file.setOverwrite(parseEnum(ExistingFilePolicy.class, readString()));
+                files.add(file);
+            }
+            group.setFiles(files);
+            
+            return group;
+        }
+        
+        private String readString() throws IOException {
+            int index = readCount();
+            return index == 0 ? null : table[index - 1];
+        }
+        
+        private String readDigest() throws IOException {
+            int type = in.readUnsignedByte();
+            if (type == DIGEST_NULL) {
+                return null;
+            } else if (type == DIGEST_BYTES) {
+                byte[] data = new byte[readCount()];
+                in.readFully(data);
+                char[] hex = new char[data.length * 2];
+                for (int i = 0; i < data.length; i++) {
+                    hex[i * 2] = HEX[(data[i] >> 4) & 0xF];
+                    hex[i * 2 + 1] = HEX[data[i] & 0xF];
+                }
+                return new String(hex);
+            } else if (type == DIGEST_STRING) {
+                return readString();
+            } else {
+                throw new IOException("Unknown type of digest " + type);
+            }
+        }
+        
+        private int readCount() throws IOException {
+            long value = readVarLong();
+            if (value > Integer.MAX_VALUE) {
+                throw new IOException("The binary package manifest is damaged");
+            }
+            return (int) value;
+        }
+        
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.read();
+                if (b == -1) {
+                    throw new EOFException();
+                }
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("The binary package manifest is damaged");
+        }
+    }
+
+}
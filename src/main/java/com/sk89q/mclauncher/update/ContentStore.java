@@ -0,0 +1,454 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sk89q.mclauncher.Launcher;
+import com.sk89q.mclauncher.util.LauncherUtils;
+
+/**
+ * A launcher-wide store of downloaded files, shared by every configuration
+ * and keyed by the hash of their contents, so that a file that several
+ * configurations use is only downloaded once.
+ * 
+ * <p>Files are always copied into the store, so that the store never shares
+ * its contents with a file that an installation may write to. They can be
+ * handed out again as hard links where the file system supports them, but
+ * only files that are never changed in place, such as jars, should be. An
+ * installation records which stored files it uses with
+ * {@link #setReferences(File, Set)}, keyed by its uninstall log. Once the
+ * store is larger than its limit, the least recently used files that no
+ * installation refers to are removed.</p>
+ */
+public class ContentStore {
+    
+    private static final Logger logger = 
+            Logger.getLogger(ContentStore.class.getCanonicalName());
+    
+    private static ContentStore instance;
+    
+    private final File objectsDir;
+    private final File indexFile;
+    private final Map<String, StoredObject> objects = new HashMap<String, StoredObject>();
+    private final Map<String, Set<String>> references = new HashMap<String, Set<String>>();
+    private long maxSize = 1024L * 1024L * 1024L;
+    private boolean loaded = false;
+    
+    /**
+     * Construct the store.
+     * 
+     * @param dir the directory of the store
+     */
+    public ContentStore(File dir) {
+        this.objectsDir = new File(dir, "objects");
+        this.indexFile = new File(dir, "index.dat");
+    }
+    
+    /**
+     * Get the store shared by the launcher.
+     * 
+     * @return the store
+     */
+    public static synchronized ContentStore getInstance() {
+        if (instance == null) {
+            instance = new ContentStore(new File(Launcher.getLauncherDataDir(), "store"));
+        }
+        return instance;
+    }
+    
+    /**
+     * Get the key of a file's contents.
+     * 
+     * @param algorithm the name of the digest algorithm of the hash
+     * @param hash the hash, in hex
+     * @return the key
+     */
+    public static String getKey(String algorithm, String hash) {
+        String normalized = hash.toLowerCase().replaceAll("^0+", "");
+        return algorithm.toLowerCase().replaceAll("[^a-z0-9]", "") + "/" + normalized;
+    }
+    
+    /**
+     * Get the size above which unused files are removed.
+     * 
+     * @return the size in bytes
+     */
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+    
+    /**
+     * Set the size above which unused files are removed.
+     * 
+     * @param maxSize the size in bytes
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = Math.max(0, maxSize);
+    }
+    
+    /**
+     * Returns whether the store has the given contents.
+     * 
+     * @param key the key
+     * @return true if stored
+     */
+    public synchronized boolean contains(String key) {
+        load();
+        return objects.containsKey(key) && getObjectFile(key).exists();
+    }
+    
+    /**
+     * Copy stored contents to a file.
+     * 
+     * @param key the key
+     * @param target the file to create, which is replaced if it exists
+     * @param link true to create a hard link rather than a copy where 
+     *             possible, which must only be done for files that are 
+     *             never changed in place
+     * @return true if the contents were stored
+     * @throws IOException on I/O error
+     */
+    public boolean copyTo(String key, File target, boolean link) throws IOException {
+        File object;
+        synchronized (this) {
+            load();
+            StoredObject stored = objects.get(key);
+            object = getObjectFile(key);
+            if (stored == null || !object.exists()) {
+                return false;
+            }
+            stored.lastUsed = System.currentTimeMillis();
+        }
+        
+        target.getParentFile().mkdirs();
+        target.delete();
+        if (!link || !link(object, target)) {
+            LauncherUtils.copyFile(object, target);
+        }
+        return true;
+    }
+    
+    /**
+     * Add a file to the store. The contents must already have been verified
+     * against the key.
+     * 
+     * @param key the key
+     * @param source the file, which is left where it is
+     * @throws IOException on I/O error
+     */
+    public void put(String key, File source) throws IOException {
+        synchronized (this) {
+            load();
+            if (objects.containsKey(key) && getObjectFile(key).exists()) {
+                objects.get(key).lastUsed = System.currentTimeMillis();
+                return;
+            }
+        }
+        
+        File object = getObjectFile(key);
+        File temp = new File(object.getPath() + ".tmp" + Thread.currentThread().getId());
+        object.getParentFile().mkdirs();
+        temp.delete();
+        
+        // Never linked, as the source is about to be installed
+        LauncherUtils.copyFile(source, temp);
+        
+        object.delete();
+        if (!temp.renameTo(object)) {
+            temp.delete();
+            throw new IOException("Could not add " + source + " to the store");
+        }
+        
+        synchronized (this) {
+            objects.put(key, new StoredObject(object.length(), System.currentTimeMillis()));
+        }
+    }
+    
+    /**
+     * Remove contents from the store, such as after they were found to be
+     * damaged.
+     * 
+     * @param key the key
+     */
+    public synchronized void remove(String key) {
+        load();
+        objects.remove(key);
+        getObjectFile(key).delete();
+    }
+    
+    /**
+     * Set the stored contents that an installation uses, replacing those
+     * set before.
+     * 
+     * @param uninstallLog the uninstall log of the installation
+     * @param keys the keys of the contents that it uses
+     */
+    public synchronized void setReferences(File uninstallLog, Set<String> keys) {
+        load();
+        references.put(uninstallLog.getAbsolutePath(), new HashSet<String>(keys));
+    }
+    
+    /**
+     * Get the number of installations that use the given contents.
+     * 
+     * @param key the key
+     * @return the number of installations
+     */
+    public synchronized int getReferenceCount(String key) {
+        load();
+        int count = 0;
+        for (Set<String> keys : references.values()) {
+            if (keys.contains(key)) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Remove the least recently used contents that no installation uses
+     * until the store fits its size limit. Installations whose uninstall
+     * logs have gone are forgotten first.
+     */
+    public synchronized void evict() {
+        load();
+        
+        Iterator<String> it = references.keySet().iterator();
+        while (it.hasNext()) {
+            if (!new File(it.next()).exists()) {
+                it.remove();
+            }
+        }
+        
+        Set<String> used = new HashSet<String>();
+        for (Set<String> keys : references.values()) {
+            used.addAll(keys);
+        }
+        
+        long totalSize = 0;
+        List<String> unused = new ArrayList<String>();
+        for (Map.Entry<String, StoredObject> entry : objects.entrySet()) {
+            totalSize += entry.getValue().size;
+            if (!used.contains(entry.getKey())) {
+                unused.add(entry.getKey());
+            }
+        }
+        
+        Collections.sort(unused, new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                long t1 = objects.get(o1).lastUsed;
+                long t2 = objects.get(o2).lastUsed;
+                return t1 < t2 ? -1 : (t1 > t2 ? 1 : 0);
+            }
+        });
+        
+        int removed = 0;
+        for (String key : unused) {
+            if (totalSize <= maxSize) {
+                break;
+            }
+            totalSize -= objects.remove(key).size;
+            getObjectFile(key).delete();
+            removed++;
+        }
+        
+        if (removed > 0) {
+            logger.info(String.format("Removed %d unused files from the store; %,d KB remain",
+                    removed, totalSize / 1024));
+        }
+    }
+    
+    /**
+     * Save the index of the store.
+     * 
+     * @throws IOException on I/O error
+     */
+    public synchronized void save() throws IOException {
+        load();
+        indexFile.getParentFile().mkdirs();
+        File temp = new File(indexFile.getPath() + ".tmp");
+        BufferedWriter writer = null;
+        
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(temp), "UTF-8"));
+            for (Map.Entry<String, StoredObject> entry : objects.entrySet()) {
+                writer.write("O\t" + entry.getKey() + "\t" + entry.getValue().size + 
+                        "\t" + entry.getValue().lastUsed);
+                writer.newLine();
+            }
+            for (Map.Entry<String, Set<String>> entry : references.entrySet()) {
+                for (String key : entry.getValue()) {
+                    writer.write("R\t" + entry.getKey() + "\t" + key);
+                    writer.newLine();
+                }
+            }
+        } finally {
+            LauncherUtils.close(writer);
+        }
+        
+        indexFile.delete();
+        if (!temp.renameTo(indexFile)) {
+            throw new IOException("Could not write " + indexFile);
+        }
+    }
+    
+    /**
+     * Read the index, if it has not been read yet. Stored files that are
+     * missing from the index are added to it.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        
+        if (indexFile.exists()) {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(indexFile), "UTF-8"));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split("\t");
+                    if (parts.length == 4 && parts[0].equals("O")) {
+                        objects.put(parts[1], new StoredObject(
+                                Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+                    } else if (parts.length == 3 && parts[0].equals("R")) {
+                        Set<String> keys = references.get(parts[1]);
+                        if (keys == null) {
+                            keys = new HashSet<String>();
+                            references.put(parts[1], keys);
+                        }
+                        keys.add(parts[2]);
+                    }
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to read " + indexFile, e);
+            } catch (NumberFormatException e) {
+                logger.log(Level.WARNING, "Failed to read " + indexFile, e);
+            } finally {
+                LauncherUtils.close(reader);
+            }
+        }
+        
+        // Files may have been removed, or added by an index that was lost
+        Iterator<Map.Entry<String, StoredObject>> it = objects.entrySet().iterator();
+        while (it.hasNext()) {
+            if (!getObjectFile(it.next().getKey()).exists()) {
+                it.remove();
+            }
+        }
+        
+        for (File algorithm : listFiles(objectsDir)) {
+            for (File bucket : listFiles(algorithm)) {
+                for (File file : listFiles(bucket)) {
+                    String key = algorithm.getName() + "/" + file.getName();
+                    if (file.isFile() && !file.getName().contains(".") && 
+                            !objects.containsKey(key)) {
+                        objects.put(key, new StoredObject(file.length(), file.lastModified()));
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * List the files in a directory.
+     * 
+     * @param dir the directory
+     * @return the files, which are empty if the directory cannot be read
+     */
+    private static File[] listFiles(File dir) {
+        File[] files = dir.listFiles();
+        return files != null ? files : new File[0];
+    }
+    
+    /**
+     * Get the file that holds the given contents.
+     * 
+     * @param key the key
+     * @return the file
+     */
+    private File getObjectFile(String key) {
+        int index = key.indexOf('/');
+        String hash = key.substring(index + 1);
+        String bucket = hash.length() >= 2 ? hash.substring(0, 2) : "_";
+        return new File(objectsDir, key.substring(0, index) + "/" + bucket + "/" + hash);
+    }
+    
+    /**
+     * Create a hard link to a file, where supported.
+     * 
+     * <p>Hard links need Java 7, so they are created through reflection
+     * and a copy is made on older versions.</p>
+     * 
+     * @param existing the existing file
+     * @param link the link to create
+     * @return true if the link was created
+     */
+    private static boolean link(File existing, File link) {
+        try {
+            Method toPath = File.class.getMethod("toPath");
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            Class<?> filesClass = Class.forName("java.nio.file.Files");
+            Method createLink = filesClass.getMethod("createLink", pathClass, pathClass);
+            createLink.invoke(null, toPath.invoke(link), toPath.invoke(existing));
+            return true;
+        } catch (Exception e) {
+            logger.log(Level.FINE, "Could not link " + link + " to " + existing, e);
+            return false;
+        }
+    }
+    
+    /**
+     * The size and last use of stored contents.
+     */
+    private static class StoredObject {
+        private final long size;
+        private long lastUsed;
+        
+        private StoredObject(long size, long lastUsed) {
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+}
@@ -0,0 +1,219 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs install tasks on a pool of threads.
+ * 
+ * <p>Every task names the file or directory that it writes to. A task
+ * waits for all the tasks submitted before it whose paths are the same as,
+ * inside, or around its own, so that files that overwrite one another are
+ * still installed in order. Other tasks run at the same time.</p>
+ * 
+ * <p>Once a task fails, tasks that have not started yet are skipped, but
+ * those already running are left to finish. Every failure is kept so that
+ * it can be reported.</p>
+ */
+public class DeployScheduler {
+    
+    private final ExecutorService executor;
+    private final List<Task> tasks = new ArrayList<Task>();
+    private final TreeMap<String, Task> latest = new TreeMap<String, Task>();
+    private final Map<File, Throwable> failures = new LinkedHashMap<File, Throwable>();
+    private final AtomicInteger completedCount = new AtomicInteger();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile boolean failed = false;
+    
+    /**
+     * Construct the scheduler.
+     * 
+     * @param threads maximum number of concurrent tasks
+     */
+    public DeployScheduler(int threads) {
+        this.executor = Executors.newFixedThreadPool(
+                Math.max(1, threads), new DeployThreadFactory());
+    }
+    
+    /**
+     * Queue an install task.
+     * 
+     * @param target the file or directory that the task writes to
+     * @param task the task
+     */
+    public void submit(File target, Callable<?> task) {
+        Task entry = new Task(target.getAbsoluteFile(), task);
+        String path = entry.target.getPath();
+        
+        // The last task at a path already waits for the earlier ones there,
+        // so only the last task at each overlapping path is needed
+        Task same = latest.get(path);
+        if (same != null) {
+            entry.dependencies.add(same);
+        }
+        
+        for (File parent = entry.target.getParentFile(); parent != null; 
+                parent = parent.getParentFile()) {
+            Task around = latest.get(parent.getPath());
+            if (around != null) {
+                entry.dependencies.add(around);
+            }
+        }
+        
+        String prefix = path + File.separatorChar;
+        String end = path + (char) (File.separatorChar + 1);
+        entry.dependencies.addAll(latest.subMap(prefix, end).values());
+        
+        latest.put(path, entry);
+        tasks.add(entry);
+    }
+    
+    /**
+     * Start running the queued tasks. No more tasks can be submitted after.
+     */
+    public void start() {
+        if (tasks.isEmpty()) {
+            done.countDown();
+            return;
+        }
+        
+        // Tasks start in order, so a task that is waiting never holds up
+        // the tasks that it is waiting for
+        for (Task task : tasks) {
+            executor.execute(task);
+        }
+    }
+    
+    /**
+     * Wait for every task to finish or be skipped.
+     * 
+     * @param timeout the longest time to wait
+     * @param unit the unit of the timeout
+     * @return true if every task has finished or been skipped
+     * @throws InterruptedException on interruption
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+    
+    /**
+     * Cancel all running and queued tasks.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+    
+    /**
+     * Get the number of tasks submitted.
+     * 
+     * @return the number of tasks
+     */
+    public int getCount() {
+        return tasks.size();
+    }
+    
+    /**
+     * Get the number of tasks that have finished or been skipped so far.
+     * 
+     * @return the number of tasks
+     */
+    public int getCompletedCount() {
+        return completedCount.get();
+    }
+    
+    /**
+     * Get the tasks that failed, in the order that they failed.
+     * 
+     * @return a map of the targets of failed tasks to their errors
+     */
+    public Map<File, Throwable> getFailures() {
+        synchronized (failures) {
+            return new LinkedHashMap<File, Throwable>(failures);
+        }
+    }
+    
+    /**
+     * A queued task and the tasks that it has to wait for.
+     */
+    private class Task implements Runnable {
+        private final File target;
+        private final Callable<?> callable;
+        private final List<Task> dependencies = new ArrayList<Task>();
+        private final CountDownLatch finished = new CountDownLatch(1);
+        
+        private Task(File target, Callable<?> callable) {
+            this.target = target;
+            this.callable = callable;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                for (Task dependency : dependencies) {
+                    dependency.finished.await();
+                }
+                
+                if (!failed) {
+                    callable.call();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable t) {
+                failed = true;
+                synchronized (failures) {
+                    failures.put(target, t);
+                }
+            } finally {
+                finished.countDown();
+            }
+            
+            if (completedCount.incrementAndGet() == tasks.size()) {
+                done.countDown();
+            }
+        }
+    }
+    
+    /**
+     * Creates named daemon threads for the install pool.
+     */
+    private static class DeployThreadFactory implements ThreadFactory {
+        private int count = 0;
+        
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Install Worker #" + (++count));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.sk89q.mclauncher.update;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs download tasks on a bounded pool of worker threads, limiting the
+ * total number of concurrent downloads.
+ * 
+ * <p>Tasks are started in the order that they are submitted. The number of
+ * connections to each host is limited separately by a {@link HostLimiter},
+ * where the tasks open their connections.</p>
+ */
+public class DownloadScheduler {
+    
+    private final ExecutorService executor;
+    private final CompletionService<Object> completionService;
+    private int pending = 0;
+    
+    /**
+     * Construct the scheduler.
+     * 
+     * @param threads maximum number of concurrent downloads
+     */
+    public DownloadScheduler(int threads) {
+        this.executor = Executors.newFixedThreadPool(
+                Math.max(1, threads), new WorkerThreadFactory());
+        this.completionService = new ExecutorCompletionService<Object>(executor);
+    }
+    
+    /**
+     * Queue a download task.
+     * 
+     * @param task the task
+     */
+    public void submit(Callable<Object> task) {
+        completionService.submit(task);
+        pending++;
+    }
+    
+    /**
+     * Wait for all the queued tasks to complete. If any task fails, the
+     * remaining tasks are cancelled and the failure is re-thrown.
+     * 
+     * @throws ExecutionException thrown if a task failed
+     * @throws InterruptedException on interruption
+     */
+    public void awaitCompletion() throws ExecutionException, InterruptedException {
+        try {
+            while (pending > 0) {
+                pending--;
+                completionService.take().get();
+            }
+        } catch (ExecutionException e) {
+            shutdown();
+            throw e;
+        } catch (InterruptedException e) {
+            shutdown();
+            throw e;
+        }
+    }
+    
+    /**
+     * Cancel all running and queued tasks.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+    
+    /**
+     * Creates named daemon threads for the worker pool.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private int count = 0;
+        
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Download Worker #" + (++count));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits the number of connections that are open to any one host at once.
+ * 
+ * <p>A permit is taken for the host that a connection actually goes to,
+ * right before it is opened, so that downloads that move on to another
+ * mirror are limited by the host that they use.</p>
+ */
+public class HostLimiter {
+    
+    private final Map<String, Semaphore> hostPermits = new HashMap<String, Semaphore>();
+    private final int permitsPerHost;
+    
+    /**
+     * Construct the limiter.
+     * 
+     * @param permitsPerHost maximum number of connections per host
+     */
+    public HostLimiter(int permitsPerHost) {
+        this.permitsPerHost = Math.max(1, permitsPerHost);
+    }
+    
+    /**
+     * Get the semaphore that limits the connections to the host of a URL.
+     * 
+     * @param url the URL
+     * @return the semaphore
+     */
+    private synchronized Semaphore getPermits(URL url) {
+        String host = url.getHost().toLowerCase();
+        Semaphore permits = hostPermits.get(host);
+        if (permits == null) {
+            permits = new Semaphore(permitsPerHost, true);
+            hostPermits.put(host, permits);
+        }
+        return permits;
+    }
+    
+    /**
+     * Returns whether a connection to the host of a URL could be opened
+     * right away.
+     * 
+     * @param url the URL
+     * @return true if the host has a free permit
+     */
+    public boolean isAvailable(URL url) {
+        return getPermits(url).availablePermits() > 0;
+    }
+    
+    /**
+     * Wait for a permit to connect to the host of a URL.
+     * 
+     * @param url the URL
+     * @throws InterruptedException on interruption
+     */
+    public void acquire(URL url) throws InterruptedException {
+        getPermits(url).acquire();
+    }
+    
+    /**
+     * Take up to the given number of permits for the host of a URL, without
+     * waiting for any.
+     * 
+     * @param url the URL
+     * @param max the most permits to take
+     * @return the number of permits taken
+     */
+    public int tryAcquire(URL url, int max) {
+        Semaphore permits = getPermits(url);
+        int count = 0;
+        while (count < max && permits.tryAcquire()) {
+            count++;
+        }
+        return count;
+    }
+    
+    /**
+     * Give back permits taken for the host of a URL.
+     * 
+     * @param url the URL
+     * @param count the number of permits
+     */
+    public void release(URL url, int count) {
+        getPermits(url).release(count);
+    }
+
+}
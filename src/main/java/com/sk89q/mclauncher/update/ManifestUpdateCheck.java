@@ -24,9 +24,12 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import com.sk89q.mclauncher.Launcher;
 import com.sk89q.mclauncher.config.Configuration;
+import com.sk89q.mclauncher.config.SettingsList;
 import com.sk89q.mclauncher.model.PackageManifest;
 import com.sk89q.mclauncher.model.UpdateManifest;
 import com.sk89q.mclauncher.util.LauncherUtils;
@@ -36,6 +39,9 @@ import com.sk89q.mclauncher.util.LauncherUtils;
  */
 public class ManifestUpdateCheck implements UpdateCheck {
     
+    private static final Logger logger = 
+            Logger.getLogger(ManifestUpdateCheck.class.getCanonicalName());
+    
     private final Configuration configuration;
     private final UpdateCache cache;
     private final UpdateManifestFetcher fetcher;
@@ -80,50 +86,104 @@ public class ManifestUpdateCheck implements UpdateCheck {
         
         URL packageUrl = null;
         UpdateManifest updateManifest = fetcher.getManifest();
+        PackageManifest packageManifest = null;
         
-        // Get the URL to the package
+        // Prefer the binary package manifest if there is one, but the XML
+        // one has the same contents, so fall back to it on any trouble
         try {
-            packageUrl = updateManifest.toPackageURL(fetcher.getUpdateURL());
-        } catch (MalformedURLException e) {
-            throw new UpdateException("Invalid URL: " + updateManifest.getPackageURL());
+            URL binaryUrl = updateManifest.toBinaryPackageURL(fetcher.getUpdateURL());
+            if (binaryUrl != null) {
+                packageManifest = fetchBinaryPackage(binaryUrl);
+                packageUrl = binaryUrl;
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read the binary package manifest " +
+                    "at " + updateManifest.getBinaryPackageURL() + "; using the XML one", e);
         }
         
-        // Get the package manifest
-        HttpURLConnection conn = null;
-        InputStream is = null;
-        PackageManifest packageManifest;
-        
-        try {
-            conn = (HttpURLConnection) packageUrl.openConnection();
-            conn.setRequestMethod("GET");
-            conn.setUseCaches(false);
-            conn.setDoInput(true);
-            conn.setDoOutput(false);
-            conn.setReadTimeout(5000);
-
-            conn.connect();
-            
-            if (conn.getResponseCode() != 200) {
-                throw new IOException("Did not get expected 200 code");
+        if (packageManifest == null) {
+            // Get the URL to the package
+            try {
+                packageUrl = updateManifest.toPackageURL(fetcher.getUpdateURL());
+            } catch (MalformedURLException e) {
+                throw new UpdateException("Invalid URL: " + updateManifest.getPackageURL());
             }
             
-            is = conn.getInputStream();
-            packageManifest = PackageManifestUpdater.parsePackage(is);
-        } catch (IOException e) {
-            throw new UpdateException("Could not fetch the package manifest (" +
-                    e.getMessage() + "). The update cannot be performed.");
-        } finally {
-            LauncherUtils.close(is);
-            if (conn != null) conn.disconnect();
-            conn = null;
+            // Get the package manifest
+            InputStream is = null;
+            HttpURLConnection conn = null;
+            try {
+                conn = openPackage(packageUrl);
+                is = conn.getInputStream();
+                packageManifest = PackageManifestUpdater.parsePackage(is);
+            } catch (IOException e) {
+                throw new UpdateException("Could not fetch the package manifest (" +
+                        e.getMessage() + "). The update cannot be performed.");
+            } finally {
+                LauncherUtils.close(is);
+                if (conn != null) conn.disconnect();
+            }
         }
         
-        return new PackageManifestUpdater(
+        PackageManifestUpdater updater = new PackageManifestUpdater(
                 packageUrl,
                 packageManifest, 
                 configuration.getMinecraftDir(), 
                 cache, 
                 updateManifest.getLatestVersion());
+        updater.readSettings(new SettingsList(
+                Launcher.getInstance().getOptions().getSettings(),
+                configuration.getSettings()));
+        return updater;
+    }
+    
+    /**
+     * Fetch and read a binary package manifest.
+     * 
+     * @param url the URL
+     * @return the package manifest
+     * @throws IOException on I/O error or an unsupported manifest
+     */
+    private PackageManifest fetchBinaryPackage(URL url) throws IOException {
+        InputStream is = null;
+        HttpURLConnection conn = null;
+        try {
+            conn = openPackage(url);
+            is = conn.getInputStream();
+            PackageManifest manifest = BinaryManifest.read(is);
+            if (!manifest.isSupportedVersion()) {
+                throw new IOException("Unsupported package version " + manifest.getVersion());
+            }
+            return manifest;
+        } finally {
+            LauncherUtils.close(is);
+            if (conn != null) conn.disconnect();
+        }
+    }
+    
+    /**
+     * Open a connection to a package manifest.
+     * 
+     * @param url the URL
+     * @return the connection, which has answered with a 200
+     * @throws IOException on I/O error
+     */
+    private HttpURLConnection openPackage(URL url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod("GET");
+        conn.setUseCaches(false);
+        conn.setDoInput(true);
+        conn.setDoOutput(false);
+        conn.setReadTimeout(5000);
+
+        conn.connect();
+        
+        if (conn.getResponseCode() != 200) {
+            conn.disconnect();
+            throw new IOException("Did not get expected 200 code");
+        }
+        
+        return conn;
     }
     
 }
\ No newline at end of file
@@ -0,0 +1,255 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.sk89q.mclauncher.update;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.sk89q.mclauncher.util.LauncherUtils;
+
+/**
+ * Ranks the mirrors of a file group by how quickly they are expected to
+ * deliver a file.
+ * 
+ * <p>Mirrors are probed with a HEAD request to measure their latency, and
+ * every finished download adds to the throughput measured for its mirror.
+ * Failures count against a mirror until it succeeds again. The measurements
+ * are kept in the {@link UpdateCache} for the next update.</p>
+ */
+public class MirrorSelector {
+    
+    private static final Logger logger = Logger.getLogger(
+            MirrorSelector.class.getCanonicalName());
+    private static final int PROBE_TIMEOUT = 5000;
+    private static final int PROBE_THREADS = 8;
+    private static final double DEFAULT_THROUGHPUT = 512 * 1024;
+    private static final long MIN_SAMPLE_SIZE = 64 * 1024;
+    
+    private final URL baseUrl;
+    private final UpdateCache cache;
+    private final Set<String> probed = new HashSet<String>();
+    
+    /**
+     * Construct the selector.
+     * 
+     * @param baseUrl the base URL that relative sources are resolved against
+     * @param cache the cache to keep measurements in
+     */
+    public MirrorSelector(URL baseUrl, UpdateCache cache) {
+        this.baseUrl = baseUrl;
+        this.cache = cache;
+    }
+    
+    /**
+     * Get the measurements of a source.
+     * 
+     * @param source the source, as given in the manifest
+     * @return the measurements
+     */
+    private MirrorStats getStats(String source) {
+        try {
+            return cache.getMirrorStats(
+                    LauncherUtils.concat(baseUrl, String.valueOf(source)).toExternalForm());
+        } catch (MalformedURLException e) {
+            return cache.getMirrorStats(source);
+        }
+    }
+    
+    /**
+     * Sort sources from the best to the worst for a download of the given
+     * size. Sources that are equally good keep their order.
+     * 
+     * @param sources the sources
+     * @param size the size of the download in bytes
+     * @return a new sorted list
+     */
+    public List<String> rank(List<String> sources, final long size) {
+        List<String> ranked = new ArrayList<String>(sources);
+        if (ranked.size() < 2) {
+            return ranked;
+        }
+        
+        final Map<String, Double> estimates = new HashMap<String, Double>();
+        for (String source : ranked) {
+            estimates.put(source, getStats(source).estimate(size, DEFAULT_THROUGHPUT));
+        }
+        
+        Collections.sort(ranked, new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                return Double.compare(estimates.get(o1), estimates.get(o2));
+            }
+        });
+        
+        return ranked;
+    }
+    
+    /**
+     * Probe sources concurrently to measure their latency. Each source is
+     * only probed once per selector, and probes that take too long count as
+     * failures.
+     * 
+     * @param probes a map of sources to the URL of a file to request
+     * @throws InterruptedException on interruption
+     */
+    public void probe(Map<String, URL> probes) throws InterruptedException {
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        final Set<String> pending = Collections.synchronizedSet(new HashSet<String>());
+        
+        synchronized (probed) {
+            for (Map.Entry<String, URL> entry : probes.entrySet()) {
+                final String source = entry.getKey();
+                final URL url = entry.getValue();
+                
+                if (!probed.add(source)) {
+                    continue;
+                }
+                
+                pending.add(source);
+                tasks.add(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        probe(source, url);
+                        pending.remove(source);
+                        return null;
+                    }
+                });
+            }
+        }
+        
+        if (tasks.isEmpty()) {
+            return;
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(PROBE_THREADS, tasks.size()));
+        try {
+            executor.invokeAll(tasks, PROBE_TIMEOUT * 2, TimeUnit.MILLISECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        
+        for (String source : new ArrayList<String>(pending)) {
+            logger.info("Mirror " + source + " did not respond in time");
+            getStats(source).addFailure();
+        }
+    }
+    
+    /**
+     * Probe one source.
+     * 
+     * @param source the source
+     * @param url the URL to request
+     */
+    private void probe(String source, URL url) {
+        MirrorStats stats = getStats(source);
+        HttpURLConnection conn = null;
+        long start = System.nanoTime();
+        
+        try {
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestMethod("HEAD");
+            conn.setUseCaches(false);
+            conn.setConnectTimeout(PROBE_TIMEOUT);
+            conn.setReadTimeout(PROBE_TIMEOUT);
+            
+            int code = conn.getResponseCode();
+            double latency = (System.nanoTime() - start) / 1000000.0;
+            
+            if (code >= 400) {
+                logger.info("Mirror " + source + " responded with " + code);
+                stats.addFailure();
+                conn.disconnect();
+            } else {
+                logger.fine(String.format("Mirror %s responded in %.0f ms", source, latency));
+                stats.addLatency(latency);
+                stats.addSuccess();
+                // Let the connection be reused by the download
+                conn.getInputStream().close();
+            }
+        } catch (IOException e) {
+            logger.info("Mirror " + source + " could not be reached: " + e.getMessage());
+            stats.addFailure();
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+    
+    /**
+     * Record a finished download.
+     * 
+     * @param source the source downloaded from
+     * @param bytes the number of bytes downloaded
+     * @param millis the time the download took
+     */
+    public void recordSuccess(String source, long bytes, long millis) {
+        MirrorStats stats = getStats(source);
+        // Small files mostly measure latency
+        if (bytes >= MIN_SAMPLE_SIZE && millis > 0) {
+            stats.addThroughput(bytes * 1000.0 / millis);
+        } else {
+            stats.addSuccess();
+        }
+    }
+    
+    /**
+     * Record a failed download.
+     * 
+     * @param source the source downloaded from
+     */
+    public void recordFailure(String source) {
+        getStats(source).addFailure();
+    }
+    
+    /**
+     * Pick the best source that has not been tried yet.
+     * 
+     * @param sources the sources
+     * @param size the size of the download in bytes
+     * @param tried the sources that have already been tried
+     * @return the best untried source, or null if all have been tried
+     */
+    public String pick(List<String> sources, long size, Collection<String> tried) {
+        for (String source : rank(sources, size)) {
+            if (!tried.contains(source)) {
+                return source;
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.sk89q.mclauncher.update;
+
+/**
+ * Measurements of a download mirror, kept between updates so that the best
+ * mirror can be picked without probing all of them again.
+ */
+public class MirrorStats {
+    
+    /**
+     * How much of a new measurement goes into the running averages.
+     */
+    private static final double WEIGHT = 0.3;
+    
+    private double latency = -1;
+    private double throughput = -1;
+    private int failures = 0;
+
+    /**
+     * Get the average time until the mirror responds.
+     * 
+     * @return the latency in milliseconds, or -1 if unknown
+     */
+    public double getLatency() {
+        return latency;
+    }
+
+    public void setLatency(double latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Get the average download speed from the mirror.
+     * 
+     * @return the throughput in bytes per second, or -1 if unknown
+     */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    public void setThroughput(double throughput) {
+        this.throughput = throughput;
+    }
+
+    /**
+     * Get the number of recent failures. Each success takes one failure off.
+     * 
+     * @return the number of failures
+     */
+    public int getFailures() {
+        return failures;
+    }
+
+    public void setFailures(int failures) {
+        this.failures = failures;
+    }
+    
+    /**
+     * Add a latency measurement.
+     * 
+     * @param millis the time until the mirror responded
+     */
+    public synchronized void addLatency(double millis) {
+        latency = latency < 0 ? millis : latency + WEIGHT * (millis - latency);
+    }
+    
+    /**
+     * Add a throughput measurement and count it as a success.
+     * 
+     * @param bytesPerSecond the measured speed
+     */
+    public synchronized void addThroughput(double bytesPerSecond) {
+        throughput = throughput < 0 ? bytesPerSecond : 
+                throughput + WEIGHT * (bytesPerSecond - throughput);
+        addSuccess();
+    }
+    
+    /**
+     * Record a successful request.
+     */
+    public synchronized void addSuccess() {
+        if (failures > 0) {
+            failures--;
+        }
+    }
+    
+    /**
+     * Record a failed request.
+     */
+    public synchronized void addFailure() {
+        failures++;
+    }
+    
+    /**
+     * Estimate how long a download from this mirror would take.
+     * 
+     * @param size the size of the download in bytes
+     * @param defaultThroughput the throughput to assume if it is unknown
+     * @return the estimated time in seconds
+     */
+    public synchronized double estimate(long size, double defaultThroughput) {
+        double time = Math.max(0, latency) / 1000;
+        time += Math.max(0, size) / (throughput > 0 ? throughput : defaultThroughput);
+        // Every recent failure doubles the estimate
+        return time * (1 << Math.min(failures, 16)) + failures;
+    }
+
+}
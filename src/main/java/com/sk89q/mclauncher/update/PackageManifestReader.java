@@ -0,0 +1,325 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.bind.annotation.XmlEnumValue;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.sk89q.mclauncher.model.Archive;
+import com.sk89q.mclauncher.model.Component;
+import com.sk89q.mclauncher.model.EntryDiff;
+import com.sk89q.mclauncher.model.FileGroup;
+import com.sk89q.mclauncher.model.FileGroup.VerificationMethod;
+import com.sk89q.mclauncher.model.Message;
+import com.sk89q.mclauncher.model.Message.ContentType;
+import com.sk89q.mclauncher.model.PackageFile;
+import com.sk89q.mclauncher.model.PackageFile.ExistingFilePolicy;
+import com.sk89q.mclauncher.model.PackageManifest;
+import com.sk89q.mclauncher.model.Patch;
+import com.sk89q.mclauncher.model.SingleFile;
+import com.sk89q.mclauncher.util.Platform;
+
+/**
+ * Reads a package manifest as a stream, without JAXB.
+ * 
+ * <p>File groups are only read as they are asked for with
+ * {@link #nextGroup()}, so a caller that handles one group at a time never
+ * has the whole manifest in memory. Components, messages and the version
+ * are collected into {@link #getManifest()} as they are passed. Elements
+ * and values are read the same way as JAXB reads the model classes:
+ * unknown elements are skipped, and values that cannot be parsed are left
+ * unset.</p>
+ */
+public class PackageManifestReader {
+    
+    private static final XMLInputFactory factory = createFactory();
+    private static final Map<Class<?>, Map<String, Object>> enumValues = 
+            new HashMap<Class<?>, Map<String, Object>>();
+    
+    private final XMLStreamReader reader;
+    private final PackageManifest manifest = new PackageManifest();
+    private boolean started = false;
+    private boolean finished = false;
+    
+    /**
+     * Create a reader.
+     * 
+     * @param in the stream to read from, which is not closed
+     * @throws XMLStreamException on a parsing error
+     */
+    public PackageManifestReader(InputStream in) throws XMLStreamException {
+        reader = factory.createXMLStreamReader(in);
+    }
+    
+    /**
+     * Get the manifest, which has everything that has been read so far
+     * except for the file groups returned by {@link #nextGroup()}.
+     * 
+     * @return the manifest
+     */
+    public PackageManifest getManifest() {
+        return manifest;
+    }
+    
+    /**
+     * Read the whole manifest.
+     * 
+     * @return the manifest
+     * @throws XMLStreamException on a parsing error
+     */
+    public PackageManifest read() throws XMLStreamException {
+        FileGroup group;
+        while ((group = nextGroup()) != null) {
+            manifest.getFileGroups().add(group);
+        }
+        return manifest;
+    }
+    
+    /**
+     * Read up to the next file group.
+     * 
+     * @return the group, or null if there are no more
+     * @throws XMLStreamException on a parsing error
+     */
+    public FileGroup nextGroup() throws XMLStreamException {
+        if (finished) {
+            return null;
+        }
+        
+        if (!started) {
+            reader.nextTag();
+            if (!reader.getLocalName().equals("package")) {
+                throw new XMLStreamException("Expected <package>, got <" + 
+                        reader.getLocalName() + ">", reader.getLocation());
+            }
+            manifest.setVersion(attr("version"));
+            started = true;
+        }
+        
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            if (name.equals("filegroup")) {
+                return readGroup();
+            } else if (name.equals("component")) {
+                manifest.getComponents().add(readComponent());
+            } else if (name.equals("message")) {
+                manifest.getMessages().add(readMessage());
+            } else {
+                skip();
+            }
+        }
+        
+        finished = true;
+        reader.close();
+        return null;
+    }
+    
+    private FileGroup readGroup() throws XMLStreamException {
+        FileGroup group = new FileGroup();
+        group.setSource(attr("source"));
+        group.setDest(attr("dest"));
+        group.setVerify(enumAttr(VerificationMethod.class, "verify"));
+        group.setAlgorithm(attr("algorithm"));
+        
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            if (name.equals("file")) {
+                group.getFiles().add(readFile(new SingleFile()));
+            } else if (name.equals("archive")) {
+                group.getFiles().add(readFile(new Archive()));
+            } else if (name.equals("mirror")) {
+                group.getMirrors().add(reader.getElementText());
+            } else if (name.equals("patch")) {
+                Patch patch = new Patch();
+                patch.setTarget(attr("file"));
+                patch.setFrom(attr("from"));
+                patch.setSize(longAttr("size"));
+                patch.setHash(attr("hash"));
+                patch.setFilename(reader.getElementText());
+                group.getPatches().add(patch);
+            } else if (name.equals("entries")) {
+                EntryDiff diff = new EntryDiff();
+                diff.setTarget(attr("file"));
+                diff.setFrom(attr("from"));
+                diff.setSize(longAttr("size"));
+                diff.setFilename(reader.getElementText());
+                group.getEntryDiffs().add(diff);
+            } else {
+                skip();
+            }
+        }
+        
+        return group;
+    }
+    
+    private PackageFile readFile(PackageFile file) throws XMLStreamException {
+        file.setSize(longAttr("size"));
+        file.setPlatform(enumAttr(Platform.class, "platform"));
+        file.setComponentFilter(attr("component"));
+        file.setVersion(attr("version"));
+        file.setHash(attr("hash"));
+        file.setOverwrite(enumAttr(ExistingFilePolicy.class, "overwrite"));
+        file.setFilename(reader.getElementText());
+        return file;
+    }
+    
+    private Component readComponent() throws XMLStreamException {
+        Component component = new Component();
+        component.setId(attr("id"));
+        component.setDefaultSelected(parseBoolean(attr("default")));
+        component.setRequired(parseBoolean(attr("required")));
+        
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            if (name.equals("title")) {
+                component.setTitle(reader.getElementText());
+            } else if (name.equals("description")) {
+                component.setDescription(reader.getElementText());
+            } else {
+                skip();
+            }
+        }
+        
+        return component;
+    }
+    
+    private Message readMessage() throws XMLStreamException {
+        Message message = new Message();
+        message.setId(attr("id"));
+        message.setVersion(attr("version"));
+        
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            if (name.equals("title")) {
+                message.setTitle(reader.getElementText());
+            } else if (name.equals("phase")) {
+                message.setPhase(parseEnum(Phase.class, reader.getElementText()));
+            } else if (name.equals("agreement")) {
+                message.setAgreement(parseBoolean(reader.getElementText()));
+            } else if (name.equals("type")) {
+                message.setType(parseEnum(ContentType.class, reader.getElementText()));
+            } else if (name.equals("content")) {
+                message.setContent(reader.getElementText());
+            } else {
+                skip();
+            }
+        }
+        
+        return message;
+    }
+    
+    /**
+     * Skip the current element and everything in it.
+     * 
+     * @throws XMLStreamException on a parsing error
+     */
+    private void skip() throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+    
+    private String attr(String name) {
+        return reader.getAttributeValue(null, name);
+    }
+    
+    private long longAttr(String name) {
+        String value = attr(name);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+    
+    private <T extends Enum<T>> T enumAttr(Class<T> type, String name) {
+        return parseEnum(type, attr(name));
+    }
+    
+    private static boolean parseBoolean(String value) {
+        if (value == null) {
+            return false;
+        }
+        value = value.trim();
+        return value.equals("true") || value.equals("1");
+    }
+    
+    /**
+     * Find the constant of an enum by the name given to it with
+     * {@link XmlEnumValue}, or by its own name if it has none.
+     * 
+     * @param type the enum
+     * @param value the value in the XML
+     * @return the constant, or null if there is none
+     */
+    private static <T extends Enum<T>> T parseEnum(Class<T> type, String value) {
+        if (value == null) {
+            return null;
+        }
+        
+        Map<String, Object> values;
+        synchronized (enumValues) {
+            values = enumValues.get(type);
+            if (values == null) {
+                values = new HashMap<String, Object>();
+                for (T constant : type.getEnumConstants()) {
+                    String name = constant.name();
+                    try {
+                        Field field = type.getField(constant.name());
+                        XmlEnumValue annotation = field.getAnnotation(XmlEnumValue.class);
+                        if (annotation != null) {
+                            name = annotation.value();
+                        }
+                    } catch (NoSuchFieldException e) {
+                    }
+                    values.put(name, constant);
+                }
+                enumValues.put(type, values);
+            }
+        }
+        
+        return type.cast(values.get(value.trim()));
+    }
+    
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    }
+
+}
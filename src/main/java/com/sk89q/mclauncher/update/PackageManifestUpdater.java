@@ -19,49 +19,91 @@
 package com.sk89q.mclauncher.update;
 
 import java.awt.Window;
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EventObject;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import javax.swing.event.EventListenerList;
 
 import com.sk89q.mclauncher.Launcher;
 import com.sk89q.mclauncher.SelectComponentsDialog;
+import com.sk89q.mclauncher.config.Def;
+import com.sk89q.mclauncher.config.SettingsList;
 import com.sk89q.mclauncher.event.DownloadListener;
 import com.sk89q.mclauncher.event.DownloadProgressEvent;
 import com.sk89q.mclauncher.event.ProgressListener;
 import com.sk89q.mclauncher.event.StatusChangeEvent;
 import com.sk89q.mclauncher.event.TitleChangeEvent;
 import com.sk89q.mclauncher.event.ValueChangeEvent;
+import com.sk89q.mclauncher.model.Archive;
 import com.sk89q.mclauncher.model.Component;
+import com.sk89q.mclauncher.model.EntryDiff;
 import com.sk89q.mclauncher.model.FileGroup;
 import com.sk89q.mclauncher.model.Message;
 import com.sk89q.mclauncher.model.PackageFile;
 import com.sk89q.mclauncher.model.PackageManifest;
+import com.sk89q.mclauncher.model.Patch;
+import com.sk89q.mclauncher.model.SingleFile;
+import com.sk89q.mclauncher.util.BinaryDelta;
 import com.sk89q.mclauncher.util.Downloader;
+import com.sk89q.mclauncher.util.JarEntryList;
 import com.sk89q.mclauncher.util.LauncherUtils;
+import com.sk89q.mclauncher.util.PersistentConnectionDownloader;
+import com.sk89q.mclauncher.util.ProgressSampler;
+import com.sk89q.mclauncher.util.SegmentedDownloader;
 import com.sk89q.mclauncher.util.URLConnectionDownloader;
-import com.sk89q.mclauncher.util.XmlUtils;
 
 /**
  * Downloads and applies an update using {@link PackageManifest}.
  */
-public class PackageManifestUpdater implements Updater, DownloadListener {
+public class PackageManifestUpdater implements Updater, DownloadListener, 
+        ProgressSampler.Listener {
     
     private static final Logger logger = Logger.getLogger(
             PackageManifestUpdater.class.getCanonicalName());
+    private static final long PROGRESS_INTERVAL = 50;
+    private static final String INSTALL_HASH_ALGORITHM = "MD5";
+    
+    /**
+     * Files that are never changed in place once installed, which can be
+     * hard linked to the shared store rather than copied from it.
+     */
+    private static final Pattern LINKABLE_FILES = 
+            Pattern.compile("(?i).+\\.(jar|zip|dll|so|dylib|jnilib)$");
 
     private final URL baseUrl;
     private final PackageManifest manifest;
@@ -69,19 +111,33 @@ public class PackageManifestUpdater implements Updater, DownloadListener {
     private final UpdateCache cache;
     private final EventListenerList listenerList = new EventListenerList();
     private final File downloadDir;
-    private final long totalEstimatedSize;
     private final int numFiles;
     
     private Window owner;
     private int downloadTries = 5;
-    private long retryDelay = 2000;
+    private long retryDelay = 1000;
+    private long maxRetryDelay = 30000;
+    private final Random random = new Random();
+    private final MirrorSelector mirrorSelector;
+    private int downloadThreads = 4;
+    private int hostThreads = 4;
+    private HostLimiter hostLimiter = new HostLimiter(hostThreads);
+    private int installThreads = 4;
+    private long segmentThreshold = 0;
+    private int segmentCount = 4;
+    private boolean persistentConnections = true;
+    private boolean pipelinedExtraction = false;
+    private ContentStore contentStore;
     private boolean forced = false;
     private String targetVersion;
     
     private double subprogressOffset = 0;
     private double subprogressSize = 1;
-    private Downloader downloader;
-    private int currentIndex = 0;
+    private final Map<Downloader, PackageFile> activeDownloads =
+            new HashMap<Downloader, PackageFile>();
+    private ProgressSampler progressSampler;
+    private UpdatePlan plan;
+    private int completedCount = 0;
     private long downloadedEstimatedSize = 0;
     
     /**
@@ -101,14 +157,192 @@ public class PackageManifestUpdater implements Updater, DownloadListener {
         this.cache = cache;
         this.downloadDir = new File(rootDir, "_download");
         this.targetVersion = targetVersion;
+        this.mirrorSelector = new MirrorSelector(baseUrl, cache);
         
         downloadDir.mkdirs();
 
         manifest.setDestDir(rootDir);
-        totalEstimatedSize = manifest.getTotalSize();
         numFiles = manifest.getDownloadCount();
     }
     
+    /**
+     * Read the download settings from the given settings list.
+     * 
+     * @param settings the settings
+     */
+    public void readSettings(SettingsList settings) {
+        setDownloadThreads(settings.getInt(Def.UPDATE_DOWNLOAD_THREADS, downloadThreads));
+        setHostThreads(settings.getInt(Def.UPDATE_HOST_THREADS, hostThreads));
+        setInstallThreads(settings.getInt(Def.UPDATE_INSTALL_THREADS, installThreads));
+        setSegmentThreshold(settings.getInt(Def.UPDATE_SEGMENT_THRESHOLD, 0) * 1024L * 1024L);
+        setSegmentCount(settings.getInt(Def.UPDATE_SEGMENTS, segmentCount));
+        setPersistentConnections(settings.getBool(
+                Def.UPDATE_PERSISTENT_CONNECTIONS, persistentConnections));
+        setPipelinedExtraction(settings.getBool(
+                Def.UPDATE_PIPELINED_EXTRACTION, pipelinedExtraction));
+        
+        long storeSize = settings.getInt(Def.UPDATE_STORE_SIZE, 0) * 1024L * 1024L;
+        if (storeSize > 0) {
+            ContentStore store = ContentStore.getInstance();
+            store.setMaxSize(storeSize);
+            setContentStore(store);
+        } else {
+            setContentStore(null);
+        }
+    }
+    
+    /**
+     * Get the maximum number of files downloaded at the same time.
+     * 
+     * @return the number of download threads
+     */
+    public int getDownloadThreads() {
+        return downloadThreads;
+    }
+
+    /**
+     * Set the maximum number of files downloaded at the same time.
+     * 
+     * @param downloadThreads the number of download threads
+     */
+    public void setDownloadThreads(int downloadThreads) {
+        this.downloadThreads = Math.max(1, downloadThreads);
+    }
+
+    /**
+     * Get the maximum number of files downloaded at the same time
+     * from any one host.
+     * 
+     * @return the number of download threads per host
+     */
+    public int getHostThreads() {
+        return hostThreads;
+    }
+
+    /**
+     * Set the maximum number of files downloaded at the same time
+     * from any one host.
+     * 
+     * @param hostThreads the number of download threads per host
+     */
+    public void setHostThreads(int hostThreads) {
+        this.hostThreads = Math.max(1, hostThreads);
+        this.hostLimiter = new HostLimiter(this.hostThreads);
+    }
+
+    /**
+     * Get the maximum number of files installed at the same time.
+     * 
+     * @return the number of install threads
+     */
+    public int getInstallThreads() {
+        return installThreads;
+    }
+
+    /**
+     * Set the maximum number of files installed at the same time.
+     * 
+     * @param installThreads the number of install threads
+     */
+    public void setInstallThreads(int installThreads) {
+        this.installThreads = Math.max(1, installThreads);
+    }
+
+    /**
+     * Get the size at which files are downloaded in several segments at once.
+     * 
+     * @return the size in bytes, or 0 if files are never split
+     */
+    public long getSegmentThreshold() {
+        return segmentThreshold;
+    }
+
+    /**
+     * Set the size at which files are downloaded in several segments at once.
+     * 
+     * @param segmentThreshold the size in bytes, or 0 to never split files
+     */
+    public void setSegmentThreshold(long segmentThreshold) {
+        this.segmentThreshold = Math.max(0, segmentThreshold);
+    }
+
+    /**
+     * Get the number of segments that large files are split into.
+     * 
+     * @return the number of segments
+     */
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * Set the number of segments that large files are split into.
+     * 
+     * @param segmentCount the number of segments
+     */
+    public void setSegmentCount(int segmentCount) {
+        this.segmentCount = Math.max(1, segmentCount);
+    }
+
+    /**
+     * Get whether connections are kept open and reused between downloads.
+     * 
+     * @return true if connections are reused
+     */
+    public boolean getPersistentConnections() {
+        return persistentConnections;
+    }
+
+    /**
+     * Set whether connections are kept open and reused between downloads.
+     * 
+     * @param persistentConnections true to reuse connections
+     */
+    public void setPersistentConnections(boolean persistentConnections) {
+        this.persistentConnections = persistentConnections;
+    }
+
+    /**
+     * Get whether archives are extracted while they are downloaded.
+     * 
+     * @return true if archives are extracted while downloading
+     */
+    public boolean getPipelinedExtraction() {
+        return pipelinedExtraction;
+    }
+
+    /**
+     * Set whether archives are extracted while they are downloaded. The
+     * extracted files are staged and only installed once the download has
+     * been verified, but an interrupted download has to start over.
+     * 
+     * @param pipelinedExtraction true to extract archives while downloading
+     */
+    public void setPipelinedExtraction(boolean pipelinedExtraction) {
+        this.pipelinedExtraction = pipelinedExtraction;
+    }
+
+    /**
+     * Get the store that downloads are shared with other installations
+     * through.
+     * 
+     * @return the store, or null if downloads are not shared
+     */
+    public ContentStore getContentStore() {
+        return contentStore;
+    }
+
+    /**
+     * Set the store that downloads are shared with other installations
+     * through. Files with a hash in the manifest are taken from the store
+     * instead of being downloaded, if it has them.
+     * 
+     * @param contentStore the store, or null to not share downloads
+     */
+    public void setContentStore(ContentStore contentStore) {
+        this.contentStore = contentStore;
+    }
+
     /**
      * Get the URL of a file.
      * 
@@ -120,6 +354,83 @@ public class PackageManifestUpdater implements Updater, DownloadListener {
         return group.getURL(baseUrl, file);
     }
     
+    /**
+     * Get the URL of a file on the best mirror.
+     * 
+     * @param group the group
+     * @param file the file
+     * @return the URL
+     */
+    private URL getBestURL(FileGroup group, PackageFile file) {
+        List<String> sources = mirrorSelector.rank(group.getSources(), file.getSize());
+        return group.getURL(baseUrl, sources.get(0), file);
+    }
+    
+    /**
+     * Pick the best source of a file that has not been tried yet, preferring
+     * sources whose host can take another connection right away.
+     * 
+     * @param group the group
+     * @param file the file
+     * @param tried the sources that have already been tried
+     * @return the source, or null if all have been tried
+     */
+    private String pickSource(FileGroup group, PackageFile file, Set<String> tried) {
+        List<String> sources = group.getSources();
+        Set<String> busy = new HashSet<String>(tried);
+        String source;
+        while ((source = mirrorSelector.pick(sources, file.getSize(), busy)) != null) {
+            if (hostLimiter.isAvailable(group.getURL(baseUrl, source, file))) {
+                return source;
+            }
+            busy.add(source);
+        }
+        return mirrorSelector.pick(sources, file.getSize(), tried);
+    }
+    
+    /**
+     * Get how long to wait before the given retry. The delay doubles with
+     * every retry, up to a maximum, and is randomized so that many clients
+     * failing at once do not all retry at the same moment.
+     * 
+     * @param retry the number of earlier retries
+     * @return the delay in milliseconds
+     */
+    private long getRetryDelay(int retry) {
+        long delay = Math.min(maxRetryDelay, retryDelay << Math.min(retry, 16));
+        return delay / 2 + (long) (random.nextDouble() * delay / 2);
+    }
+    
+    /**
+     * Probe the mirrors of every file group that has any, so that the checks
+     * for changed files and the first downloads already go to the best
+     * mirror.
+     * 
+     * @throws InterruptedException on interruption
+     */
+    private void probeMirrors() throws InterruptedException {
+        Map<String, URL> probes = new LinkedHashMap<String, URL>();
+        
+        for (FileGroup group : manifest.getFileGroups()) {
+            List<String> sources = group.getSources();
+            if (sources.size() < 2 || group.getFiles().isEmpty()) {
+                continue;
+            }
+            
+            PackageFile file = group.getFiles().get(0);
+            for (String source : sources) {
+                if (!probes.containsKey(source)) {
+                    probes.put(source, group.getURL(baseUrl, source, file));
+                }
+            }
+        }
+        
+        if (!probes.isEmpty()) {
+            fireStatusChange("Finding the fastest mirrors...");
+            mirrorSelector.probe(probes);
+        }
+    }
+    
     /**
      * Returns whether two digests (in hex) match.
      * 
@@ -131,6 +442,511 @@ public class PackageManifestUpdater implements Updater, DownloadListener {
         return s1.replaceAll("^0+", "").equalsIgnoreCase(s2.replaceAll("^0+", ""));
     }
     
+    /**
+     * Get the key of a file in the shared store.
+     * 
+     * <p>Files with an overwrite policy, such as configuration files, are
+     * not shared, as they are meant to be changed after they are
+     * installed.</p>
+     * 
+     * @param group the group
+     * @param file the file
+     * @return the key, or null if the file is not shared
+     */
+    private String getStoreKey(FileGroup group, PackageFile file) {
+        if (contentStore == null || file.getHash() == null || file.getOverwrite() != null) {
+            return null;
+        }
+        String algorithm = group.getDigestAlgorithm();
+        return ContentStore.getKey(algorithm != null ? algorithm : "SHA-256", file.getHash());
+    }
+    
+    /**
+     * Hash a file.
+     * 
+     * @param file the file
+     * @param digest the digest to use
+     * @return the hash, in hex
+     * @throws IOException on I/O error
+     */
+    private static String digestFile(File file, MessageDigest digest) throws IOException {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] buffer = new byte[1024 * 64];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, len);
+            }
+        } finally {
+            LauncherUtils.close(in);
+        }
+        return LauncherUtils.getHexString(digest.digest());
+    }
+    
+    /**
+     * Take a file from the shared store instead of downloading it.
+     * 
+     * <p>The stored copy is hashed again before it is used, as an installation
+     * could have changed a file that is linked to it.</p>
+     * 
+     * @param group the group
+     * @param file the file
+     * @return true if the file was taken from the store
+     * @throws UpdateException on update error
+     */
+    private boolean copyFromStore(FileGroup group, PackageFile file) throws UpdateException {
+        String key = getStoreKey(group, file);
+        String cacheId = getCacheId(file);
+        File tempFile = getTempFile(group, file);
+        
+        cache.touch(cacheId);
+        
+        try {
+            boolean link = LINKABLE_FILES.matcher(file.getFinalFilename()).matches();
+            if (!contentStore.copyTo(key, tempFile, link)) {
+                return false;
+            }
+            
+            MessageDigest digest = group.createMessageDigest();
+            if (digest == null) {
+                digest = MessageDigest.getInstance("SHA-256");
+            }
+            
+            if (!matchesDigest(file.getHash(), digestFile(tempFile, digest))) {
+                logger.warning("Stored copy of " + file + " is damaged; removing it");
+                contentStore.remove(key);
+                tempFile.delete();
+                return false;
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to take " + file + " from the store", e);
+            tempFile.delete();
+            return false;
+        } catch (NoSuchAlgorithmException e) {
+            throw new UpdateException("Unknown digest algorithm: " + e.getMessage());
+        }
+        
+        logger.info("Took " + file + " from the shared store");
+        file.setTempFile(tempFile);
+        
+        // The same versions are stored as for a download
+        if (file.getOverwrite() == null) {
+            cache.setFileVersion(cacheId, file.getVersion() != null ? 
+                    file.getVersion() : file.getHash());
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Get the installed version of a file that can be updated by patching
+     * or by replacing changed entries. Only files that are installed
+     * exactly as downloaded can be updated in this way.
+     * 
+     * @param file the file
+     * @return the installed version, or null if the file has to be
+     *         downloaded in full
+     */
+    private String getUpdatableVersion(PackageFile file) {
+        if (forced || !(file instanceof SingleFile) || file.isFiltered() || 
+                file.getOverwrite() != null || file.getHash() == null) {
+            return null;
+        }
+        
+        String lastVersion = cache.getFileVersion(getCacheId(file));
+        if (lastVersion == null || !file.getFile().isFile()) {
+            return null;
+        }
+        
+        return lastVersion;
+    }
+    
+    /**
+     * Find a patch that updates the installed copy of a file to its new
+     * version.
+     * 
+     * @param group the group
+     * @param file the file
+     * @return the patch, or null if there is none
+     */
+    private Patch findPatch(FileGroup group, PackageFile file) {
+        String lastVersion = getUpdatableVersion(file);
+        return lastVersion != null ? group.findPatch(file, lastVersion) : null;
+    }
+    
+    /**
+     * Find a list of changed entries that updates the installed copy of a
+     * jar or zip file to its new version.
+     * 
+     * @param group the group
+     * @param file the file
+     * @return the entry diff, or null if there is none
+     */
+    private EntryDiff findEntryDiff(FileGroup group, PackageFile file) {
+        String lastVersion = getUpdatableVersion(file);
+        return lastVersion != null ? group.findEntryDiff(file, lastVersion) : null;
+    }
+    
+    /**
+     * Download a file that is not the file itself, such as a patch, while
+     * reporting progress for the file.
+     * 
+     * @param url the URL
+     * @param target the file to download to
+     * @param file the package file that it is for, or null to not report
+     *             progress
+     * @return true if the download completed
+     * @throws IOException on I/O error
+     * @throws InterruptedException on interruption
+     */
+    private boolean fetch(URL url, File target, PackageFile file) 
+            throws IOException, InterruptedException {
+        Downloader downloader = persistentConnections ? 
+                new PersistentConnectionDownloader(url, target) : 
+                new URLConnectionDownloader(url, target);
+        if (file != null) {
+            downloader.addDownloadListener(this);
+            downloader.setProgressSampler(progressSampler);
+            synchronized (this) {
+                activeDownloads.put(downloader, file);
+            }
+        }
+        
+        hostLimiter.acquire(url);
+        try {
+            target.delete();
+            return downloader.download();
+        } finally {
+            hostLimiter.release(url, 1);
+            synchronized (this) {
+                activeDownloads.remove(downloader);
+            }
+        }
+    }
+    
+    /**
+     * Download a patch and apply it to the installed copy of a file.
+     * 
+     * <p>If anything goes wrong, including the result not matching the
+     * hash in the patch, the file should be downloaded in full instead.</p>
+     * 
+     * @param group the group
+     * @param file the file
+     * @param patch the patch
+     * @return true if the file was patched
+     * @throws InterruptedException on interruption
+     */
+    private boolean applyPatch(FileGroup group, PackageFile file, Patch patch) 
+            throws InterruptedException {
+        URL url = group.getURL(baseUrl, patch);
+        String cacheId = getCacheId(file);
+        File tempFile = getTempFile(group, file);
+        File patchFile = new File(tempFile.getPath() + ".patch");
+        
+        cache.touch(cacheId);
+        
+        try {
+            logger.info("Downloading patch " + url + "...");
+            if (!fetch(url, patchFile, file)) {
+                return false;
+            }
+            
+            // A file left behind may be linked to the store, so it is
+            // replaced rather than written over
+            tempFile.delete();
+            
+            InputStream in = null;
+            OutputStream out = null;
+            try {
+                in = new BufferedInputStream(new FileInputStream(patchFile));
+                out = new BufferedOutputStream(new FileOutputStream(tempFile));
+                BinaryDelta.apply(file.getFile(), in, out);
+            } finally {
+                LauncherUtils.close(out);
+                LauncherUtils.close(in);
+            }
+            
+            MessageDigest digest = group.createMessageDigest();
+            if (digest == null) {
+                digest = MessageDigest.getInstance("SHA-256");
+            }
+            
+            if (!matchesDigest(patch.getHash(), digestFile(tempFile, digest))) {
+                logger.warning("Patched " + file + " did not match; downloading it in full");
+                tempFile.delete();
+                return false;
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to patch " + file + "; downloading it in full", e);
+            tempFile.delete();
+            return false;
+        } catch (NoSuchAlgorithmException e) {
+            logger.log(Level.WARNING, "Failed to patch " + file + "; downloading it in full", e);
+            tempFile.delete();
+            return false;
+        } finally {
+            patchFile.delete();
+        }
+        
+        logger.info("Patched " + file + " from version " + patch.getFrom());
+        file.setTempFile(tempFile);
+        cache.setFileVersion(cacheId, file.getVersion() != null ? 
+                file.getVersion() : file.getHash());
+        
+        String key = getStoreKey(group, file);
+        if (key != null) {
+            try {
+                contentStore.put(key, tempFile);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to add " + file + " to the store", e);
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Download the entries of a jar or zip file that changed and put the
+     * file together again from those and the entries of the installed copy.
+     * 
+     * <p>The file that is put together has the same contents as the new
+     * version, but is not the same byte for byte, so it is checked against
+     * the version rather than the hash and is not added to the store. If
+     * anything goes wrong, the file should be downloaded in full instead.</p>
+     * 
+     * @param group the group
+     * @param file the file
+     * @param diff the entry diff
+     * @return true if the file was put together
+     * @throws InterruptedException on interruption
+     */
+    private boolean applyEntryDiff(FileGroup group, PackageFile file, EntryDiff diff) 
+            throws InterruptedException {
+        URL url = group.getURL(baseUrl, diff);
+        String cacheId = getCacheId(file);
+        File tempFile = getTempFile(group, file);
+        File listFile = new File(tempFile.getPath() + ".entries");
+        File objectsDir = new File(tempFile.getPath() + ".objects");
+        
+        cache.touch(cacheId);
+        
+        ZipFile installed = null;
+        try {
+            logger.info("Downloading entry list " + url + "...");
+            if (!fetch(url, listFile, file)) {
+                return false;
+            }
+            
+            JarEntryList list;
+            InputStream in = null;
+            try {
+                in = new BufferedInputStream(new FileInputStream(listFile));
+                list = JarEntryList.read(in);
+            } finally {
+                LauncherUtils.close(in);
+            }
+            
+            if (!list.hasUniqueNames() || (file.getVersion() != null && 
+                    !matchesDigest(file.getVersion(), list.getSignature()))) {
+                logger.warning("Entry list of " + file + " does not match its version");
+                return false;
+            }
+            
+            // Entries that are installed are found by their contents, as
+            // they may have been moved or renamed
+            Map<String, String> local = new HashMap<String, String>();
+            in = null;
+            try {
+                in = new BufferedInputStream(new FileInputStream(file.getFile()));
+                for (JarEntryList.Entry entry : JarEntryList.fromZip(in).getEntries()) {
+                    local.put(entry.getHash(), entry.getName());
+                }
+            } finally {
+                LauncherUtils.close(in);
+            }
+            
+            Set<String> missing = new LinkedHashSet<String>();
+            for (JarEntryList.Entry entry : list.getEntries()) {
+                if (!local.containsKey(entry.getHash())) {
+                    missing.add(entry.getHash());
+                }
+            }
+            
+            objectsDir.mkdirs();
+            int index = 0;
+            for (String hash : missing) {
+                LauncherUtils.checkInterrupted();
+                fireDownloadStatusChange(file, String.format(
+                        "Downloading changed entries (%d/%d)...", ++index, missing.size()));
+                if (!fetch(group.getEntryURL(baseUrl, hash), new File(objectsDir, hash), null)) {
+                    return false;
+                }
+            }
+            
+            // A file left behind may be linked to the store, so it is
+            // replaced rather than written over
+            tempFile.delete();
+            
+            installed = new ZipFile(file.getFile());
+            ZipOutputStream out = null;
+            try {
+                out = new ZipOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(tempFile)));
+                for (JarEntryList.Entry entry : list.getEntries()) {
+                    LauncherUtils.checkInterrupted();
+                    String name = local.get(entry.getHash());
+                    File object = new File(objectsDir, entry.getHash());
+                    if (name != null) {
+                        ZipEntry source = installed.getEntry(name);
+                        if (source == null) {
+                            throw new IOException("Entry " + name + " has gone missing");
+                        }
+                        writeEntry(out, entry, installed, source, null);
+                    } else {
+                        writeEntry(out, entry, null, null, object);
+                    }
+                }
+            } finally {
+                LauncherUtils.close(out);
+            }
+            
+            logger.info(String.format("Put %s together from %d changed of %d entries", 
+                    file, missing.size(), list.getEntries().size()));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to update the entries of " + file + 
+                    "; downloading it in full", e);
+            tempFile.delete();
+            return false;
+        } finally {
+            if (installed != null) {
+                try {
+                    installed.close();
+                } catch (IOException e) {
+                }
+            }
+            listFile.delete();
+            File[] objects = objectsDir.listFiles();
+            if (objects != null) {
+                for (File object : objects) {
+                    object.delete();
+                }
+            }
+            objectsDir.delete();
+        }
+        
+        file.setTempFile(tempFile);
+        cache.setFileVersion(cacheId, file.getVersion() != null ? 
+                file.getVersion() : file.getHash());
+        
+        return true;
+    }
+    
+    /**
+     * Write one entry of a file that is being put together, checking its
+     * contents against the hash in the list.
+     * 
+     * @param out the stream to write to
+     * @param entry the entry in the list
+     * @param zip the installed file, or null
+     * @param source the entry in the installed file, or null
+     * @param object the gzipped downloaded entry, or null
+     * @throws IOException on I/O error, or if the contents do not match
+     */
+    private static void writeEntry(ZipOutputStream out, JarEntryList.Entry entry, 
+            ZipFile zip, ZipEntry source, File object) throws IOException {
+        ZipEntry target = new ZipEntry(entry.getName());
+        target.setTime(entry.getTime());
+        target.setMethod(entry.getMethod() == ZipEntry.STORED ? 
+                ZipEntry.STORED : ZipEntry.DEFLATED);
+        
+        byte[] buffer = new byte[1024 * 16];
+        int len;
+        
+        // Stored entries need their size and CRC before they are written
+        if (target.getMethod() == ZipEntry.STORED) {
+            CRC32 crc = new CRC32();
+            long size = 0;
+            InputStream in = null;
+            try {
+                in = openEntry(zip, source, object);
+                while ((len = in.read(buffer)) != -1) {
+                    crc.update(buffer, 0, len);
+                    size += len;
+                }
+            } finally {
+                LauncherUtils.close(in);
+            }
+            target.setSize(size);
+            target.setCompressedSize(size);
+            target.setCrc(crc.getValue());
+        }
+        
+        out.putNextEntry(target);
+        MessageDigest digest = JarEntryList.createDigest();
+        InputStream in = null;
+        try {
+            in = openEntry(zip, source, object);
+            while ((len = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, len);
+                out.write(buffer, 0, len);
+            }
+        } finally {
+            LauncherUtils.close(in);
+        }
+        out.closeEntry();
+        
+        if (!LauncherUtils.getHexString(digest.digest()).equalsIgnoreCase(entry.getHash())) {
+            throw new IOException("Entry " + entry.getName() + " did not match");
+        }
+    }
+    
+    private static InputStream openEntry(ZipFile zip, ZipEntry source, File object) 
+            throws IOException {
+        if (zip != null) {
+            return zip.getInputStream(source);
+        }
+        InputStream in = new FileInputStream(object);
+        try {
+            return new GZIPInputStream(new BufferedInputStream(in));
+        } catch (IOException e) {
+            LauncherUtils.close(in);
+            throw e;
+        }
+    }
+    
+    /**
+     * Record the stored files that this installation uses, and then trim
+     * the store to its size limit.
+     * 
+     * @param newLog the uninstall log of the new installation
+     * @param logFile the file that the log is saved to
+     */
+    private void updateStoreReferences(UninstallLog newLog, File logFile) {
+        if (contentStore == null) {
+            return;
+        }
+        
+        Set<String> keys = new HashSet<String>();
+        for (FileGroup group : manifest.getFileGroups()) {
+            for (PackageFile file : group.getFiles()) {
+                String key = getStoreKey(group, file);
+                if (key != null && newLog.hasGroup(getCacheId(file))) {
+                    keys.add(key);
+                }
+            }
+        }
+        
+        contentStore.setReferences(logFile, keys);
+        contentStore.evict();
+        
+        try {
+            contentStore.save();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to save the index of the store", e);
+        }
+    }
+    
     /**
      * Show messages for the given phase.
      * 
@@ -155,67 +971,378 @@ public class PackageManifestUpdater implements Updater, DownloadListener {
         }
     }
     
+    /**
+     * Rethrow the cause of a failed task.
+     * 
+     * @param e the exception
+     * @param message the message to use for unexpected errors
+     * @throws UpdateException on update error
+     * @throws InterruptedException on interruption
+     */
+    private void rethrow(ExecutionException e, String message) 
+            throws UpdateException, InterruptedException {
+        Throwable cause = e.getCause();
+        if (cause instanceof UpdateException) {
+            throw (UpdateException) cause;
+        } else if (cause instanceof InterruptedException) {
+            throw new InterruptedException();
+        } else {
+            throw new UpdateException(message + ": " + cause.getMessage(), cause);
+        }
+    }
+    
+    /**
+     * Get the file that a finished download is kept in.
+     * 
+     * @param group the group
+     * @param file the file
+     * @return the temporary file
+     */
+    private File getTempFile(FileGroup group, PackageFile file) {
+        // This is named after the main URL so that every mirror resumes the same file
+        return new File(downloadDir, "_" + 
+                LauncherUtils.getDigestAsHex(getURL(group, file).toExternalForm(), "MD5"));
+    }
+    
+    /**
+     * Check every file against the server before anything is downloaded.
+     * 
+     * <p>Files are checked concurrently with conditional HEAD requests, which
+     * find out which files have changed and how large they are without
+     * transferring any of their contents.</p>
+     * 
+     * @return the plan
+     * @throws UpdateException on update error
+     * @throws InterruptedException on interruption
+     */
+    private UpdatePlan createPlan() 
+            throws UpdateException, InterruptedException {
+        final UpdatePlan plan = new UpdatePlan();
+        final AtomicInteger checked = new AtomicInteger();
+        final int total = numFiles;
+        DownloadScheduler scheduler = new DownloadScheduler(downloadThreads);
+        
+        try {
+            for (FileGroup group : manifest.getFileGroups()) {
+                for (PackageFile file : group.getFiles()) {
+                    LauncherUtils.checkInterrupted();
+                    
+                    if (!file.matchesEnvironment() || 
+                            !file.matchesFilter(manifest.getComponents())) {
+                        continue;
+                    }
+                    
+                    final FileGroup fileGroup = group;
+                    final PackageFile packageFile = file;
+                    
+                    scheduler.submit(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            planFile(plan, fileGroup, packageFile);
+                            fireAdjustedValueChange(checked.incrementAndGet() / (double) total);
+                            return null;
+                        }
+                    });
+                }
+            }
+            
+            scheduler.awaitCompletion();
+        } catch (ExecutionException e) {
+            rethrow(e, "Could not check for changed files");
+        } finally {
+            scheduler.shutdown();
+        }
+        
+        return plan;
+    }
+    
+    /**
+     * Decide whether one file has to be downloaded. This follows the same
+     * rules as {@link #downloadFile(FileGroup, PackageFile, String)}.
+     * 
+     * @param plan the plan to add to
+     * @param group the group
+     * @param file the file
+     * @throws InterruptedException on interruption
+     */
+    private void planFile(UpdatePlan plan, FileGroup group, PackageFile file) 
+            throws InterruptedException {
+        LauncherUtils.checkInterrupted();
+        
+        String lastVersion = cache.getFileVersion(getCacheId(file));
+        boolean verify = file.getHash() != null || (!forced && 
+                (group.getVerify() != null || group.getAlgorithm() != null));
+        String etagCheck = null;
+        
+        if (!forced && file.getVersion() != null) {
+            if (lastVersion != null && lastVersion.equals(file.getVersion())) {
+                plan.addUnchanged(file);
+                return;
+            }
+        } else if (!forced && file.getHash() != null) {
+            if (lastVersion != null && matchesDigest(lastVersion, file.getHash())) {
+                plan.addUnchanged(file);
+                return;
+            }
+        } else if (!forced && verify) {
+            etagCheck = lastVersion;
+        }
+        
+        // Files that another installation has downloaded are in the store
+        String key = getStoreKey(group, file);
+        if (key != null && contentStore.contains(key)) {
+            plan.addStored(file);
+            return;
+        }
+        
+        // Only the changes are downloaded if there is a patch
+        Patch patch = findPatch(group, file);
+        if (patch != null) {
+            plan.addDownload(file, patch.getSize());
+            return;
+        }
+        
+        EntryDiff entryDiff = findEntryDiff(group, file);
+        if (entryDiff != null) {
+            plan.addDownload(file, entryDiff.getSize());
+            return;
+        }
+        
+        // A finished download left from an earlier attempt is used as is
+        if (!verify && getTempFile(group, file).exists()) {
+            plan.addDownload(file, 0);
+            return;
+        }
+        
+        URL url = getBestURL(group, file);
+        long size;
+        hostLimiter.acquire(url);
+        try {
+            size = probeSize(url, etagCheck);
+        } finally {
+            hostLimiter.release(url, 1);
+        }
+        if (size < 0) {
+            plan.addUnchanged(file);
+        } else {
+            plan.addDownload(file, size > 0 ? size : file.getSize());
+        }
+    }
+    
+    /**
+     * Find out the size of a file with a HEAD request.
+     * 
+     * @param url the URL
+     * @param etagCheck the E-tag of the copy we have, or null
+     * @return the size, 0 if it could not be found out, or -1 if the file
+     *         has not changed
+     */
+    private long probeSize(URL url, String etagCheck) {
+        HttpURLConnection conn = null;
+        
+        try {
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestMethod("HEAD");
+            conn.setUseCaches(false);
+            if (etagCheck != null) {
+                conn.setRequestProperty("If-None-Match", "\"" + etagCheck + "\"");
+            }
+            conn.setReadTimeout(30000);
+            
+            int code = conn.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                conn.getInputStream().close();
+                return -1;
+            } else if (code >= 200 && code < 300) {
+                long length = conn.getContentLength();
+                conn.getInputStream().close();
+                return Math.max(0, length);
+            }
+            
+            // The download itself will report the error
+            conn.disconnect();
+            return 0;
+        } catch (IOException e) {
+            logger.fine("Failed to check " + url + ": " + e.getMessage());
+            if (conn != null) {
+                conn.disconnect();
+            }
+            return 0;
+        }
+    }
+    
     /**
      * Download the files.
      * 
+     * <p>Files are downloaded concurrently by a {@link DownloadScheduler}, but
+     * each file is still retried independently.</p>
+     * 
      * @throws UpdateException on download error
      * @throws InterruptedException on interruption
      */
     private void downloadFiles() throws UpdateException, InterruptedException {
-        currentIndex = -1;
+        DownloadScheduler scheduler = new DownloadScheduler(downloadThreads);
+        int index = -1;
         
-        for (FileGroup group : manifest.getFileGroups()) {
-            for (PackageFile file : group.getFiles()) {
-                LauncherUtils.checkInterrupted();
-                
-                currentIndex++;
-                
-                if (!file.matchesEnvironment()) {
-                    logger.info(getURL(group, file) + " does NOT match environment");
-                    continue;
-                }
-                
-                if (!file.matchesFilter(manifest.getComponents())) {
-                    logger.info(getURL(group, file) + " does NOT match filter");
-                    continue;
-                }
-
-                // Try to download
-                int retryNum = 0;
-                Exception e = null;
-                for (int trial = 0; trial < downloadTries; trial++) {
+        // One sampler reports the progress of all the downloads together
+        progressSampler = new ProgressSampler(this, PROGRESS_INTERVAL);
+        progressSampler.start();
+        
+        try {
+            for (FileGroup group : manifest.getFileGroups()) {
+                for (PackageFile file : group.getFiles()) {
                     LauncherUtils.checkInterrupted();
                     
-                    logger.info("Downloading " + getURL(group, file) + "...");
-
-                    fireStatusChange(String.format(
-                            "Downloading %s (%d/%d) [try %d]...",
-                            file.getFile().getName(),
-                            currentIndex + 1, numFiles, trial + 1
-                            ));
-                    fireAdjustedValueChange((downloadedEstimatedSize)
-                            / (double) totalEstimatedSize);
+                    index++;
                     
-                    if ((e = downloadFile(group, file)) == null) {
-                        break;
-                    } else {
-                        retryNum++;
-                        fireDownloadStatusChange("Download failed; retrying (" + retryNum + ")...");
-                        Launcher.showConsole();
-                        logger.warning("Failed to download " + getURL(group, file));
-                        Thread.sleep(retryDelay);
+                    if (!file.matchesEnvironment()) {
+                        logger.info(getURL(group, file) + " does NOT match environment");
+                        continue;
+                    }
+                    
+                    if (!file.matchesFilter(manifest.getComponents())) {
+                        logger.info(getURL(group, file) + " does NOT match filter");
+                        continue;
+                    }
+                    
+                    if (plan.isUnchanged(file)) {
+                        cache.touch(getCacheId(file));
+                        file.setIgnored(true);
+                        continue;
                     }
+                    
+                    final FileGroup fileGroup = group;
+                    final PackageFile packageFile = file;
+                    final int fileIndex = index;
+                    
+                    scheduler.submit(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            downloadFile(fileGroup, packageFile, fileIndex);
+                            return null;
+                        }
+                    });
                 }
+            }
+            
+            scheduler.awaitCompletion();
+        } catch (ExecutionException e) {
+            rethrow(e, "Could not download files");
+        } finally {
+            scheduler.shutdown();
+            progressSampler.stop();
+        }
+    }
+    
+    /**
+     * Download the given file, retrying as necessary.
+     * 
+     * <p>A failed download, including one that does not match its hash,
+     * moves on to the next best mirror straight away. Once every mirror has
+     * failed, the download waits with exponential backoff before going
+     * through the mirrors again. Every mirror is tried at least once before
+     * the download gives up.</p>
+     * 
+     * @param group the group
+     * @param file the file
+     * @param index the index of the file
+     * @throws UpdateException on download error
+     * @throws InterruptedException on interruption
+     */
+    private void downloadFile(FileGroup group, PackageFile file, int index) 
+            throws UpdateException, InterruptedException {
+        if (plan.isStored(file) && copyFromStore(group, file)) {
+            synchronized (this) {
+                completedCount++;
+            }
+            return;
+        }
+        
+        Patch patch = findPatch(group, file);
+        if (patch != null && applyPatch(group, file, patch)) {
+            synchronized (this) {
+                completedCount++;
+                downloadedEstimatedSize += plan.getDownloadSize(file);
+            }
+            return;
+        }
+        
+        EntryDiff entryDiff = findEntryDiff(group, file);
+        if (entryDiff != null && applyEntryDiff(group, file, entryDiff)) {
+            synchronized (this) {
+                completedCount++;
+                downloadedEstimatedSize += plan.getDownloadSize(file);
+            }
+            return;
+        }
+        
+        // Try to download
+        List<String> sources = group.getSources();
+        Set<String> tried = new HashSet<String>();
+        int retryNum = 0;
+        int backoffNum = 0;
+        Exception e = null;
+        int tries = Math.max(downloadTries, sources.size());
+        for (int trial = 0; trial < tries; trial++) {
+            LauncherUtils.checkInterrupted();
+            
+            String source = pickSource(group, file, tried);
+            URL url = group.getURL(baseUrl, source, file);
+            
+            logger.info("Downloading " + url + "...");
+
+            // The progress sampler reports ordinary progress, so only retries
+            // are announced here
+            if (trial > 0) {
+                fireStatusChange(String.format(
+                        "Downloading %s (%d/%d) [try %d]...",
+                        file.getFile().getName(),
+                        index + 1, numFiles, trial + 1
+                        ));
+            }
+            
+            // A split download only uses the connections that its host has
+            // free, so that it stays within the limit per host
+            hostLimiter.acquire(url);
+            int connections = 1;
+            if (segmentThreshold > 0 && file.getSize() >= segmentThreshold) {
+                connections += hostLimiter.tryAcquire(url, segmentCount - 1);
+            }
+            try {
+                e = downloadFile(group, file, source, connections);
+            } finally {
+                hostLimiter.release(url, connections);
+            }
+            
+            if (e == null) {
+                break;
+            } else {
+                retryNum++;
+                mirrorSelector.recordFailure(source);
+                tried.add(source);
+                Launcher.showConsole();
+                logger.warning("Failed to download " + url);
                 
-                if (e != null) {
-                    throw new UpdateException(
-                            "Could not download " + file + 
-                            ": " + e.getMessage(), e);
+                if (mirrorSelector.pick(sources, file.getSize(), tried) != null) {
+                    fireDownloadStatusChange(file, "Download failed; trying another mirror (" + retryNum + ")...");
+                } else {
+                    fireDownloadStatusChange(file, "Download failed; retrying (" + retryNum + ")...");
+                    tried.clear();
+                    Thread.sleep(getRetryDelay(backoffNum++));
                 }
-                
-                downloadedEstimatedSize += file.getSize();
             }
         }
+        
+        if (e != null) {
+            throw new UpdateException(
+                    "Could not download " + file + 
+                    ": " + e.getMessage(), e);
+        }
+        
+        synchronized (this) {
+            completedCount++;
+            downloadedEstimatedSize += plan.getDownloadSize(file);
+        }
     }
     
     /**
@@ -223,16 +1350,19 @@ public class PackageManifestUpdater implements Updater, DownloadListener {
      * 
      * @param group the group
      * @param file the file
+     * @param source the source or mirror to download from
+     * @param connections the number of connections that the download may use
      * @return exception if there was a recoverable error
      * @throws UpdateException on download error
      * @throws InterruptedException on interruption
      */
-    private Exception downloadFile(FileGroup group, PackageFile file) 
+    private Exception downloadFile(FileGroup group, PackageFile file, String source, 
+            int connections) 
             throws UpdateException, InterruptedException {
         
-        OutputStream out;
+        Downloader downloader;
         MessageDigest digest = null; // Not null if we are verifying the file hash
-        URL url = getURL(group, file);
+        URL url = group.getURL(baseUrl, source, file);
         String cacheId = getCacheId(file);
         String lastVersion = cache.getFileVersion(cacheId);
         
@@ -240,9 +1370,13 @@ public class PackageManifestUpdater implements Updater, DownloadListener {
         cache.touch(cacheId);
         
         // Load the MessageDigest used for verification
-        if (!forced) {
+        // A file with a known hash is verified even when forcing an update
+        if (!forced || file.getHash() != null) {
             try {
                 digest = group.createMessageDigest(); // May return null
+                if (digest == null && file.getHash() != null) {
+                    digest = MessageDigest.getInstance("SHA-256");
+                }
             } catch (NoSuchAlgorithmException e) {
                 throw new UpdateException("Unknown digest algorithm: " + e.getMessage());
             }
@@ -252,8 +1386,7 @@ public class PackageManifestUpdater implements Updater, DownloadListener {
 
         // The file kept after the download has finished
         // To be later transformed/read to be converted into the final file
-        File tempFile = new File(downloadDir, "_" + 
-                LauncherUtils.getDigestAsHex(url.toExternalForm(), "MD5"));
+        File tempFile = getTempFile(group, file);
         
         // The download file is where the data stored during the download
         // We use two different files because the system/Java can die any second and
@@ -264,20 +1397,42 @@ public class PackageManifestUpdater implements Updater, DownloadListener {
         // We will use this later
         file.setTempFile(tempFile);
 
-        // Now open a stream
-        try {
-            out = new BufferedOutputStream(new FileOutputStream(downloadFile));
-        } catch (IOException e) {
-            throw new UpdateException(
-                    "Could not write to " + tempFile.getAbsolutePath() + ".", e);
+        LauncherUtils.checkInterrupted();
+
+        // Archives can be extracted into a staging directory as they arrive,
+        // unless a finished download is already waiting to be installed
+        ArchiveStager stager = null;
+        if (pipelinedExtraction && file instanceof Archive && 
+                ((Archive) file).isExtractable() && !tempFile.exists()) {
+            try {
+                stager = new ArchiveStager((Archive) file, 
+                        new File(downloadDir, tempFile.getName() + ".stage"));
+            } catch (IOException e) {
+                return e;
+            }
         }
 
-        LauncherUtils.checkInterrupted();
+        // If an earlier try left a partial .download file, the downloader
+        // will try to resume it rather than start over
+        if (stager != null) {
+            downloader = createDownloader(url, stager.getOutputStream());
+        } else {
+            downloader = createDownloader(url, downloadFile, connections);
+        }
+        downloader.addDownloadListener(this);
+        downloader.setProgressSampler(progressSampler);
+        synchronized (this) {
+            activeDownloads.put(downloader, file);
+        }
+
+        // Whether to leave the partial .download file for the next try
+        boolean keepPartial = false;
+        
+        // Whether the archive was extracted and verified
+        boolean staged = false;
 
         // Attempt downloading
         try {
-            downloader = new URLConnectionDownloader(url, out);
-            downloader.addDownloadListener(this);
             
             boolean needsUpdate = true;
             
@@ -288,12 +1443,18 @@ public class PackageManifestUpdater implements Updater, DownloadListener {
                 if (lastVersion != null && lastVersion.equals(file.getVersion())) {
                     needsUpdate = false;
                 }
-            // But Mojang has their own digest-based + E-Tag method that we also support
-            } else {
-                if (digest != null) {
-                    downloader.setMessageDigest(digest);
-                    downloader.setEtagCheck(cache.getFileVersion(cacheId));
+            // The expected hash of the file works as a version too
+            } else if (!forced && file.getHash() != null) {
+                if (lastVersion != null && matchesDigest(lastVersion, file.getHash())) {
+                    needsUpdate = false;
                 }
+            // But Mojang has their own digest-based + E-Tag method that we also support
+            } else if (!forced && digest != null) {
+                downloader.setEtagCheck(cache.getFileVersion(cacheId));
+            }
+            
+            if (digest != null) {
+                downloader.setMessageDigest(digest);
             }
 
             LauncherUtils.checkInterrupted();
@@ -308,18 +1469,40 @@ public class PackageManifestUpdater implements Updater, DownloadListener {
                     logger.info("Found file already downloaded at " + tempFile.getAbsolutePath());
                     
                     // Pretend that we downloaded it
+                } else if (stager != null) {
+                    logger.info("Downloading and extracting to " + 
+                            stager.getDir().getAbsolutePath() + "...");
+                    
+                    stager.start();
+                    
+                    if (downloader.download()) {
+                        stager.finish();
+                    } else {
+                        needsUpdate = false;
+                    }
                 } else {
                     logger.info("Downloading to " + downloadFile.getAbsolutePath() + "...");
 
                     LauncherUtils.checkInterrupted();
                     
+                    // Only a download from the start measures the mirror's speed
+                    boolean fresh = !downloadFile.exists() || downloadFile.length() == 0;
+                    long start = System.currentTimeMillis();
+                    
                     if (downloader.download()) {
+                        if (fresh) {
+                            mirrorSelector.recordSuccess(source, 
+                                    downloader.getDownloadedLength(), 
+                                    System.currentTimeMillis() - start);
+                        }
+                        
                         // Rename the .download file to the temporary file
                         tempFile.delete();
                         downloadFile.renameTo(tempFile);
                     } else {
                         // E-tag mechanism can switch "needs update" flag back to false
                         needsUpdate = false;
+                        downloadFile.delete();
                     }
                 }
             }
@@ -330,16 +1513,31 @@ public class PackageManifestUpdater implements Updater, DownloadListener {
             if (needsUpdate) {
                 String storedVersion = null;
                 
-                // Check MD5 hash
+                // Check the hash against the manifest, or else the E-tag
                 if (digest != null) {
                     String signature = new BigInteger(1, digest.digest()).toString(16);
-                    if (!matchesDigest(downloader.getEtag(), signature)) {
-                        throw new UpdateException(
+                    String expected = file.getHash() != null ? 
+                            file.getHash() : downloader.getEtag();
+                    if (expected == null || !matchesDigest(expected, signature)) {
+                        // The mirror may be stale or damaged, so another
+                        // mirror is tried rather than giving up
+                        tempFile.delete();
+                        return new IOException(
                                 String.format("Signature for %s did not match; expected %s, got %s",
-                                        getURL(group, file), downloader.getEtag(), signature));
+                                        url, expected, signature));
                     }
                     
                     storedVersion = signature;
+                    
+                    // Share the verified download with other installations
+                    String key = getStoreKey(group, file);
+                    if (key != null && file.getHash() != null && stager == null) {
+                        try {
+                            contentStore.put(key, tempFile);
+                        } catch (IOException e) {
+                            logger.log(Level.WARNING, "Failed to add " + file + " to the store", e);
+                        }
+                    }
                 }
                 
                 // Use our own per-file versioning if we have that
@@ -355,37 +1553,91 @@ public class PackageManifestUpdater implements Updater, DownloadListener {
                 // This may clear the version if we don't have a version to store
                 // this time
                 cache.setFileVersion(cacheId, storedVersion);
+                
+                // The extracted files can be installed now that they are verified
+                if (stager != null) {
+                    ((Archive) file).setStagedDir(stager.getDir());
+                    staged = true;
+                }
             } else { // File already downloaded
                 file.setIgnored(true);
             }
             
             return null;
         } catch (IOException e) {
+            keepPartial = true;
             return e;
+        } catch (InterruptedException e) {
+            keepPartial = true;
+            throw e;
         } finally {
-            downloader = null;
-            LauncherUtils.close(out);
-            downloadFile.delete();
+            synchronized (this) {
+                activeDownloads.remove(downloader);
+            }
+            if (!keepPartial) {
+                downloadFile.delete();
+            }
+            if (stager != null && !staged) {
+                stager.abort();
+            }
+        }
+    }
+    
+    /**
+     * Create the downloader for a file. A download that may use several
+     * connections is split over them, and other downloads may reuse
+     * connections from earlier downloads.
+     * 
+     * @param url the URL to download
+     * @param target the file to download to
+     * @param connections the number of connections that the download may use
+     * @return the downloader
+     */
+    private Downloader createDownloader(URL url, File target, int connections) {
+        if (connections > 1) {
+            return new SegmentedDownloader(url, target, connections);
+        } else if (persistentConnections) {
+            return new PersistentConnectionDownloader(url, target);
+        }
+        return new URLConnectionDownloader(url, target);
+    }
+    
+    /**
+     * Create a downloader that writes to a stream. Such a download cannot be
+     * split or resumed.
+     * 
+     * @param url the URL to download
+     * @param output the stream to write to
+     * @return the downloader
+     */
+    private Downloader createDownloader(URL url, OutputStream output) {
+        if (persistentConnections) {
+            return new PersistentConnectionDownloader(url, output);
         }
+        return new URLConnectionDownloader(url, output);
     }
     
     /**
-     * Deploy newly-downloaded updates.
+     * Deploy newly-downloaded updates into the staging directory.
+     * 
+     * <p>Files that are kept if they already exist are only written when
+     * they are missing, so they are deployed straight into place.</p>
      * 
+     * @param log the uninstall log of the new installation
+     * @param deployment the staged deployment
+     * @return the relative paths of the files that were staged
      * @throws UpdateException 
      * @throws InterruptedException on interruption
      */
-    private void deploy(UninstallLog log) throws UpdateException, InterruptedException {
-        currentIndex = -1;
-
+    private Set<String> deploy(UninstallLog log, StagedDeployment deployment) 
+            throws UpdateException, InterruptedException {
+        DeployScheduler scheduler = new DeployScheduler(installThreads);
+        final UninstallLog stagedLog = new UninstallLog();
+        stagedLog.setBaseDir(deployment.getStagingDir());
+        manifest.setDestDir(deployment.getStagingDir());
+        
         for (FileGroup group : manifest.getFileGroups()) {
-            for (PackageFile file : group.getFiles()) {
-                LauncherUtils.checkInterrupted();
-                
-                logger.info("Installing " + file.getFile().getAbsolutePath());
-                
-                currentIndex++;
-                
+            for (final PackageFile file : group.getFiles()) {
                 if (!file.matchesEnvironment()) {
                     continue;
                 }
@@ -398,40 +1650,93 @@ public class PackageManifestUpdater implements Updater, DownloadListener {
                     continue;
                 }
                 
-                fireAdjustedValueChange(currentIndex / numFiles);
-                fireStatusChange(String.format(
-                        "Installing %s (%d/%d)...", file.getFile().getName(),
-                        currentIndex + 1, numFiles));
+                final UninstallLog fileLog;
+                if (file.getOverwrite() != null) {
+                    file.setDestDir(new File(rootDir, group.getDest()));
+                    fileLog = log;
+                } else {
+                    fileLog = stagedLog;
+                }
                 
-                try {
-                    file.getFile().getParentFile().mkdirs();
-                    file.deploy(log);
-                } catch (SecurityException e) {
-                    logger.log(Level.WARNING, "Failed to deploy " + file, e);
-                    throw new UpdateException("The digital signature(s) of " +
-                            file.getFile().getAbsolutePath() + " could not be verified: " + e.getMessage(), e);
-                } catch (IOException e) {
-                    logger.log(Level.WARNING, "Failed to deploy " + file, e);
-                    throw new UpdateException("Could not install to " +
-                            file.getFile().getAbsolutePath() + ": " + e.getMessage(), e);
-                } catch (Throwable e) {
-                    logger.log(Level.WARNING, "Failed to deploy " + file, e);
-                    throw new UpdateException("Could not install " +
-                            file.getFile().getAbsolutePath() + ": " + e.getMessage(), e);
+                // An archive may write anywhere in its directory
+                File target = file instanceof Archive ? 
+                        file.getFile().getParentFile() : file.getFile();
+                
+                scheduler.submit(target, new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        logger.info("Installing " + file.getFile().getAbsolutePath());
+                        file.getFile().getParentFile().mkdirs();
+                        file.deploy(fileLog);
+                        return null;
+                    }
+                });
+            }
+        }
+        
+        try {
+            scheduler.start();
+            
+            while (!scheduler.await(PROGRESS_INTERVAL * 4, TimeUnit.MILLISECONDS)) {
+                LauncherUtils.checkInterrupted();
+                
+                int count = scheduler.getCompletedCount();
+                fireAdjustedValueChange(count / (double) scheduler.getCount());
+                fireStatusChange(String.format(
+                        "Installing (%d/%d)...", count, scheduler.getCount()));
+            }
+        } finally {
+            scheduler.shutdown();
+            manifest.setDestDir(rootDir);
+        }
+        
+        Map<File, Throwable> failures = scheduler.getFailures();
+        if (failures.isEmpty()) {
+            // Staged paths are relative to the staging directory, which
+            // mirrors the installation
+            Set<String> staged = new HashSet<String>();
+            for (Entry<String, Set<String>> entry : stagedLog.getEntrySet()) {
+                for (String path : entry.getValue()) {
+                    log.add(entry.getKey(), path);
+                    staged.add(path);
                 }
             }
+            return staged;
+        }
+        
+        for (Entry<File, Throwable> entry : failures.entrySet()) {
+            logger.log(Level.WARNING, "Failed to deploy " + entry.getKey(), entry.getValue());
+        }
+        
+        Entry<File, Throwable> first = failures.entrySet().iterator().next();
+        String path = first.getKey().getAbsolutePath();
+        Throwable e = first.getValue();
+        String others = failures.size() > 1 ? 
+                String.format(" (%d other files also failed)", failures.size() - 1) : "";
+        
+        if (e instanceof SecurityException) {
+            throw new UpdateException("The digital signature(s) of " +
+                    path + " could not be verified: " + e.getMessage() + others, e);
+        } else if (e instanceof IOException) {
+            throw new UpdateException("Could not install to " +
+                    path + ": " + e.getMessage() + others, e);
+        } else {
+            throw new UpdateException("Could not install " +
+                    path + ": " + e.getMessage() + others, e);
         }
     }
     
     /**
-     * Delete old files from the previous installation.
+     * Find the files of the previous installation that are not part of the
+     * new one.
      * 
      * @param oldLog old log
      * @param newLog new log
+     * @return the relative paths of the files to remove, sorted
      * @throws UpdateException update exception
      * @throws InterruptedException on interruption
      */
-    private void deleteOldFiles(UninstallLog oldLog, UninstallLog newLog) 
+    private List<String> findOldFiles(UninstallLog oldLog, UninstallLog newLog) 
             throws UpdateException, InterruptedException {
         for (FileGroup group : manifest.getFileGroups()) {
             for (PackageFile file : group.getFiles()) {
@@ -443,15 +1748,204 @@ public class PackageManifestUpdater implements Updater, DownloadListener {
             }
         }
         
+        return oldLog.difference(newLog);
+    }
+    
+    /**
+     * Get the files of the manifest that apply to this installation.
+     * 
+     * @return a map of cache IDs to files, in manifest order
+     */
+    private Map<String, PackageFile> getInstalledFiles() {
+        Map<String, PackageFile> files = new LinkedHashMap<String, PackageFile>();
+        for (FileGroup group : manifest.getFileGroups()) {
+            for (PackageFile file : group.getFiles()) {
+                if (file.matchesEnvironment() && 
+                        file.matchesFilter(manifest.getComponents())) {
+                    files.put(getCacheId(file), file);
+                }
+            }
+        }
+        return files;
+    }
+    
+    /**
+     * Get the group that a file belongs to.
+     * 
+     * @param file the file
+     * @return the group, or null if not found
+     */
+    private FileGroup getGroup(PackageFile file) {
+        for (FileGroup group : manifest.getFileGroups()) {
+            if (group.getFiles().contains(file)) {
+                return group;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Wait for a hasher to finish, reporting its progress and throughput.
+     * 
+     * @param hasher the hasher
+     * @param verb what is being done, for status messages
+     * @throws InterruptedException on interruption
+     */
+    private void awaitHasher(ParallelHasher hasher, String verb) throws InterruptedException {
+        long start = System.nanoTime();
+        int total = Math.max(1, hasher.getCount());
+        
+        try {
+            hasher.start();
+            
+            while (!hasher.await(PROGRESS_INTERVAL * 4, TimeUnit.MILLISECONDS)) {
+                LauncherUtils.checkInterrupted();
+                
+                double seconds = Math.max(0.001, (System.nanoTime() - start) / 1000000000.0);
+                int count = hasher.getCompletedCount();
+                fireStatusChange(String.format("%s files (%d/%d, %.0f files/s, %.1f MB/s)...", 
+                        verb, count, hasher.getCount(), count / seconds, 
+                        hasher.getCompletedBytes() / seconds / 1024 / 1024));
+                fireAdjustedValueChange(count / (double) total);
+            }
+        } finally {
+            hasher.shutdown();
+        }
+        
+        double seconds = Math.max(0.001, (System.nanoTime() - start) / 1000000000.0);
+        logger.info(String.format("%s %d files (%,d KB) in %.1f s: %.0f files/s, %.1f MB/s",
+                verb, hasher.getCount(), hasher.getCompletedBytes() / 1024, seconds,
+                hasher.getCount() / seconds, 
+                hasher.getCompletedBytes() / seconds / 1024 / 1024));
+    }
+    
+    /**
+     * Check the installed files against the hashes that they had when they
+     * were installed, and mark the packages of any damaged or missing files
+     * so that they are downloaded again.
+     * 
+     * <p>Files that were installed before hashes were recorded can only be
+     * checked if they are stored as is in the package and the manifest or
+     * the update cache has their hash. Otherwise they are only checked to
+     * exist. Files that are not replaced on update are not checked.</p>
+     * 
+     * @param oldLog the uninstall log of the installation
+     * @throws InterruptedException on interruption
+     */
+    private void verifyInstallation(UninstallLog oldLog) throws InterruptedException {
+        Map<String, PackageFile> installed = getInstalledFiles();
+        Map<File, String> expectedHashes = new HashMap<File, String>();
+        Map<File, String> owners = new HashMap<File, String>();
+        Set<String> damaged = new HashSet<String>();
+        ParallelHasher hasher = new ParallelHasher(
+                Runtime.getRuntime().availableProcessors());
+        
         for (Entry<String, Set<String>> entry : oldLog.getEntrySet()) {
+            String cacheId = entry.getKey();
+            PackageFile file = installed.get(cacheId);
+            
+            // Files that are not in this update are removed anyway
+            if (file == null || file.getOverwrite() != null) {
+                continue;
+            }
+            
             for (String path : entry.getValue()) {
                 LauncherUtils.checkInterrupted();
                 
-                if (!newLog.has(path)) {
-                    new File(rootDir, path).delete();
+                File target = new File(rootDir, path);
+                String expected = cache.getInstalledHash(path);
+                String algorithm = INSTALL_HASH_ALGORITHM;
+                
+                // A single file that is not filtered is installed exactly as
+                // downloaded, so the hash of the download applies to it
+                if (expected == null && file instanceof SingleFile && !file.isFiltered()) {
+                    FileGroup group = getGroup(file);
+                    algorithm = group != null ? group.getDigestAlgorithm() : null;
+                    if (file.getHash() != null) {
+                        expected = file.getHash();
+                        algorithm = algorithm != null ? algorithm : "SHA-256";
+                    } else if (algorithm != null) {
+                        expected = cache.getFileVersion(cacheId);
+                    }
+                }
+                
+                if (!target.isFile()) {
+                    logger.info("Missing " + path);
+                    damaged.add(cacheId);
+                } else if (expected != null && algorithm != null) {
+                    hasher.add(target, algorithm);
+                    expectedHashes.put(target, expected);
+                    owners.put(target, cacheId);
+                }
+            }
+        }
+        
+        awaitHasher(hasher, "Verifying");
+        
+        for (Entry<File, String> entry : expectedHashes.entrySet()) {
+            String actual = hasher.getResult(entry.getKey());
+            if (actual == null || !matchesDigest(entry.getValue(), actual)) {
+                logger.info("Damaged " + entry.getKey().getAbsolutePath());
+                damaged.add(owners.get(entry.getKey()));
+            }
+        }
+        
+        // Forgetting the version makes the update download the package again
+        for (String cacheId : damaged) {
+            cache.setFileVersion(cacheId, null);
+        }
+        
+        logger.info(String.format("Verified %d files; %d packages need to be repaired",
+                hasher.getCount(), damaged.size()));
+    }
+    
+    /**
+     * Record the hashes of the files that were just installed, so that they
+     * can be verified later.
+     * 
+     * <p>Normally only the files deployed by this update are hashed and the
+     * recorded hashes of the other files are kept. After a verification,
+     * every installed file is hashed again.</p>
+     * 
+     * @param newLog the uninstall log of the new installation
+     * @param deployed the relative paths of the files deployed by this update
+     * @param all true to hash every installed file
+     * @throws InterruptedException on interruption
+     */
+    private void recordInstalledHashes(UninstallLog newLog, Set<String> deployed, 
+            boolean all) throws InterruptedException {
+        ParallelHasher hasher = new ParallelHasher(
+                Runtime.getRuntime().availableProcessors());
+        Map<File, String> paths = new HashMap<File, String>();
+        
+        for (Entry<String, PackageFile> entry : getInstalledFiles().entrySet()) {
+            PackageFile file = entry.getValue();
+            
+            // Files that are kept as they are may be changed by the user
+            if (file.getOverwrite() != null) {
+                continue;
+            }
+            
+            for (String path : newLog.getGroup(entry.getKey())) {
+                if (all || deployed.contains(path)) {
+                    File target = new File(rootDir, path);
+                    hasher.add(target, INSTALL_HASH_ALGORITHM);
+                    paths.put(target, path);
                 }
             }
         }
+        
+        awaitHasher(hasher, "Checking");
+        
+        for (Entry<File, String> entry : paths.entrySet()) {
+            cache.setInstalledHash(entry.getValue(), hasher.getResult(entry.getKey()));
+        }
+        
+        Set<String> entries = new HashSet<String>();
+        for (Entry<String, Set<String>> entry : newLog.getEntrySet()) {
+            entries.addAll(entry.getValue());
+        }
+        cache.retainInstalledHashes(entries);
     }
     
     /**
@@ -483,9 +1977,19 @@ public class PackageManifestUpdater implements Updater, DownloadListener {
     @Override
     public void update(UpdateType type) throws UpdateException, InterruptedException {
         // Set whether this update is forced
-        forced = type != UpdateType.INCREMENTAL;
+        forced = type == UpdateType.FULL;
         
         File logFile = new File(rootDir, "uninstall.dat");
+        StagedDeployment deployment = new StagedDeployment(rootDir);
+        deployment.setThreads(installThreads);
+        
+        try {
+            deployment.recover();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to roll back an interrupted update", e);
+            throw new UpdateException("An earlier update was interrupted and " +
+                    "could not be rolled back: " + e.getMessage(), e);
+        }
 
         showMessages(Phase.INITIALIZE);
         askComponents();
@@ -498,13 +2002,6 @@ public class PackageManifestUpdater implements Updater, DownloadListener {
             }
         }
         
-        logger.info("Downloading files...");
-        fireStatusChange("Downloading files...");
-        setSubprogress(0, 0.95);
-        showMessages(Phase.PRE_DOWNLOAD);
-        downloadFiles();
-        showMessages(Phase.POST_DOWNLOAD);
-        
         UninstallLog oldLog = new UninstallLog();
         UninstallLog newLog = new UninstallLog();
         newLog.setBaseDir(rootDir);
@@ -512,70 +2009,142 @@ public class PackageManifestUpdater implements Updater, DownloadListener {
             oldLog.read(logFile);
         } catch (IOException e) {
         }
+        
+        if (type == UpdateType.VERIFY) {
+            logger.info("Verifying installed files...");
+            fireStatusChange("Verifying installed files...");
+            setSubprogress(0, 0.05);
+            verifyInstallation(oldLog);
+        }
+        
+        // The checks for changed files already go to the best mirrors
+        probeMirrors();
+        
+        logger.info("Checking for changed files...");
+        fireStatusChange("Checking for changed files...");
+        setSubprogress(0, 0.05);
+        plan = createPlan();
+        logger.info("Update plan: " + plan);
+        
+        logger.info("Downloading files...");
+        fireStatusChange(String.format("Downloading %d files (%,d KB)...", 
+                plan.getDownloadCount(), plan.getTotalSize() / 1024));
+        setSubprogress(0.05, 0.9);
+        showMessages(Phase.PRE_DOWNLOAD);
+        downloadFiles();
+        showMessages(Phase.POST_DOWNLOAD);
 
         logger.info("Installing...");
         fireStatusChange("Installing...");
         setSubprogress(0.95, 0.05);
         showMessages(Phase.PRE_INSTALL);
-        deploy(newLog);
+        deployment.prepare();
+        Set<String> deployed = deploy(newLog, deployment);
         showMessages(Phase.POST_INSTALL);
 
-        logger.info("Removing old files...");
-        fireStatusChange("Removing old files...");
-        deleteOldFiles(oldLog, newLog);
-        
-        // Save install log
+        logger.info("Switching to the new version...");
+        fireStatusChange("Switching to the new version...");
+        List<String> removals = findOldFiles(oldLog, newLog);
         try {
-            newLog.write(logFile);
+            deployment.commit(removals, Arrays.asList(logFile, cache.getFile()));
         } catch (IOException e) {
-            logger.log(Level.WARNING, "Failed to write " + logFile, e);
-            throw new UpdateException("The uninstall log file could not be written to. " +
-            		"The update has been aborted.", e);
-        }
-
-        // Make sure to delete all the downloads if we're successful
-        try {
-            LauncherUtils.cleanDir(downloadDir);
-        } catch (InterruptedException e) {
+            logger.log(Level.WARNING, "Failed to switch the update into place", e);
+            throw new UpdateException("The update could not be installed and " +
+                    "has been rolled back: " + e.getMessage(), e);
         }
-        downloadDir.delete();
         
-        showMessages(Phase.FINALIZE);
-
-        cache.setLastUpdateId(targetVersion);
+        boolean finished = false;
         try {
-            cache.write();
-        } catch (IOException e) {
-            throw new UpdateException("Failed to save update cache");
+            logger.info("Recording installed files...");
+            recordInstalledHashes(newLog, deployed, type == UpdateType.VERIFY);
+            updateStoreReferences(newLog, logFile);
+            
+            // Save install log
+            try {
+                newLog.write(logFile);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to write " + logFile, e);
+                throw new UpdateException("The uninstall log file could not be written to. " +
+                        "The update has been aborted.", e);
+            }
+    
+            // Make sure to delete all the downloads if we're successful
+            try {
+                LauncherUtils.cleanDir(downloadDir);
+            } catch (InterruptedException e) {
+            }
+            downloadDir.delete();
+            
+            showMessages(Phase.FINALIZE);
+    
+            cache.setLastUpdateId(targetVersion);
+            try {
+                cache.write();
+            } catch (IOException e) {
+                throw new UpdateException("Failed to save update cache");
+            }
+            
+            deployment.finish();
+            finished = true;
+        } finally {
+            if (!finished) {
+                try {
+                    deployment.rollback();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to roll back the update", e);
+                }
+            }
         }
     }
     
     /**
-     * Get the current file.
+     * Get the fraction of the planned bytes that have been downloaded,
+     * including the progress of the downloads that are underway.
      * 
-     * @return the current file
+     * @return the progress, between 0 and 1
      */
-    private PackageFile getCurrentFile() {
-        int index = 0;
-        for (FileGroup group : manifest.getFileGroups()) {
-            for (PackageFile file : group.getFiles()) {
-                if (index == currentIndex) {
-                    return file;
-                }
-                index++;
+    private synchronized double getDownloadProgress() {
+        double downloaded = downloadedEstimatedSize;
+        long totalSize = plan.getTotalSize();
+        
+        if (totalSize <= 0) {
+            return 1;
+        }
+        
+        for (Entry<Downloader, PackageFile> entry : activeDownloads.entrySet()) {
+            long total = entry.getKey().getTotalLength();
+            if (total > 0) {
+                downloaded += plan.getDownloadSize(entry.getValue()) * 
+                        Math.min(1, entry.getKey().getDownloadedLength() / (double) total);
             }
         }
-        return null;
+        
+        return Math.min(1, downloaded / totalSize);
+    }
+    
+    /**
+     * Get the file being downloaded by the given downloader.
+     * 
+     * @param downloader the downloader
+     * @return the file, or null if the download is not active
+     */
+    private synchronized PackageFile getDownloadingFile(Downloader downloader) {
+        return activeDownloads.get(downloader);
     }
     
     /**
-     * Fires a status message for the currently downloading file.
+     * Fires a status message for a downloading file.
      * 
+     * @param file the file
      * @param message message to show
      */
-    private void fireDownloadStatusChange(String message) {
-        fireStatusChange(String.format("(%d left) %s: %s", numFiles - currentIndex,
-                getCurrentFile().getFile().getName(), message));
+    private void fireDownloadStatusChange(PackageFile file, String message) {
+        int left;
+        synchronized (this) {
+            left = plan.getDownloadCount() - completedCount;
+        }
+        fireStatusChange(String.format("(%d left) %s: %s", left,
+                file.getFile().getName(), message));
     }
 
     /**
@@ -583,7 +2152,6 @@ public class PackageManifestUpdater implements Updater, DownloadListener {
      */
     @Override
     public void connectionStarted(EventObject event) {
-        fireDownloadStatusChange("Connected.");
     }
 
     /**
@@ -595,27 +2163,65 @@ public class PackageManifestUpdater implements Updater, DownloadListener {
 
     @Override
     public void downloadProgress(DownloadProgressEvent event) {
-        long total = ((Downloader) event.getSource()).getTotalLength();
-        PackageFile download = getCurrentFile();
+        Downloader downloader = (Downloader) event.getSource();
+        PackageFile file = getDownloadingFile(downloader);
+        long total = downloader.getTotalLength();
+        
+        if (file == null) {
+            return;
+        }
         
         // If length is known
         if (total > 0) {
-            fireDownloadStatusChange(String.format("Downloaded %,d/%,d KB...",
+            fireDownloadStatusChange(file, String.format("Downloaded %,d/%,d KB...",
                     event.getDownloadedLength() / 1024, total / 1024));
-            fireAdjustedValueChange((downloadedEstimatedSize / (double) totalEstimatedSize) +
-                    (download.getSize() / (double) totalEstimatedSize) *
-                    (event.getDownloadedLength() / (double) total));
         } else {
-            fireDownloadStatusChange(String.format("Downloaded %,d KB...",
+            fireDownloadStatusChange(file, String.format("Downloaded %,d KB...",
                     (event.getDownloadedLength() / 1024)));
         }
+        
+        fireAdjustedValueChange(getDownloadProgress());
+    }
+
+    @Override
+    public void progressSampled(List<Downloader> downloads) {
+        long downloaded = 0;
+        long total = 0;
+        PackageFile file = null;
+        
+        for (Downloader downloader : downloads) {
+            downloaded += downloader.getDownloadedLength();
+            total += Math.max(0, downloader.getTotalLength());
+            if (file == null) {
+                file = getDownloadingFile(downloader);
+            }
+        }
+        
+        if (file == null) {
+            return;
+        }
+        
+        if (downloads.size() > 1) {
+            int left;
+            synchronized (this) {
+                left = plan.getDownloadCount() - completedCount;
+            }
+            fireStatusChange(String.format(
+                    "(%d left) Downloading %d files: %,d/%,d KB...", left, 
+                    downloads.size(), downloaded / 1024, total / 1024));
+        } else if (total > 0) {
+            fireDownloadStatusChange(file, String.format("Downloaded %,d/%,d KB...",
+                    downloaded / 1024, total / 1024));
+        } else {
+            fireDownloadStatusChange(file, String.format("Downloaded %,d KB...",
+                    downloaded / 1024));
+        }
+        
+        fireAdjustedValueChange(getDownloadProgress());
     }
 
     @Override
     public void downloadCompleted(EventObject event) {
-        fireDownloadStatusChange("Download completed.");
-        fireAdjustedValueChange((downloadedEstimatedSize / (double) totalEstimatedSize) +
-                (getCurrentFile().getSize() / (double) totalEstimatedSize));
     }
     
     /**
@@ -729,7 +2335,7 @@ public class PackageManifestUpdater implements Updater, DownloadListener {
     public static PackageManifest parsePackage(InputStream is) 
             throws UpdateException {
         try {
-            PackageManifest manifest = XmlUtils.parseJaxb(PackageManifest.class, is);
+            PackageManifest manifest = new PackageManifestReader(is).read();
             
             if (!manifest.isSupportedVersion()) {
                 throw new UpdateException(
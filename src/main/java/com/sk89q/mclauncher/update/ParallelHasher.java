@@ -0,0 +1,221 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.sk89q.mclauncher.update;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sk89q.mclauncher.util.LauncherUtils;
+
+/**
+ * Hashes many files at once on a pool of threads.
+ * 
+ * <p>Files are added with {@link #add(File, String)}, hashed after
+ * {@link #start()}, and their hashes read with {@link #getResult(File)} once
+ * {@link #await(long, TimeUnit)} returns true. The number of files and bytes
+ * hashed so far can be read at any time to report progress.</p>
+ */
+public class ParallelHasher {
+    
+    private static final int BUFFER_SIZE = 1024 * 64;
+    
+    private final int threads;
+    private final Map<File, String> algorithms = new HashMap<File, String>();
+    private final Map<File, String> results = new HashMap<File, String>();
+    private final AtomicInteger completedCount = new AtomicInteger();
+    private final AtomicLong completedBytes = new AtomicLong();
+    private ExecutorService executor;
+    private CountDownLatch latch;
+    
+    /**
+     * Construct the hasher.
+     * 
+     * @param threads the number of files to hash at once
+     */
+    public ParallelHasher(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+    
+    /**
+     * Add a file to hash.
+     * 
+     * @param file the file
+     * @param algorithm the name of the digest algorithm
+     */
+    public void add(File file, String algorithm) {
+        algorithms.put(file, algorithm);
+    }
+    
+    /**
+     * Start hashing the files that have been added.
+     */
+    public void start() {
+        List<Map.Entry<File, String>> entries = 
+                new ArrayList<Map.Entry<File, String>>(algorithms.entrySet());
+        latch = new CountDownLatch(entries.size());
+        executor = Executors.newFixedThreadPool(threads, new HasherThreadFactory());
+        
+        for (Map.Entry<File, String> entry : entries) {
+            final File file = entry.getKey();
+            final String algorithm = entry.getValue();
+            
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        String hash = hash(file, algorithm);
+                        synchronized (results) {
+                            results.put(file, hash);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (IOException e) {
+                    } catch (NoSuchAlgorithmException e) {
+                    }
+                    
+                    completedCount.incrementAndGet();
+                    latch.countDown();
+                }
+            });
+        }
+    }
+    
+    /**
+     * Hash a file.
+     * 
+     * @param file the file
+     * @param algorithm the name of the digest algorithm
+     * @return the hash, in hex
+     * @throws IOException on I/O error
+     * @throws NoSuchAlgorithmException if the algorithm is not known
+     * @throws InterruptedException on interruption
+     */
+    private String hash(File file, String algorithm) 
+            throws IOException, NoSuchAlgorithmException, InterruptedException {
+        MessageDigest digest = MessageDigest.getInstance(algorithm);
+        InputStream in = null;
+        
+        try {
+            in = new FileInputStream(file);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, len);
+                completedBytes.addAndGet(len);
+                LauncherUtils.checkInterrupted();
+            }
+        } finally {
+            LauncherUtils.close(in);
+        }
+        
+        return LauncherUtils.getHexString(digest.digest());
+    }
+    
+    /**
+     * Wait for every file to be hashed.
+     * 
+     * @param timeout the longest time to wait
+     * @param unit the unit of the timeout
+     * @return true if every file has been hashed
+     * @throws InterruptedException on interruption
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return latch.await(timeout, unit);
+    }
+    
+    /**
+     * Stop hashing and release the threads.
+     */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Get the hash of a file.
+     * 
+     * @param file the file
+     * @return the hash in hex, or null if the file could not be read
+     */
+    public String getResult(File file) {
+        synchronized (results) {
+            return results.get(file);
+        }
+    }
+    
+    /**
+     * Get the number of files added.
+     * 
+     * @return the number of files
+     */
+    public int getCount() {
+        return algorithms.size();
+    }
+    
+    /**
+     * Get the number of files hashed so far, including those that could
+     * not be read.
+     * 
+     * @return the number of files
+     */
+    public int getCompletedCount() {
+        return completedCount.get();
+    }
+    
+    /**
+     * Get the number of bytes hashed so far.
+     * 
+     * @return the number of bytes
+     */
+    public long getCompletedBytes() {
+        return completedBytes.get();
+    }
+    
+    /**
+     * Creates named daemon threads for the hashing pool.
+     */
+    private static class HasherThreadFactory implements ThreadFactory {
+        private int count = 0;
+        
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "File Hasher #" + (++count));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
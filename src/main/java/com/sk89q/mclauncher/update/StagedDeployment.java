@@ -0,0 +1,501 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.sk89q.mclauncher.util.LauncherUtils;
+
+/**
+ * Installs an update into a staging directory and then switches it into
+ * place, keeping the files that it replaced so that the update can be
+ * rolled back.
+ * 
+ * <p>Files are written under {@link #getStagingDir()}, with the same
+ * relative paths that they will have once installed. {@link #commit}
+ * moves the files that are about to be replaced or removed into the
+ * previous generation directory, and then moves the staged files into
+ * place. Only renames are done at that point, so the installation is
+ * only briefly in a mixed state.</p>
+ * 
+ * <p>Before anything is moved, the list of changes is written to a journal
+ * and synced to disk. This is the only sync. Until {@link #finish()} is
+ * called, the journal is marked as pending, and {@link #recover()} rolls
+ * the installation back to the previous generation. Files that are only
+ * copied into the previous generation, such as the update cache, are
+ * restored in the same way.</p>
+ * 
+ * <p>Files are moved on several threads, and directories that removals
+ * leave empty are removed too.</p>
+ */
+public class StagedDeployment {
+    
+    private static final Logger logger = 
+            Logger.getLogger(StagedDeployment.class.getCanonicalName());
+    
+    private static final String ADDED = "A";
+    private static final String REPLACED = "R";
+    
+    private final File rootDir;
+    private final File stagingDir;
+    private final File previousDir;
+    private final File pendingFile;
+    private final File journalFile;
+    private int threads = 4;
+    
+    /**
+     * Construct the deployment.
+     * 
+     * @param rootDir the directory of the installation
+     */
+    public StagedDeployment(File rootDir) {
+        this.rootDir = rootDir;
+        this.stagingDir = new File(rootDir, "_staging");
+        this.previousDir = new File(rootDir, "_previous");
+        this.pendingFile = new File(rootDir, "_previous.pending");
+        this.journalFile = new File(rootDir, "_previous.journal");
+    }
+    
+    /**
+     * Get the number of threads that files are moved with.
+     * 
+     * @return the number of threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Set the number of threads that files are moved with.
+     * 
+     * @param threads the number of threads
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+    
+    /**
+     * Get the directory that files are staged in.
+     * 
+     * @return the directory
+     */
+    public File getStagingDir() {
+        return stagingDir;
+    }
+    
+    /**
+     * Empty the staging directory, ready for a new update.
+     * 
+     * @throws InterruptedException on interruption
+     */
+    public void prepare() throws InterruptedException {
+        LauncherUtils.cleanDir(stagingDir);
+        stagingDir.mkdirs();
+    }
+    
+    /**
+     * Switch the staged files into place.
+     * 
+     * <p>If this fails, the changes that were made are rolled back.</p>
+     * 
+     * @param removals relative paths of installed files to remove
+     * @param backups files that will be rewritten once the update is
+     *                installed, and which are copied so that they can be
+     *                restored on rollback
+     * @throws IOException on I/O error
+     * @throws InterruptedException on interruption
+     */
+    public void commit(Collection<String> removals, Collection<File> backups) 
+            throws IOException, InterruptedException {
+        // Only the generation before this one is kept
+        LauncherUtils.cleanDir(previousDir);
+        previousDir.mkdirs();
+        journalFile.delete();
+        
+        List<String> staged = new ArrayList<String>();
+        listFiles(stagingDir, "", staged);
+        
+        List<String> journal = new ArrayList<String>();
+        for (String path : staged) {
+            journal.add((new File(rootDir, path).exists() ? REPLACED : ADDED) + " " + path);
+        }
+        for (String path : removals) {
+            if (new File(rootDir, path).exists()) {
+                journal.add(REPLACED + " " + path);
+            }
+        }
+        for (File file : backups) {
+            if (file.exists()) {
+                String path = LauncherUtils.getRelative(rootDir, file);
+                File backup = new File(previousDir, path);
+                backup.getParentFile().mkdirs();
+                LauncherUtils.copyFile(file, backup);
+                journal.add(REPLACED + " " + path);
+            }
+        }
+        
+        writeJournal(journal);
+        
+        logger.info(String.format("Switching %d staged files into place and removing %d...",
+                staged.size(), removals.size()));
+        
+        try {
+            moveAll(removals, false);
+            moveAll(staged, true);
+        } catch (IOException e) {
+            rollback();
+            throw e;
+        } catch (InterruptedException e) {
+            rollback();
+            throw e;
+        }
+        
+        pruneEmptyDirs(removals);
+        
+        LauncherUtils.cleanDir(stagingDir);
+        stagingDir.delete();
+    }
+    
+    /**
+     * Mark the update as complete, after which it is no longer rolled back by
+     * {@link #recover()} but can still be rolled back by {@link #rollback()}.
+     */
+    public void finish() {
+        journalFile.delete();
+        if (!pendingFile.renameTo(journalFile)) {
+            logger.warning("Could not mark the update as complete");
+        }
+    }
+    
+    /**
+     * Roll back an update that was interrupted while it was being switched
+     * into place or before it was finished.
+     * 
+     * @return true if an update was rolled back
+     * @throws IOException on I/O error
+     */
+    public boolean recover() throws IOException {
+        if (!pendingFile.exists()) {
+            return false;
+        }
+        
+        logger.warning("An update was interrupted while being installed; rolling back...");
+        rollback();
+        return true;
+    }
+    
+    /**
+     * Returns whether there is an installed update that can be rolled back.
+     * 
+     * @return true if there is an update to roll back
+     */
+    public boolean canRollback() {
+        return pendingFile.exists() || journalFile.exists();
+    }
+    
+    /**
+     * Restore the files of the previous generation, undoing the last update.
+     * 
+     * @throws IOException on I/O error
+     */
+    public void rollback() throws IOException {
+        File file = pendingFile.exists() ? pendingFile : journalFile;
+        if (!file.exists()) {
+            throw new IOException("There is no update to roll back");
+        }
+        
+        List<String> journal = readJournal(file);
+        
+        // Undo the changes in the opposite order to that they were made
+        for (int i = journal.size() - 1; i >= 0; i--) {
+            String line = journal.get(i);
+            String path = line.substring(2);
+            File target = new File(rootDir, path);
+            File previous = new File(previousDir, path);
+            
+            if (line.startsWith(ADDED)) {
+                target.delete();
+                
+                // Directories that only held new files go too
+                File parent = target.getParentFile();
+                while (parent != null && !parent.equals(rootDir) && parent.delete()) {
+                    parent = parent.getParentFile();
+                }
+            } else if (previous.exists()) {
+                target.delete();
+                move(previous, target);
+            }
+        }
+        
+        file.delete();
+        
+        try {
+            LauncherUtils.cleanDir(previousDir);
+            LauncherUtils.cleanDir(stagingDir);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        previousDir.delete();
+        stagingDir.delete();
+        
+        logger.info("Rolled back " + journal.size() + " files to the previous generation");
+    }
+    
+    /**
+     * Move files into place, or only aside for files that are removed, on
+     * several threads. Every move has stopped by the time that this returns.
+     * 
+     * @param paths the relative paths of the files
+     * @param staged true to move the staged files into place
+     * @throws IOException on I/O error
+     * @throws InterruptedException on interruption
+     */
+    private void moveAll(Collection<String> paths, final boolean staged) 
+            throws IOException, InterruptedException {
+        if (threads == 1 || paths.size() < 2) {
+            for (String path : paths) {
+                LauncherUtils.checkInterrupted();
+                movePath(path, staged);
+            }
+            return;
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool(
+                threads, new MoverThreadFactory());
+        
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (final String path : paths) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        movePath(path, staged);
+                        return null;
+                    }
+                }));
+            }
+            
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        } finally {
+            executor.shutdownNow();
+            
+            // A rollback must not race with moves that are still underway
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                        break;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+     * Move an installed file aside, and then move the staged file into its
+     * place if there is one.
+     * 
+     * @param path the relative path of the file
+     * @param staged true to move the staged file into place
+     * @throws IOException on I/O error
+     */
+    private void movePath(String path, boolean staged) throws IOException {
+        moveAside(path);
+        if (staged) {
+            move(new File(stagingDir, path), new File(rootDir, path));
+        }
+    }
+    
+    /**
+     * Remove the directories that removed files were in, and their parents,
+     * if they are now empty.
+     * 
+     * @param removals the relative paths of removed files
+     */
+    private void pruneEmptyDirs(Collection<String> removals) {
+        Set<File> checked = new HashSet<File>();
+        int count = 0;
+        
+        for (String path : removals) {
+            File parent = new File(rootDir, path).getParentFile();
+            while (parent != null && !parent.equals(rootDir) && checked.add(parent)) {
+                if (!parent.delete()) {
+                    break;
+                }
+                count++;
+                parent = parent.getParentFile();
+            }
+        }
+        
+        if (count > 0) {
+            logger.info("Removed " + count + " empty directories");
+        }
+    }
+    
+    /**
+     * Move an installed file into the previous generation, if it exists.
+     * 
+     * @param path the relative path of the file
+     * @throws IOException on I/O error
+     */
+    private void moveAside(String path) throws IOException {
+        File target = new File(rootDir, path);
+        if (target.exists()) {
+            move(target, new File(previousDir, path));
+        }
+    }
+    
+    /**
+     * Write the journal and sync it to disk.
+     * 
+     * @param journal the lines of the journal
+     * @throws IOException on I/O error
+     */
+    private void writeJournal(List<String> journal) throws IOException {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(pendingFile);
+            BufferedWriter writer = new BufferedWriter(
+                    new OutputStreamWriter(out, "UTF-8"));
+            for (String line : journal) {
+                writer.write(line);
+                writer.newLine();
+            }
+            writer.flush();
+            out.getFD().sync();
+        } finally {
+            LauncherUtils.close(out);
+        }
+    }
+    
+    /**
+     * Read a journal.
+     * 
+     * @param file the journal file
+     * @return the lines of the journal
+     * @throws IOException on I/O error
+     */
+    private static List<String> readJournal(File file) throws IOException {
+        List<String> journal = new ArrayList<String>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 2) {
+                    journal.add(line);
+                }
+            }
+        } finally {
+            LauncherUtils.close(reader);
+        }
+        return journal;
+    }
+    
+    /**
+     * Move a file, falling back to a copy if it cannot be renamed.
+     * 
+     * @param from the file to move
+     * @param to the destination
+     * @throws IOException on I/O error
+     */
+    private static void move(File from, File to) throws IOException {
+        to.getParentFile().mkdirs();
+        if (!from.renameTo(to)) {
+            LauncherUtils.copyFile(from, to);
+            if (!from.delete()) {
+                throw new IOException("Could not move " + from + " to " + to);
+            }
+        }
+    }
+    
+    /**
+     * Creates named daemon threads for moving files.
+     */
+    private static class MoverThreadFactory implements ThreadFactory {
+        private int count = 0;
+        
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Deployment Mover #" + (++count));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+    
+    /**
+     * List the files in a directory and its subdirectories.
+     * 
+     * @param dir the directory
+     * @param prefix the relative path of the directory, ending in a slash
+     * @param files the list to add relative paths to
+     */
+    private static void listFiles(File dir, String prefix, List<String> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        
+        for (File child : children) {
+            if (child.isDirectory()) {
+                listFiles(child, prefix + child.getName() + "/", files);
+            } else {
+                files.add(prefix + child.getName());
+            }
+        }
+    }
+
+}
@@ -18,15 +18,23 @@
 
 package com.sk89q.mclauncher.update;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.URI;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -35,13 +43,25 @@ import com.sk89q.mclauncher.util.LauncherUtils;
 /**
  * Holds a list of entries to uninstall.
  * 
+ * <p>Entries can be added and looked up from several threads at once.</p>
+ * 
+ * <p>The log is saved in a compact binary form. Every path, whether the
+ * name of a group or an entry, is written once in sorted order with the
+ * prefix that it shares with the path before it left out, and groups refer
+ * to their entries by index. Logs saved as text by earlier versions are
+ * still read, and are saved in the new form the next time.</p>
+ * 
  * @author sk89q
  */
 public class UninstallLog {
     
+    private static final int MAGIC = 0x534B554C;
+    private static final int FORMAT_VERSION = 1;
+    
     private Map<String, Set<String>> entries = new HashMap<String, Set<String>>();
     private Set<String> cache = new HashSet<String>();
     private File baseDir;
+    private String basePrefix;
     
     /**
      * Get the base directory.
@@ -59,6 +79,12 @@ public class UninstallLog {
      */
     public void setBaseDir(File baseDir) {
         this.baseDir = baseDir;
+        if (baseDir != null) {
+            String path = normalize(baseDir.getAbsolutePath());
+            this.basePrefix = path.endsWith("/") ? path : path + "/";
+        } else {
+            this.basePrefix = null;
+        }
     }
 
     /**
@@ -67,7 +93,7 @@ public class UninstallLog {
      * @param group group name
      * @param entry entry
      */
-    public void add(String group, String entry) {
+    public synchronized void add(String group, String entry) {
         cache.add(entry);
         Set<String> subentries = entries.get(group);
         if (subentries == null) {
@@ -93,7 +119,7 @@ public class UninstallLog {
      * @param entry entry
      * @return 
      */
-    public boolean has(String entry) {
+    public synchronized boolean has(String entry) {
         return cache.contains(entry);
     }
     
@@ -115,9 +141,13 @@ public class UninstallLog {
      * @return true if the group existed
      */
     public boolean copyGroupFrom(UninstallLog other, String group) {
-        Set<String> otherSet = other.entries.get(group);
-        if (otherSet == null) {
-            return false;
+        Set<String> otherSet;
+        synchronized (other) {
+            otherSet = other.entries.get(group);
+            if (otherSet == null) {
+                return false;
+            }
+            otherSet = new HashSet<String>(otherSet);
         }
         for (String entry : otherSet) {
             add(group, entry);
@@ -137,7 +167,21 @@ public class UninstallLog {
     }
     
     /**
-     * Get the entry set.
+     * Get the entries of a group.
+     * 
+     * @param group group name
+     * @return a copy of the entries, which may be empty
+     */
+    public synchronized Set<String> getGroup(String group) {
+        Set<String> subentries = entries.get(group);
+        if (subentries == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(new HashSet<String>(subentries));
+    }
+    
+    /**
+     * Get the entry set. It must not be read while entries are being added.
      * 
      * @return entry set
      */
@@ -151,23 +195,118 @@ public class UninstallLog {
      * @param group group name
      * @return whether the group exists
      */
-    public boolean hasGroup(String group) {
+    public synchronized boolean hasGroup(String group) {
         return entries.containsKey(group);
     }
     
+    /**
+     * Get every entry of every group.
+     * 
+     * @return the entries, sorted
+     */
+    public synchronized String[] getSortedEntries() {
+        String[] sorted = cache.toArray(new String[cache.size()]);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+    
+    /**
+     * Get the entries of this log that are not in another log, such as the
+     * files of an earlier installation that the next one does not have.
+     * 
+     * @param other the other log
+     * @return the entries, sorted
+     */
+    public List<String> difference(UninstallLog other) {
+        String[] ours = getSortedEntries();
+        String[] theirs = other.getSortedEntries();
+        List<String> difference = new ArrayList<String>();
+        
+        int j = 0;
+        for (String entry : ours) {
+            int cmp = -1;
+            while (j < theirs.length && (cmp = theirs[j].compareTo(entry)) < 0) {
+                j++;
+            }
+            if (j >= theirs.length || cmp != 0) {
+                difference.add(entry);
+            }
+        }
+        
+        return difference;
+    }
+    
     /**
      * Read the log from a file.
      * 
      * @param file file
      * @throws IOException on I/O error
      */
-    public void read(File file) throws IOException {
+    public synchronized void read(File file) throws IOException {
         entries = new HashMap<String, Set<String>>();
         cache = new HashSet<String>();
         
+        ByteBuffer buffer = readFully(file);
+        if (buffer.remaining() >= 8 && buffer.getInt(0) == MAGIC) {
+            readCompact(buffer);
+        } else {
+            readText(file);
+        }
+    }
+    
+    /**
+     * Read a log saved in the compact form.
+     * 
+     * @param buffer the contents of the file
+     * @throws IOException if the log is not valid
+     */
+    private void readCompact(ByteBuffer buffer) throws IOException {
+        try {
+            buffer.getInt();
+            int version = buffer.getInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unknown uninstall log version " + version);
+            }
+            
+            String[] paths = new String[readVarInt(buffer)];
+            String last = "";
+            for (int i = 0; i < paths.length; i++) {
+                int shared = readVarInt(buffer);
+                byte[] suffix = new byte[readVarInt(buffer)];
+                buffer.get(suffix);
+                last = last.substring(0, shared) + new String(suffix, "UTF-8");
+                paths[i] = last;
+            }
+            
+            int groupCount = readVarInt(buffer);
+            for (int i = 0; i < groupCount; i++) {
+                String group = paths[readVarInt(buffer)];
+                int count = readVarInt(buffer);
+                Set<String> subentries = new HashSet<String>(Math.max(16, count * 4 / 3 + 1));
+                int index = 0;
+                for (int j = 0; j < count; j++) {
+                    index += readVarInt(buffer);
+                    subentries.add(paths[index]);
+                }
+                cache.addAll(subentries);
+                entries.put(group, subentries);
+            }
+        } catch (RuntimeException e) {
+            // Bounds are not checked above, so a damaged log ends up here
+            throw new IOException("The uninstall log is damaged", e);
+        }
+    }
+    
+    /**
+     * Read a log saved as text by earlier versions.
+     * 
+     * @param file the file
+     * @throws IOException on I/O error
+     */
+    private void readText(File file) throws IOException {
         BufferedReader reader = null;
         try {
-            reader = new BufferedReader(new FileReader(file));
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
             String line;
             while ((line = reader.readLine()) != null) {
                 line = line.trim();
@@ -187,39 +326,170 @@ public class UninstallLog {
      * @param file file
      * @throws IOException on I/O error
      */
-    public void write(File file) throws IOException {
-        BufferedWriter writer = null;
+    public synchronized void write(File file) throws IOException {
+        Set<String> all = new HashSet<String>(cache);
+        all.addAll(entries.keySet());
+        String[] paths = all.toArray(new String[all.size()]);
+        Arrays.sort(paths);
+        
+        Map<String, Integer> indexes = new HashMap<String, Integer>(paths.length * 4 / 3 + 1);
+        for (int i = 0; i < paths.length; i++) {
+            indexes.put(paths[i], i);
+        }
+        
+        OutputStream fos = null;
         try {
-            writer = new BufferedWriter(new FileWriter(file));
-            for (Map.Entry<String, Set<String>> entry : entries.entrySet()) {
-                for (String subentry : entry.getValue()) {
-                    writer.append(entry.getKey());
-                    writer.append(":");
-                    writer.append(subentry);
-                    writer.newLine();
+            fos = new FileOutputStream(file);
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(fos, 1024 * 64));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            
+            writeVarInt(out, paths.length);
+            String last = "";
+            for (String path : paths) {
+                int shared = 0;
+                int max = Math.min(last.length(), path.length());
+                while (shared < max && last.charAt(shared) == path.charAt(shared)) {
+                    shared++;
+                }
+                // Don't split a surrogate pair between the prefix and suffix
+                if (shared > 0 && Character.isHighSurrogate(path.charAt(shared - 1))) {
+                    shared--;
+                }
+                byte[] suffix = path.substring(shared).getBytes("UTF-8");
+                writeVarInt(out, shared);
+                writeVarInt(out, suffix.length);
+                out.write(suffix);
+                last = path;
+            }
+            
+            String[] groups = entries.keySet().toArray(new String[entries.size()]);
+            Arrays.sort(groups);
+            writeVarInt(out, groups.length);
+            for (String group : groups) {
+                Set<String> subentries = entries.get(group);
+                int[] members = new int[subentries.size()];
+                int i = 0;
+                for (String entry : subentries) {
+                    members[i++] = indexes.get(entry);
+                }
+                Arrays.sort(members);
+                
+                writeVarInt(out, indexes.get(group));
+                writeVarInt(out, members.length);
+                int previous = 0;
+                for (int member : members) {
+                    writeVarInt(out, member - previous);
+                    previous = member;
                 }
             }
+            
+            out.flush();
         } finally {
-            LauncherUtils.close(writer);
+            LauncherUtils.close(fos);
         }
     }
     
+    /**
+     * Read a whole file into a buffer with one read, rather than line by line.
+     * 
+     * @param file the file
+     * @return the buffer
+     * @throws IOException on I/O error
+     */
+    private static ByteBuffer readFully(File file) throws IOException {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("The uninstall log is too large");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            LauncherUtils.close(in);
+        }
+    }
+    
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+    
+    private static int readVarInt(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("The uninstall log is damaged");
+    }
+    
     /**
      * Gets the relative path.
      * 
+     * <p>This works on the path strings, as going through URIs is
+     * slow with many files.</p>
+     * 
      * @param child child
      * @return path string
      * @throws IllegalArgumentException child is not in base
      */
     private String relativize(File child) {
-        if (baseDir == null) {
+        if (basePrefix == null) {
             throw new IllegalArgumentException("base directory is not set");
         }
-        URI uri = child.toURI();
-        String relative = baseDir.toURI().relativize(uri).getPath();
-        if (relative == uri.toString()) {
+        String path = normalize(child.getAbsolutePath());
+        if (!path.startsWith(basePrefix)) {
             throw new IllegalArgumentException("Child path not in base");
         }
-        return relative;
+        return path.substring(basePrefix.length());
+    }
+    
+    /**
+     * Use forward slashes in a path and resolve "." and ".." in it.
+     * 
+     * @param path the path
+     * @return the normalized path
+     */
+    private static String normalize(String path) {
+        if (File.separatorChar != '/') {
+            path = path.replace(File.separatorChar, '/');
+        }
+        if (!path.contains("/.")) {
+            return path;
+        }
+        
+        List<String> parts = new ArrayList<String>();
+        for (String part : path.split("/", -1)) {
+            if (part.equals(".")) {
+                continue;
+            } else if (part.equals("..") && parts.size() > 1) {
+                parts.remove(parts.size() - 1);
+            } else {
+                parts.add(part);
+            }
+        }
+        
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < parts.size(); i++) {
+            if (i > 0) {
+                builder.append('/');
+            }
+            builder.append(parts.get(i));
+        }
+        return builder.toString();
     }
 }
@@ -21,18 +21,30 @@ package com.sk89q.mclauncher.update;
 import static com.sk89q.mclauncher.util.XmlUtils.*;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
@@ -42,18 +54,53 @@ import org.w3c.dom.Node;
 import org.xml.sax.SAXException;
 
 import com.sk89q.mclauncher.model.Component;
-import com.sk89q.mclauncher.util.SimpleNode;
+import com.sk89q.mclauncher.util.LauncherUtils;
 
 /**
  * Stores update versioning information.
+ * 
+ * <p>The cache is kept in a journal that changes are appended to, so that
+ * saving it costs as much as what changed rather than the whole cache.
+ * Each record has its length and a checksum, and changes only count once
+ * {@link #write()} has appended a commit record after them, so changes
+ * that were cut off by a crash are left out when the cache is read again.
+ * Once the journal has grown well past what it describes, it is compacted
+ * by writing it again to a new file that replaces it.</p>
+ * 
+ * <p>A cache that was saved as XML by earlier versions, in a file of the
+ * same name but with the extension <code>.xml</code>, is read once and
+ * saved in the new form.</p>
  */
 public class UpdateCache {
     
+    private static final Logger logger = 
+            Logger.getLogger(UpdateCache.class.getCanonicalName());
+    
+    private static final int MAGIC = 0x534B5543;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+    
+    private static final int COMMIT = 0;
+    private static final int CURRENT = 1;
+    private static final int VERSION = 2;
+    private static final int REMOVE_VERSION = 3;
+    private static final int INSTALLED = 4;
+    private static final int REMOVE_INSTALLED = 5;
+    private static final int COMPONENT = 6;
+    private static final int MIRROR = 7;
+    
     private File file;
     private String lastUpdateId;
     private Map<String, String> hashCache = new HashMap<String, String>();
     private Map<String, Boolean> componentSelection = new HashMap<String, Boolean>();
     private Set<String> touched = new HashSet<String>();
+    private Map<String, MirrorStats> mirrors = new HashMap<String, MirrorStats>();
+    private Map<String, String> installedHashes = new HashMap<String, String>();
+    
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long committedLength = 0;
+    private int recordCount = 0;
     
     public UpdateCache(File file) {
         this.file = file;
@@ -64,13 +111,178 @@ public class UpdateCache {
         }
     }
     
-    public void read() throws IOException {
+    /**
+     * Get the file that the cache is stored in.
+     * 
+     * @return the file
+     */
+    public File getFile() {
+        return file;
+    }
+    
+    /**
+     * Get the file that earlier versions saved the cache to as XML.
+     * 
+     * @return the file
+     */
+    private File getLegacyFile() {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(file.getParentFile(), 
+                (dot > 0 ? name.substring(0, dot) : name) + ".xml");
+    }
+    
+    private File getCompactFile() {
+        return new File(file.getPath() + ".new");
+    }
+    
+    public synchronized void read() throws IOException {
         hashCache = new HashMap<String, String>();
         touched = new HashSet<String>();
-        InputStream in;
+        mirrors = new HashMap<String, MirrorStats>();
+        installedHashes = new HashMap<String, String>();
+        componentSelection = new HashMap<String, Boolean>();
+        lastUpdateId = null;
+        pending.reset();
+        committedLength = 0;
+        recordCount = 0;
+        
+        // A compaction that was cut off after the old journal was removed
+        File compactFile = getCompactFile();
+        if (!file.exists() && compactFile.exists()) {
+            compactFile.renameTo(file);
+        } else {
+            compactFile.delete();
+        }
+        
+        if (!file.exists()) {
+            File legacyFile = getLegacyFile();
+            if (!legacyFile.equals(file) && legacyFile.exists()) {
+                readXml(legacyFile);
+                logger.info("Moving the update cache from " + legacyFile + " to " + file);
+                compact();
+                return;
+            }
+        }
         
+        readJournal();
+    }
+    
+    /**
+     * Read the journal, applying every change up to the last commit.
+     * 
+     * @throws IOException on I/O error
+     */
+    private void readJournal() throws IOException {
+        InputStream fis = null;
         try {
-            in = new BufferedInputStream(new FileInputStream(file));
+            fis = new FileInputStream(file);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(fis, 1024 * 64));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Not an update cache journal: " + file);
+            }
+            
+            long offset = HEADER_SIZE;
+            committedLength = HEADER_SIZE;
+            List<byte[]> uncommitted = new ArrayList<byte[]>();
+            int records = 0;
+            CRC32 crc = new CRC32();
+            
+            while (true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_SIZE) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(payload);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                    offset += 8 + length;
+                } catch (EOFException e) {
+                    break;
+                }
+                
+                records++;
+                if (payload[0] == COMMIT) {
+                    for (byte[] record : uncommitted) {
+                        apply(record);
+                    }
+                    uncommitted.clear();
+                    committedLength = offset;
+                    recordCount = records;
+                } else {
+                    uncommitted.add(payload);
+                }
+            }
+            
+            if (!uncommitted.isEmpty()) {
+                logger.warning("Discarded " + uncommitted.size() + 
+                        " unsaved changes to the update cache");
+            }
+        } finally {
+            LauncherUtils.close(fis);
+        }
+    }
+    
+    /**
+     * Apply one record of the journal.
+     * 
+     * @param payload the record
+     * @throws IOException on a damaged record
+     */
+    private void apply(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int type = in.readByte();
+        switch (type) {
+        case CURRENT:
+            lastUpdateId = in.readBoolean() ? in.readUTF() : null;
+            break;
+        case VERSION:
+            hashCache.put(in.readUTF(), in.readUTF());
+            break;
+        case REMOVE_VERSION:
+            hashCache.remove(in.readUTF());
+            break;
+        case INSTALLED:
+            installedHashes.put(in.readUTF(), in.readUTF());
+            break;
+        case REMOVE_INSTALLED:
+            installedHashes.remove(in.readUTF());
+            break;
+        case COMPONENT:
+            componentSelection.put(in.readUTF(), in.readBoolean());
+            break;
+        case MIRROR:
+            String url = in.readUTF();
+            MirrorStats stats = new MirrorStats();
+            stats.setLatency(in.readDouble());
+            stats.setThroughput(in.readDouble());
+            stats.setFailures(in.readInt());
+            mirrors.put(url, stats);
+            break;
+        default:
+            // Records from a newer version are skipped
+            break;
+        }
+    }
+    
+    /**
+     * Read a cache that was saved as XML by an earlier version.
+     * 
+     * @param legacyFile the file
+     * @throws IOException on I/O error
+     */
+    private void readXml(File legacyFile) throws IOException {
+        InputStream in = null;
+        
+        try {
+            in = new BufferedInputStream(new FileInputStream(legacyFile));
 
             Document doc = parseXml(in);
             XPath xpath = XPathFactory.newInstance().newXPath();
@@ -79,7 +291,9 @@ public class UpdateCache {
             for (Node node : getNodes(doc, xpath.compile("/cache/entry"))) {
                 String path = getValue(node);
                 String hash = getAttrOrNull(node, "hash");
-                hashCache.put(path, hash);
+                if (hash != null) {
+                    hashCache.put(path, hash);
+                }
             }
             
             // Read all the <component> elements
@@ -91,82 +305,308 @@ public class UpdateCache {
                 }
             }
             
+            // Read all the <mirror> elements
+            for (Node node : getNodes(doc, xpath.compile("/cache/mirror"))) {
+                String url = getAttrOrNull(node, "url");
+                if (url != null) {
+                    MirrorStats stats = new MirrorStats();
+                    stats.setLatency(parseDouble(getAttrOrNull(node, "latency"), -1));
+                    stats.setThroughput(parseDouble(getAttrOrNull(node, "throughput"), -1));
+                    stats.setFailures((int) parseDouble(getAttrOrNull(node, "failures"), 0));
+                    mirrors.put(url, stats);
+                }
+            }
+            
+            // Read all the <installed> elements
+            for (Node node : getNodes(doc, xpath.compile("/cache/installed"))) {
+                String path = getAttrOrNull(node, "path");
+                String hash = getAttrOrNull(node, "hash");
+                if (path != null && hash != null) {
+                    installedHashes.put(path, hash);
+                }
+            }
+            
             lastUpdateId = getStringOrNull(doc, xpath.compile("/cache/current/text()"));
         } catch (XPathExpressionException e) {
             throw new RuntimeException(e);
         } catch (ParserConfigurationException e) {
             throw new RuntimeException(e);
         } catch (SAXException e) {
-            throw new RuntimeException(e);
+            throw new IOException("Failed to read " + legacyFile, e);
+        } finally {
+            LauncherUtils.close(in);
         }
     }
     
-    public void write() throws IOException {
+    /**
+     * Save the changes made since the cache was last saved.
+     * 
+     * <p>Versions of files that were not touched since the cache was read
+     * are forgotten.</p>
+     * 
+     * @throws IOException on I/O error
+     */
+    public synchronized void write() throws IOException {
+        Iterator<String> it = hashCache.keySet().iterator();
+        while (it.hasNext()) {
+            String path = it.next();
+            if (!touched.contains(path)) {
+                it.remove();
+                append(REMOVE_VERSION, path);
+            }
+        }
+        
+        // Mirror measurements are changed in place, so they are always saved
+        for (Map.Entry<String, MirrorStats> entry : mirrors.entrySet()) {
+            appendMirror(entry.getKey(), entry.getValue());
+        }
+        
+        int liveCount = hashCache.size() + installedHashes.size() + 
+                componentSelection.size() + mirrors.size() + 1;
+        if (committedLength < HEADER_SIZE || !file.exists() || 
+                recordCount > liveCount * 2 + 256) {
+            compact();
+            return;
+        }
+        
+        append(COMMIT);
+        
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
         try {
-            Document doc = newXml();
-            SimpleNode root = start(doc, "cache");
+            // Anything past the last commit was cut off and is dropped
+            raf.setLength(committedLength);
+            raf.seek(committedLength);
+            raf.write(pending.toByteArray());
+            raf.getFD().sync();
+            committedLength = raf.length();
+        } finally {
+            LauncherUtils.close(raf);
+        }
+        
+        pending.reset();
+    }
     
-            if (lastUpdateId != null) {
-                root.addNode("current").addValue(lastUpdateId);
+    /**
+     * Write the whole cache to a new journal that replaces the old one.
+     * 
+     * @throws IOException on I/O error
+     */
+    private void compact() throws IOException {
+        pending.reset();
+        recordCount = 0;
+        
+        append(CURRENT, lastUpdateId);
+        for (Map.Entry<String, String> entry : hashCache.entrySet()) {
+            append(VERSION, entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, String> entry : installedHashes.entrySet()) {
+            append(INSTALLED, entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Boolean> entry : componentSelection.entrySet()) {
+            appendComponent(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, MirrorStats> entry : mirrors.entrySet()) {
+            appendMirror(entry.getKey(), entry.getValue());
+        }
+        append(COMMIT);
+        
+        File compactFile = getCompactFile();
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(compactFile);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            pending.writeTo(out);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            LauncherUtils.close(fos);
+        }
+        
+        // Renaming over a file fails on Windows, so the old journal goes
+        // first; read() finishes the job if this is cut off in between
+        if (!compactFile.renameTo(file)) {
+            file.delete();
+            if (!compactFile.renameTo(file)) {
+                throw new IOException("Failed to replace " + file);
             }
-            
-            for (Map.Entry<String, String> entry : hashCache.entrySet()) {
-                if (!touched.contains(entry.getKey())) {
-                    continue; // Delete old entries
+        }
+        
+        committedLength = file.length();
+        pending.reset();
+    }
+    
+    /**
+     * Add a record to the changes to be saved.
+     * 
+     * @param type the type of record
+     * @param values strings to write, of which null is only allowed for
+     *               {@link #CURRENT}
+     */
+    private void append(int type, String ... values) {
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeByte(type);
+            if (type == CURRENT) {
+                out.writeBoolean(values[0] != null);
+                if (values[0] != null) {
+                    out.writeUTF(values[0]);
+                }
+            } else {
+                for (String value : values) {
+                    out.writeUTF(value);
                 }
-                
-                root.addNode("entry")
-                        .addValue(entry.getKey())
-                        .setAttr("hash", entry.getValue());
-            }
-            
-            for (Map.Entry<String, Boolean> entry : componentSelection.entrySet()) {
-                root.addNode("component")
-                        .addValue(entry.getKey())
-                        .setAttr("id", entry.getKey())
-                        .setAttr("selected", entry.getValue() ? "true" : "false");
             }
-
-            writeXml(doc, file);
-        } catch (ParserConfigurationException e) {
+            appendRecord(buffer.toByteArray());
+        } catch (IOException e) {
             throw new RuntimeException(e);
-        } catch (TransformerConfigurationException e) {
+        }
+    }
+    
+    private void appendComponent(String id, boolean selected) {
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeByte(COMPONENT);
+            out.writeUTF(id);
+            out.writeBoolean(selected);
+            appendRecord(buffer.toByteArray());
+        } catch (IOException e) {
             throw new RuntimeException(e);
-        } catch (TransformerException e) {
+        }
+    }
+    
+    private void appendMirror(String url, MirrorStats stats) {
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeByte(MIRROR);
+            out.writeUTF(url);
+            out.writeDouble(stats.getLatency());
+            out.writeDouble(stats.getThroughput());
+            out.writeInt(stats.getFailures());
+            appendRecord(buffer.toByteArray());
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
     
-    public String getLastUpdateId() {
+    private void appendRecord(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        DataOutputStream out = new DataOutputStream(pending);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+        recordCount++;
+    }
+    
+    public synchronized String getLastUpdateId() {
         return lastUpdateId;
     }
 
-    public void setLastUpdateId(String lastUpdateId) {
+    public synchronized void setLastUpdateId(String lastUpdateId) {
         this.lastUpdateId = lastUpdateId;
+        append(CURRENT, lastUpdateId);
     }
 
-    public String getFileVersion(String path) {
+    public synchronized String getFileVersion(String path) {
         return hashCache.get(path);
     }
     
-    public void setFileVersion(String path, String hash) {
+    public synchronized void setFileVersion(String path, String hash) {
         if (hash == null) {
-            hashCache.remove(path);
+            if (hashCache.remove(path) != null) {
+                append(REMOVE_VERSION, path);
+            }
         } else {
             touch(path);
-            hashCache.put(path, hash);
+            if (!hash.equals(hashCache.put(path, hash))) {
+                append(VERSION, path, hash);
+            }
         }
     }
 
-    public void touch(String cacheId) {
+    public synchronized void touch(String cacheId) {
         touched.add(cacheId);
     }
     
-    public void storeSelection(Component component) {
-        componentSelection.put(component.getId(), component.isSelected());
+    /**
+     * Get the hash that an installed file had when it was installed.
+     * 
+     * @param path the path, relative to the installation directory
+     * @return the hash, or null if not known
+     */
+    public synchronized String getInstalledHash(String path) {
+        return installedHashes.get(path);
+    }
+    
+    /**
+     * Set the hash of an installed file.
+     * 
+     * @param path the path, relative to the installation directory
+     * @param hash the hash, or null to forget it
+     */
+    public synchronized void setInstalledHash(String path, String hash) {
+        if (hash == null) {
+            if (installedHashes.remove(path) != null) {
+                append(REMOVE_INSTALLED, path);
+            }
+        } else if (!hash.equals(installedHashes.put(path, hash))) {
+            append(INSTALLED, path, hash);
+        }
+    }
+    
+    /**
+     * Forget the hashes of installed files that are not in the given set.
+     * 
+     * @param paths the paths of the files still installed
+     */
+    public synchronized void retainInstalledHashes(Set<String> paths) {
+        Iterator<String> it = installedHashes.keySet().iterator();
+        while (it.hasNext()) {
+            String path = it.next();
+            if (!paths.contains(path)) {
+                it.remove();
+                append(REMOVE_INSTALLED, path);
+            }
+        }
+    }
+    
+    /**
+     * Get the measurements of a mirror, creating them if needed.
+     * 
+     * @param url the base URL of the mirror
+     * @return the measurements
+     */
+    public synchronized MirrorStats getMirrorStats(String url) {
+        MirrorStats stats = mirrors.get(url);
+        if (stats == null) {
+            stats = new MirrorStats();
+            mirrors.put(url, stats);
+        }
+        return stats;
+    }
+    
+    private static double parseDouble(String value, double def) {
+        if (value == null) return def;
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+    
+    public synchronized void storeSelection(Component component) {
+        Boolean previous = componentSelection.put(component.getId(), component.isSelected());
+        if (previous == null || previous != component.isSelected()) {
+            appendComponent(component.getId(), component.isSelected());
+        }
     }
     
-    public void recallSelection(Component component) {
+    public synchronized void recallSelection(Component component) {
         Boolean value = componentSelection.get(component.getId());
         if (value != null) {
             component.setSelected(value);
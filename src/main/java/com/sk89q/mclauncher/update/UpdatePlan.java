@@ -0,0 +1,130 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.sk89q.mclauncher.update;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.sk89q.mclauncher.model.PackageFile;
+
+/**
+ * The result of checking every file of a package against the server before
+ * any of it is downloaded: which files have to be fetched and how large they
+ * are, and which files are unchanged or already in the shared store.
+ */
+public class UpdatePlan {
+    
+    private final Map<PackageFile, Long> downloads = new LinkedHashMap<PackageFile, Long>();
+    private final Set<PackageFile> unchanged = new HashSet<PackageFile>();
+    private final Set<PackageFile> stored = new HashSet<PackageFile>();
+    private long totalSize = 0;
+    
+    /**
+     * Add a file that has to be downloaded.
+     * 
+     * @param file the file
+     * @param size the number of bytes to download
+     */
+    public synchronized void addDownload(PackageFile file, long size) {
+        Long previous = downloads.put(file, size);
+        if (previous != null) {
+            totalSize -= previous;
+        }
+        totalSize += size;
+    }
+    
+    /**
+     * Add a file that is already up to date.
+     * 
+     * @param file the file
+     */
+    public synchronized void addUnchanged(PackageFile file) {
+        unchanged.add(file);
+    }
+    
+    /**
+     * Add a file that has changed but whose new contents are already in
+     * the shared store.
+     * 
+     * @param file the file
+     */
+    public synchronized void addStored(PackageFile file) {
+        stored.add(file);
+    }
+    
+    /**
+     * Returns whether the given file is already up to date.
+     * 
+     * @param file the file
+     * @return true if unchanged
+     */
+    public synchronized boolean isUnchanged(PackageFile file) {
+        return unchanged.contains(file);
+    }
+    
+    /**
+     * Returns whether the given file can be taken from the shared store.
+     * 
+     * @param file the file
+     * @return true if stored
+     */
+    public synchronized boolean isStored(PackageFile file) {
+        return stored.contains(file);
+    }
+    
+    /**
+     * Get the number of bytes that will be downloaded for a file.
+     * 
+     * @param file the file
+     * @return the size, or 0 if the file is not downloaded
+     */
+    public synchronized long getDownloadSize(PackageFile file) {
+        Long size = downloads.get(file);
+        return size != null ? size : 0;
+    }
+    
+    /**
+     * Get the number of files to download.
+     * 
+     * @return the number of files
+     */
+    public synchronized int getDownloadCount() {
+        return downloads.size();
+    }
+    
+    /**
+     * Get the total number of bytes to download.
+     * 
+     * @return the size in bytes
+     */
+    public synchronized long getTotalSize() {
+        return totalSize;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return String.format("%d files to download (%,d KB), %d from the store, " +
+                "%d unchanged", downloads.size(), totalSize / 1024, 
+                stored.size(), unchanged.size());
+    }
+
+}
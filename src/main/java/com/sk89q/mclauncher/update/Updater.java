@@ -39,7 +39,14 @@ public interface Updater {
         /**
          * Implies that the update should update everything (again).
          */
-        FULL
+        FULL,
+
+        /**
+         * Implies that the installed files should be checked, and only the
+         * files that are damaged or missing be downloaded again along with
+         * any changed files.
+         */
+        VERIFY
     }
     
     /**
@@ -29,6 +29,7 @@ import java.util.logging.Logger;
 
 import com.sk89q.mclauncher.Launcher;
 import com.sk89q.mclauncher.config.Configuration;
+import com.sk89q.mclauncher.config.SettingsList;
 import com.sk89q.mclauncher.model.PackageManifest;
 import com.sk89q.mclauncher.session.LoginSession;
 import com.sk89q.mclauncher.session.MinecraftSession;
@@ -100,12 +101,16 @@ public class VanillaUpdateCheck implements UpdateCheck {
             LauncherUtils.close(is);
         }
         
-        return new PackageManifestUpdater(
+        PackageManifestUpdater updater = new PackageManifestUpdater(
                 BASE_URL,
                 manifest, 
                 configuration.getMinecraftDir(), 
                 cache, 
                 session.getLatestVersion());
+        updater.readSettings(new SettingsList(
+                Launcher.getInstance().getOptions().getSettings(),
+                configuration.getSettings()));
+        return updater;
     }
     
     /**
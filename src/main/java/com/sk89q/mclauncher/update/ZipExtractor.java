@@ -0,0 +1,251 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.sk89q.mclauncher.util.LauncherUtils;
+
+/**
+ * Extracts entries of a zip file on a pool of threads.
+ * 
+ * <p>Entries are found through the central directory of the archive, so
+ * each can be inflated independently of the others. Entries are added with
+ * {@link #add(ZipEntry, File)} and then written with {@link #extract()}.
+ * Directories are only created once, and each thread reuses its own copy
+ * buffer.</p>
+ * 
+ * <p>Every entry is read to its end, so that if the archive was opened as a
+ * verifying {@link java.util.jar.JarFile}, the digest of every entry is
+ * checked, and a {@link SecurityException} is thrown from
+ * {@link #extract()} on a mismatch.</p>
+ */
+public class ZipExtractor {
+    
+    private static final int BUFFER_SIZE = 1024 * 64;
+    
+    private final ZipFile zip;
+    private final int threads;
+    private final List<Item> items = new ArrayList<Item>();
+    private final Set<File> createdDirs = 
+            Collections.synchronizedSet(new HashSet<File>());
+    private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+    
+    /**
+     * Construct the extractor.
+     * 
+     * @param zip the archive, which is not closed by the extractor
+     * @param threads the number of entries to extract at once
+     */
+    public ZipExtractor(ZipFile zip, int threads) {
+        this.zip = zip;
+        this.threads = Math.max(1, threads);
+    }
+    
+    /**
+     * Add an entry to extract.
+     * 
+     * @param entry the entry
+     * @param target the file to write it to
+     */
+    public void add(ZipEntry entry, File target) {
+        items.add(new Item(entry, target));
+    }
+    
+    /**
+     * Get the number of entries added.
+     * 
+     * @return the number of entries
+     */
+    public int getCount() {
+        return items.size();
+    }
+    
+    /**
+     * Extract every entry that has been added, returning once all of them
+     * have been written.
+     * 
+     * @throws IOException on I/O error, or interruption
+     */
+    public void extract() throws IOException {
+        if (threads == 1 || items.size() < 2) {
+            for (Item item : items) {
+                item.call();
+            }
+            return;
+        }
+        
+        // Start with the largest entries so that one is not left for last
+        List<Item> sorted = new ArrayList<Item>(items);
+        Collections.sort(sorted, new Comparator<Item>() {
+            @Override
+            public int compare(Item o1, Item o2) {
+                long size1 = o1.entry.getCompressedSize();
+                long size2 = o2.entry.getCompressedSize();
+                return size1 > size2 ? -1 : (size1 < size2 ? 1 : 0);
+            }
+        });
+        
+        ExecutorService executor = Executors.newFixedThreadPool(
+                threads, new ExtractorThreadFactory());
+        
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (Item item : sorted) {
+                futures.add(executor.submit(item));
+            }
+            
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Create a directory and its parents, unless this extractor has already
+     * done so.
+     * 
+     * @param dir the directory
+     * @throws IOException if the directory could not be created
+     */
+    private void mkdirs(File dir) throws IOException {
+        if (dir == null || createdDirs.contains(dir)) {
+            return;
+        }
+        
+        // Another thread may be creating the same directory
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Could not create the directory " + dir);
+        }
+        
+        createdDirs.add(dir);
+    }
+    
+    /**
+     * Write an entry to a file.
+     * 
+     * @param entry the entry
+     * @param target the file
+     * @throws IOException on I/O error, or interruption
+     */
+    private void write(ZipEntry entry, File target) throws IOException {
+        mkdirs(target.getParentFile());
+        
+        InputStream in = null;
+        FileOutputStream out = null;
+        
+        try {
+            in = zip.getInputStream(entry);
+            out = new FileOutputStream(target);
+            
+            byte[] buffer = buffers.get();
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+                checkInterrupted();
+            }
+        } finally {
+            LauncherUtils.close(out);
+            LauncherUtils.close(in);
+        }
+        
+        checkInterrupted();
+    }
+    
+    /**
+     * Throw an exception if the current thread has been interrupted.
+     * 
+     * @throws InterruptedIOException thrown if interrupted
+     */
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.interrupted()) {
+            throw new InterruptedIOException();
+        }
+    }
+    
+    /**
+     * An entry and where to write it.
+     */
+    private class Item implements Callable<Void> {
+        private final ZipEntry entry;
+        private final File target;
+        
+        private Item(ZipEntry entry, File target) {
+            this.entry = entry;
+            this.target = target;
+        }
+        
+        @Override
+        public Void call() throws IOException {
+            write(entry, target);
+            return null;
+        }
+    }
+    
+    /**
+     * Creates named daemon threads for the extraction pool.
+     */
+    private static class ExtractorThreadFactory implements ThreadFactory {
+        private int count = 0;
+        
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Archive Extractor #" + (++count));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
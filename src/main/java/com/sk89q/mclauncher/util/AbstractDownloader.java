@@ -1,5 +1,9 @@
 package com.sk89q.mclauncher.util;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URL;
 import java.security.MessageDigest;
@@ -14,11 +18,13 @@ public abstract class AbstractDownloader implements Downloader {
 
     private int timeout = 300000;
     private OutputStream output;
+    private File file;
     private URL url;
     private volatile boolean running = true;
     private String etagCheck = null;
     private MessageDigest digest;
     private EventListenerList listenerList = new EventListenerList();
+    private ProgressSampler progressSampler;
 
     /**
      * Construct the downloader instance.
@@ -31,6 +37,18 @@ public abstract class AbstractDownloader implements Downloader {
         this.output = output;
     }
 
+    /**
+     * Construct the downloader instance to download to a file. A partial
+     * file left over from an earlier attempt may be resumed.
+     * 
+     * @param url url to download
+     * @param file file to write to
+     */
+    public AbstractDownloader(URL url, File file) {
+        this.url = url;
+        this.file = file;
+    }
+
     @Override
     public void addDownloadListener(DownloadListener l) {
         listenerList.add(DownloadListener.class, l);
@@ -99,6 +117,29 @@ public abstract class AbstractDownloader implements Downloader {
         this.output = output;
     }
 
+    public File getFile() {
+        return file;
+    }
+
+    public void setFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Open the output. If a file is being downloaded to, a new stream
+     * to the file is opened; otherwise the output stream is returned.
+     * 
+     * @param append true to append to the existing contents of the file
+     * @return the output stream
+     * @throws IOException on I/O error
+     */
+    protected OutputStream openOutput(boolean append) throws IOException {
+        if (file != null) {
+            output = new BufferedOutputStream(new FileOutputStream(file, append));
+        }
+        return output;
+    }
+
     public URL getUrl() {
         return url;
     }
@@ -145,17 +186,46 @@ public abstract class AbstractDownloader implements Downloader {
         this.digest = digest;
     }
 
+    /**
+     * Wait for the shared {@link BandwidthLimiter} to allow the transfer of
+     * the given number of bytes.
+     * 
+     * @param bytes the number of bytes
+     * @throws InterruptedException on interruption
+     */
+    protected void throttle(int bytes) throws InterruptedException {
+        BandwidthLimiter.getInstance().acquire(bytes);
+    }
+
+    public ProgressSampler getProgressSampler() {
+        return progressSampler;
+    }
+
+    @Override
+    public void setProgressSampler(ProgressSampler progressSampler) {
+        this.progressSampler = progressSampler;
+    }
+
     @Override
     public void cancel() {
         running = false;
     }
     
     /**
-     * Used to fire periodical progress events.
+     * Used to fire periodical progress events. If a {@link ProgressSampler}
+     * is set, the downloader is registered with the sampler instead.
      */
     protected class ProgressEventUpdater implements Runnable {
         private volatile boolean running = true;
         
+        public void start() {
+            if (progressSampler != null) {
+                progressSampler.add(AbstractDownloader.this);
+            } else {
+                (new Thread(this)).start();
+            }
+        }
+        
         @Override
         public void run() {
             while (running) {
@@ -170,6 +240,9 @@ public abstract class AbstractDownloader implements Downloader {
         
         public void stop() {
             running = false;
+            if (progressSampler != null) {
+                progressSampler.remove(AbstractDownloader.this);
+            }
         }
     }
 
@@ -0,0 +1,137 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.sk89q.mclauncher.util;
+
+import com.sk89q.mclauncher.config.Def;
+import com.sk89q.mclauncher.config.SettingsList;
+
+/**
+ * A token bucket that limits the combined download rate of every downloader
+ * in the launcher.
+ * 
+ * <p>The rate can be changed at any time and takes effect on running
+ * downloads.</p>
+ */
+public class BandwidthLimiter {
+
+    private static final BandwidthLimiter instance = new BandwidthLimiter();
+    private static final long MAX_WAIT = 100;
+    
+    private volatile long rate = 0;
+    private double tokens = 0;
+    private long lastRefill = System.nanoTime();
+    
+    /**
+     * Get the limiter shared by all downloads.
+     * 
+     * @return the limiter
+     */
+    public static BandwidthLimiter getInstance() {
+        return instance;
+    }
+    
+    /**
+     * Read the rate limit from the given settings.
+     * 
+     * @param settings the settings
+     */
+    public void readSettings(SettingsList settings) {
+        setRate(settings.getLong(Def.UPDATE_RATE_LIMIT, 0) * 1024);
+    }
+    
+    /**
+     * Get the total rate limit.
+     * 
+     * @return the rate in bytes per second, or 0 if there is no limit
+     */
+    public long getRate() {
+        return rate;
+    }
+    
+    /**
+     * Change the rate limit. Downloads that are waiting are woken up so
+     * that the new limit applies right away.
+     * 
+     * @param rate the total rate in bytes per second, or 0 for no limit
+     */
+    public synchronized void setRate(long rate) {
+        this.rate = Math.max(0, rate);
+        tokens = 0;
+        lastRefill = System.nanoTime();
+        notifyAll();
+    }
+    
+    /**
+     * Wait until the given number of bytes may be transferred. A transfer
+     * larger than the bucket is allowed to go into debt, which later
+     * transfers then wait out.
+     * 
+     * @param bytes the number of bytes
+     * @throws InterruptedException on interruption
+     */
+    public void acquire(int bytes) throws InterruptedException {
+        if (rate == 0) {
+            return;
+        }
+        
+        synchronized (this) {
+            while (true) {
+                refill();
+                
+                if (rate == 0 || tokens > 0) {
+                    if (rate > 0) {
+                        tokens -= bytes;
+                    }
+                    return;
+                }
+                
+                wait(getWaitTime());
+            }
+        }
+    }
+    
+    /**
+     * Add the tokens earned since the last refill. The bucket holds at most
+     * one second's worth of tokens.
+     */
+    private void refill() {
+        long now = System.nanoTime();
+        double elapsed = (now - lastRefill) / 1000000000.0;
+        lastRefill = now;
+        
+        if (rate > 0) {
+            tokens = Math.min(rate, tokens + elapsed * rate);
+        }
+    }
+    
+    /**
+     * Get how long to wait before checking the bucket again.
+     * 
+     * @return the time in milliseconds
+     */
+    private long getWaitTime() {
+        double wait = 1;
+        if (rate > 0 && tokens <= 0) {
+            wait = Math.max(wait, -tokens * 1000 / rate);
+        }
+        return Math.min(MAX_WAIT, (long) Math.ceil(wait));
+    }
+
+}
@@ -0,0 +1,348 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Creates and applies binary patches that turn one version of a file into
+ * another.
+ * 
+ * <p>The old file is indexed in blocks by a rolling hash, and the new file
+ * is scanned for those blocks. Matches are extended as far as possible in
+ * both directions and become copies from the old file, while everything in
+ * between is stored as is. The list of copies and inserted bytes is
+ * deflated, so bytes that changed little still cost little.</p>
+ * 
+ * <p>A patch starts with a header that has the lengths of both files, so
+ * that a patch is never applied to the wrong file.</p>
+ */
+public final class BinaryDelta {
+    
+    private static final int MAGIC = 0x534B4446;
+    private static final int BLOCK_SIZE = 32;
+    private static final int MULTIPLIER = 0x01000193;
+    private static final int MAX_PROBES = 8;
+    
+    private static final int END = 0;
+    private static final int COPY = 1;
+    private static final int INSERT = 2;
+    
+    private BinaryDelta() {
+    }
+    
+    /**
+     * Create a patch.
+     * 
+     * @param oldFile the old version
+     * @param newFile the new version
+     * @param out the stream to write the patch to, which is not closed
+     * @throws IOException on I/O error
+     */
+    public static void create(File oldFile, File newFile, OutputStream out) throws IOException {
+        byte[] source = readFully(oldFile);
+        byte[] target = readFully(newFile);
+        
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeLong(source.length);
+        header.writeLong(target.length);
+        header.flush();
+        
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, 1024 * 64);
+        DataOutputStream ops = new DataOutputStream(deflated);
+        
+        try {
+            writeOps(source, target, ops);
+            ops.flush();
+            deflated.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+    
+    /**
+     * Write the copies and insertions that turn one array into another.
+     * 
+     * @param source the old bytes
+     * @param target the new bytes
+     * @param ops the stream to write to
+     * @throws IOException on I/O error
+     */
+    private static void writeOps(byte[] source, byte[] target, DataOutputStream ops) 
+            throws IOException {
+        int blocks = source.length / BLOCK_SIZE;
+        int tableSize = Integer.highestOneBit(Math.max(1024, blocks * 2)) * 2;
+        int mask = tableSize - 1;
+        int[] offsets = new int[tableSize]; // Offset + 1, or 0 if empty
+        int[] hashes = new int[tableSize];
+        
+        for (int i = 0; i < blocks; i++) {
+            int hash = hash(source, i * BLOCK_SIZE);
+            int slot = mix(hash) & mask;
+            for (int probe = 0; probe < MAX_PROBES; probe++) {
+                if (offsets[slot] == 0) {
+                    offsets[slot] = i * BLOCK_SIZE + 1;
+                    hashes[slot] = hash;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+        
+        int power = 1;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            power *= MULTIPLIER;
+        }
+        
+        int pos = 0;
+        int pending = 0; // Start of the bytes not written yet
+        int hash = target.length >= BLOCK_SIZE ? hash(target, 0) : 0;
+        
+        while (pos + BLOCK_SIZE <= target.length) {
+            int match = -1;
+            int slot = mix(hash) & mask;
+            for (int probe = 0; probe < MAX_PROBES && offsets[slot] != 0; probe++) {
+                int offset = offsets[slot] - 1;
+                if (hashes[slot] == hash && 
+                        equal(source, offset, target, pos, BLOCK_SIZE)) {
+                    match = offset;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            
+            if (match < 0) {
+                if (pos + BLOCK_SIZE < target.length) {
+                    hash = hash * MULTIPLIER + (target[pos + BLOCK_SIZE] & 0xff) 
+                            - power * (target[pos] & 0xff);
+                }
+                pos++;
+                continue;
+            }
+            
+            int length = BLOCK_SIZE;
+            while (pos + length < target.length && match + length < source.length &&
+                    target[pos + length] == source[match + length]) {
+                length++;
+            }
+            while (pos > pending && match > 0 && target[pos - 1] == source[match - 1]) {
+                pos--;
+                match--;
+                length++;
+            }
+            
+            writeInsert(ops, target, pending, pos - pending);
+            ops.writeByte(COPY);
+            writeVarLong(ops, match);
+            writeVarLong(ops, length);
+            
+            pos += length;
+            pending = pos;
+            if (pos + BLOCK_SIZE <= target.length) {
+                hash = hash(target, pos);
+            }
+        }
+        
+        writeInsert(ops, target, pending, target.length - pending);
+        ops.writeByte(END);
+    }
+    
+    /**
+     * Apply a patch.
+     * 
+     * @param oldFile the old version
+     * @param patch the patch
+     * @param out the stream to write the new version to, which is not closed
+     * @throws IOException on I/O error, or if the patch is not for the file
+     */
+    public static void apply(File oldFile, InputStream patch, OutputStream out) 
+            throws IOException {
+        DataInputStream header = new DataInputStream(patch);
+        if (header.readInt() != MAGIC) {
+            throw new IOException("Not a patch");
+        }
+        long sourceLength = header.readLong();
+        long targetLength = header.readLong();
+        
+        if (oldFile.length() != sourceLength) {
+            throw new IOException(String.format(
+                    "The patch is for a file of %d bytes, but %s has %d bytes",
+                    sourceLength, oldFile, oldFile.length()));
+        }
+        
+        DataInputStream ops = new DataInputStream(new InflaterInputStream(patch));
+        RandomAccessFile source = null;
+        byte[] buffer = new byte[1024 * 64];
+        long written = 0;
+        
+        try {
+            source = new RandomAccessFile(oldFile, "r");
+            
+            int op;
+            while ((op = ops.readUnsignedByte()) != END) {
+                if (op == COPY) {
+                    long offset = readVarLong(ops);
+                    long length = readVarLong(ops);
+                    if (offset < 0 || length < 0 || offset + length > sourceLength) {
+                        throw new IOException("The patch is damaged");
+                    }
+                    
+                    source.seek(offset);
+                    while (length > 0) {
+                        int len = (int) Math.min(buffer.length, length);
+                        source.readFully(buffer, 0, len);
+                        out.write(buffer, 0, len);
+                        length -= len;
+                        written += len;
+                    }
+                } else if (op == INSERT) {
+                    long length = readVarLong(ops);
+                    while (length > 0) {
+                        int len = (int) Math.min(buffer.length, length);
+                        ops.readFully(buffer, 0, len);
+                        out.write(buffer, 0, len);
+                        length -= len;
+                        written += len;
+                    }
+                } else {
+                    throw new IOException("The patch is damaged");
+                }
+            }
+            
+            // Reading to the end checks the checksum of the deflated data
+            if (ops.read() != -1) {
+                throw new IOException("The patch is damaged");
+            }
+        } catch (EOFException e) {
+            throw new IOException("The patch is incomplete", e);
+        } finally {
+            LauncherUtils.close(source);
+        }
+        
+        if (written != targetLength) {
+            throw new IOException(String.format(
+                    "The patch produced %d bytes instead of %d", written, targetLength));
+        }
+    }
+    
+    /**
+     * Write bytes to insert, if there are any.
+     */
+    private static void writeInsert(DataOutputStream ops, byte[] data, int offset, int length) 
+            throws IOException {
+        if (length > 0) {
+            ops.writeByte(INSERT);
+            writeVarLong(ops, length);
+            ops.write(data, offset, length);
+        }
+    }
+    
+    /**
+     * Hash a block.
+     */
+    private static int hash(byte[] data, int offset) {
+        int hash = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            hash = hash * MULTIPLIER + (data[offset + i] & 0xff);
+        }
+        return hash;
+    }
+    
+    /**
+     * Spread the bits of a hash for use as a table index.
+     */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+    
+    /**
+     * Compare two ranges of bytes.
+     */
+    private static boolean equal(byte[] a, int offsetA, byte[] b, int offsetB, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[offsetA + i] != b[offsetB + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Write a non-negative number in as few bytes as it needs.
+     */
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+    
+    /**
+     * Read a number written by {@link #writeVarLong(DataOutputStream, long)}.
+     */
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("The patch is damaged");
+    }
+    
+    /**
+     * Read a whole file into memory.
+     */
+    private static byte[] readFully(File file) throws IOException {
+        long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException(file + " is too large to patch");
+        }
+        
+        byte[] data = new byte[(int) length];
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            new DataInputStream(in).readFully(data);
+        } finally {
+            LauncherUtils.close(in);
+        }
+        return data;
+    }
+
+}
@@ -0,0 +1,242 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.sk89q.mclauncher.util;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Updates a {@link MessageDigest} on its own thread.
+ * 
+ * <p>Data is copied into one of a fixed number of chunks, and each full
+ * chunk is queued for the hashing thread. The thread that reads the data
+ * only waits when the hashing thread has fallen a whole queue behind. The
+ * methods that queue data must all be called from the same thread.</p>
+ * 
+ * <p>Hashing runs on a pool of threads that all pipelines share, and chunks
+ * are returned to a shared pool once a pipeline has finished, so starting a
+ * pipeline is cheap. It still copies every byte, so it is only worth it for
+ * large amounts of data.</p>
+ */
+public class DigestPipeline implements Runnable {
+    
+    private static final int MAX_POOLED_CHUNKS = 32;
+    private static final ExecutorService executor = 
+            Executors.newCachedThreadPool(new HasherThreadFactory());
+    private static final ConcurrentLinkedQueue<Chunk> chunkPool = 
+            new ConcurrentLinkedQueue<Chunk>();
+    
+    private final MessageDigest digest;
+    private final int depth;
+    private final BlockingQueue<Chunk> pending;
+    private final BlockingQueue<Chunk> free;
+    private final Chunk end = new Chunk(0);
+    private Chunk current;
+    private Future<?> future;
+    
+    /**
+     * Construct the pipeline.
+     * 
+     * @param digest the digest to update
+     * @param chunkSize the size of each chunk
+     * @param depth the number of chunks
+     */
+    public DigestPipeline(MessageDigest digest, int chunkSize, int depth) {
+        this.digest = digest;
+        this.depth = depth;
+        this.pending = new ArrayBlockingQueue<Chunk>(depth + 1);
+        this.free = new ArrayBlockingQueue<Chunk>(depth);
+        
+        while (free.size() < depth) {
+            Chunk chunk = chunkPool.poll();
+            if (chunk == null) {
+                chunk = new Chunk(chunkSize);
+            } else if (chunk.data.length != chunkSize) {
+                continue;
+            }
+            free.add(chunk);
+        }
+    }
+    
+    /**
+     * Returns whether hashing on a separate thread can be expected to help,
+     * which is not the case with only one processor.
+     * 
+     * @return true if worthwhile
+     */
+    public static boolean isWorthwhile() {
+        return Runtime.getRuntime().availableProcessors() > 1;
+    }
+    
+    /**
+     * Start hashing on the shared pool.
+     */
+    public void start() {
+        future = executor.submit(this);
+    }
+    
+    /**
+     * Queue data to be hashed.
+     * 
+     * @param data the data
+     * @param off the offset
+     * @param len the length
+     * @throws InterruptedException on interruption
+     */
+    public void update(byte[] data, int off, int len) throws InterruptedException {
+        while (len > 0) {
+            Chunk chunk = getCurrent();
+            int n = Math.min(len, chunk.data.length - chunk.length);
+            System.arraycopy(data, off, chunk.data, chunk.length, n);
+            chunk.length += n;
+            off += n;
+            len -= n;
+            flushIfFull();
+        }
+    }
+    
+    /**
+     * Queue the remaining data of a buffer to be hashed. The position of the
+     * buffer is not changed.
+     * 
+     * @param buffer the buffer
+     * @throws InterruptedException on interruption
+     */
+    public void update(ByteBuffer buffer) throws InterruptedException {
+        ByteBuffer source = buffer.duplicate();
+        while (source.hasRemaining()) {
+            Chunk chunk = getCurrent();
+            int n = Math.min(source.remaining(), chunk.data.length - chunk.length);
+            source.get(chunk.data, chunk.length, n);
+            chunk.length += n;
+            flushIfFull();
+        }
+    }
+    
+    /**
+     * Get the chunk being filled, waiting for a free one if needed.
+     * 
+     * @return the chunk
+     * @throws InterruptedException on interruption
+     */
+    private Chunk getCurrent() throws InterruptedException {
+        if (current == null) {
+            current = free.take();
+            current.length = 0;
+        }
+        return current;
+    }
+    
+    /**
+     * Queue the chunk being filled once it is full.
+     * 
+     * @throws InterruptedException on interruption
+     */
+    private void flushIfFull() throws InterruptedException {
+        if (current.length == current.data.length) {
+            pending.put(current);
+            current = null;
+        }
+    }
+    
+    /**
+     * Wait for all the queued data to be hashed. The digest can be used
+     * once this returns.
+     * 
+     * @throws InterruptedException on interruption
+     */
+    public void finish() throws InterruptedException {
+        if (current != null) {
+            pending.put(current);
+            current = null;
+        }
+        pending.put(end);
+        
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        
+        // Every chunk is free again once the end has been reached
+        if (free.size() == depth) {
+            Chunk chunk;
+            while ((chunk = free.poll()) != null) {
+                if (chunkPool.size() < MAX_POOLED_CHUNKS) {
+                    chunkPool.add(chunk);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Stop hashing without waiting for the queued data. This does nothing
+     * once {@link #finish()} has returned.
+     */
+    public void abort() {
+        if (future != null) {
+            future.cancel(true);
+        }
+    }
+    
+    @Override
+    public void run() {
+        try {
+            Chunk chunk;
+            while ((chunk = pending.take()) != end) {
+                digest.update(chunk.data, 0, chunk.length);
+                free.put(chunk);
+            }
+        } catch (InterruptedException e) {
+        }
+    }
+    
+    /**
+     * Creates named daemon threads for hashing.
+     */
+    private static class HasherThreadFactory implements ThreadFactory {
+        private int count = 0;
+        
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Download Hasher #" + (++count));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+    
+    private static class Chunk {
+        private final byte[] data;
+        private int length;
+        
+        private Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+
+}
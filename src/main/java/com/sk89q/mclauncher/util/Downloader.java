@@ -58,6 +58,13 @@ public interface Downloader {
      */
     public abstract void setMessageDigest(MessageDigest digest);
 
+    /**
+     * Set a sampler to report progress to instead of firing progress events.
+     * 
+     * @param sampler the sampler, or null to fire progress events
+     */
+    public abstract void setProgressSampler(ProgressSampler sampler);
+
     /**
      * Initiate and complete the download. Events will be fired appropriately
      * during this period.
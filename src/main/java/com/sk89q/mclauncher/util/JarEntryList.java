@@ -0,0 +1,275 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * The list of entries of a jar or zip file, with a hash of the contents of
+ * each entry.
+ * 
+ * <p>Entries are kept in the order that they are in the file, so that the
+ * file can be put together again from its entries. The hashes are the
+ * same MD5 hashes that the versions of jar files are made from, and
+ * {@link #getSignature()} gives that version back.</p>
+ * 
+ * <p>A list is saved as gzipped text with one entry per line.</p>
+ */
+public final class JarEntryList {
+    
+    private static final String HEADER = "entries 1";
+    
+    private final List<Entry> entries = new ArrayList<Entry>();
+    
+    /**
+     * Create an empty list.
+     */
+    public JarEntryList() {
+    }
+    
+    /**
+     * Get the entries, in the order that they are in the file.
+     * 
+     * @return the list of entries
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+    
+    /**
+     * Returns whether no two entries have the same name. Such a file can't
+     * be put together again, as a zip can't be written with two entries of
+     * the same name.
+     * 
+     * @return true if every name is different
+     */
+    public boolean hasUniqueNames() {
+        Set<String> names = new HashSet<String>();
+        for (Entry entry : entries) {
+            if (!names.add(entry.getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Get the signature of the contents of the file, which is the version
+     * that is given to jar and zip files.
+     * 
+     * @return the signature, in hex
+     */
+    public String getSignature() {
+        List<Entry> sorted = new ArrayList<Entry>(entries);
+        Collections.sort(sorted);
+        MessageDigest digest = createDigest();
+        for (Entry entry : sorted) {
+            digest.update(entry.getName().getBytes());
+            digest.update((byte) 0);
+            digest.update(parseHex(entry.getHash()));
+        }
+        return LauncherUtils.getHexString(digest.digest());
+    }
+    
+    /**
+     * Write the list.
+     * 
+     * @param out the stream to write to, which is not closed
+     * @throws IOException on I/O error
+     */
+    public void write(OutputStream out) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(gzip, "UTF-8"));
+        writer.write(HEADER);
+        writer.write('\n');
+        for (Entry entry : entries) {
+            writer.write(entry.getHash());
+            writer.write('\t');
+            writer.write(String.valueOf(entry.getSize()));
+            writer.write('\t');
+            writer.write(String.valueOf(entry.getMethod()));
+            writer.write('\t');
+            writer.write(String.valueOf(entry.getTime()));
+            writer.write('\t');
+            writer.write(entry.getName());
+            writer.write('\n');
+        }
+        writer.flush();
+        gzip.finish();
+    }
+    
+    /**
+     * Read a list that was written with {@link #write(OutputStream)}.
+     * 
+     * @param in the stream to read from, which is not closed
+     * @return the list
+     * @throws IOException on I/O error or if the list is not valid
+     */
+    public static JarEntryList read(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(in), "UTF-8"));
+        if (!HEADER.equals(reader.readLine())) {
+            throw new IOException("Not a list of entries");
+        }
+        
+        JarEntryList list = new JarEntryList();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] parts = line.split("\t", 5);
+            if (parts.length != 5 || !parts[0].matches("[0-9a-fA-F]{32}")) {
+                throw new IOException("Invalid entry: " + line);
+            }
+            try {
+                list.entries.add(new Entry(parts[4], parts[0], 
+                        Long.parseLong(parts[1]), Integer.parseInt(parts[2]), 
+                        Long.parseLong(parts[3])));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid entry: " + line);
+            }
+        }
+        return list;
+    }
+    
+    /**
+     * Hash every entry of a jar or zip file.
+     * 
+     * @param in the stream of the file, which is not closed
+     * @return the list
+     * @throws IOException on I/O error
+     */
+    public static JarEntryList fromZip(InputStream in) throws IOException {
+        JarEntryList list = new JarEntryList();
+        ZipInputStream zip = new ZipInputStream(in);
+        byte[] buffer = new byte[1024 * 16];
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            MessageDigest digest = createDigest();
+            long size = 0;
+            int len;
+            while ((len = zip.read(buffer)) != -1) {
+                digest.update(buffer, 0, len);
+                size += len;
+            }
+            list.entries.add(new Entry(entry.getName(), 
+                    LauncherUtils.getHexString(digest.digest()), 
+                    size, entry.getMethod(), entry.getTime()));
+        }
+        return list;
+    }
+    
+    /**
+     * Create the digest that entries are hashed with.
+     * 
+     * @return the digest
+     */
+    public static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    private static byte[] parseHex(String hex) {
+        byte[] data = new byte[hex.length() / 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return data;
+    }
+    
+    /**
+     * One entry of the file.
+     */
+    public static class Entry implements Comparable<Entry> {
+        private final String name;
+        private final String hash;
+        private final long size;
+        private final int method;
+        private final long time;
+        
+        public Entry(String name, String hash, long size, int method, long time) {
+            this.name = name;
+            this.hash = hash;
+            this.size = size;
+            this.method = method;
+            this.time = time;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Get the hash of the uncompressed contents.
+         * 
+         * @return the hash, in hex
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * Get the uncompressed size.
+         * 
+         * @return the size
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Get the compression method, one of {@link ZipEntry#STORED} or
+         * {@link ZipEntry#DEFLATED}.
+         * 
+         * @return the method
+         */
+        public int getMethod() {
+            return method;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            return name.compareTo(o.name);
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.sk89q.mclauncher.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Downloads files via HTTP, keeping the connection open afterwards so that
+ * the next download from the same server can reuse it.
+ * 
+ * <p>Java's HTTP client returns a connection to its keep-alive cache once the
+ * response has been read to the end and the stream is closed, whereas
+ * disconnecting closes the socket. Reusing connections saves a TCP and TLS
+ * handshake for each of the many small files in a typical package.</p>
+ */
+public class PersistentConnectionDownloader extends URLConnectionDownloader {
+    
+    /**
+     * Construct the downloader instance.
+     * 
+     * @param url url to download
+     * @param output output stream to write to
+     */
+    public PersistentConnectionDownloader(URL url, OutputStream output) {
+        super(url, output);
+    }
+    
+    /**
+     * Construct the downloader instance to download to a file.
+     * 
+     * @param url url to download
+     * @param file file to write to
+     */
+    public PersistentConnectionDownloader(URL url, File file) {
+        super(url, file);
+    }
+
+    @Override
+    protected void releaseConnection(HttpURLConnection conn, boolean complete) {
+        // A connection with an unread response can't be reused
+        if (!complete) {
+            conn.disconnect();
+            return;
+        }
+        
+        InputStream in = null;
+        try {
+            in = conn.getInputStream();
+            byte[] buffer = new byte[1024];
+            while (in.read(buffer) >= 0) {
+            }
+        } catch (IOException e) {
+            conn.disconnect();
+        } finally {
+            LauncherUtils.close(in);
+        }
+    }
+
+}
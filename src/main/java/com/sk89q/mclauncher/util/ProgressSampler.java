@@ -0,0 +1,146 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.sk89q.mclauncher.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Samples the progress of all active downloads from a single thread and
+ * reports them together at a fixed interval.
+ * 
+ * <p>Downloaders that have a sampler set do not start their own progress
+ * thread or fire {@link com.sk89q.mclauncher.event.DownloadProgressEvent}s;
+ * they are polled by the sampler instead.</p>
+ */
+public class ProgressSampler {
+    
+    private static final Logger logger = 
+            Logger.getLogger(ProgressSampler.class.getCanonicalName());
+    
+    private final List<Downloader> active = new ArrayList<Downloader>();
+    private final Listener listener;
+    private final long interval;
+    private ScheduledExecutorService executor;
+    
+    /**
+     * Construct the sampler.
+     * 
+     * @param listener the listener to report progress to
+     * @param interval the interval between samples, in milliseconds
+     */
+    public ProgressSampler(Listener listener, long interval) {
+        this.listener = listener;
+        this.interval = interval;
+    }
+    
+    /**
+     * Start sampling.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Download Progress Sampler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sample();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Stop sampling.
+     */
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+    
+    /**
+     * Add an active download to be sampled.
+     * 
+     * @param downloader the downloader
+     */
+    public synchronized void add(Downloader downloader) {
+        active.add(downloader);
+    }
+    
+    /**
+     * Remove a download that is no longer active.
+     * 
+     * @param downloader the downloader
+     */
+    public synchronized void remove(Downloader downloader) {
+        active.remove(downloader);
+    }
+    
+    /**
+     * Take a sample and report it to the listener.
+     */
+    private void sample() {
+        List<Downloader> downloads;
+        synchronized (this) {
+            if (active.isEmpty()) {
+                return;
+            }
+            downloads = new ArrayList<Downloader>(active);
+        }
+        
+        try {
+            listener.progressSampled(downloads);
+        } catch (Throwable t) {
+            // Don't let an error stop future samples
+            logger.log(Level.WARNING, "Failed to report download progress", t);
+        }
+    }
+    
+    /**
+     * Receives progress samples.
+     */
+    public static interface Listener {
+        
+        /**
+         * Called with the downloads that were active when the sample was taken.
+         * 
+         * @param downloads the active downloads
+         */
+        void progressSampled(List<Downloader> downloads);
+        
+    }
+
+}
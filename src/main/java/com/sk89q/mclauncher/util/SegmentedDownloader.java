@@ -0,0 +1,361 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.sk89q.mclauncher.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Downloads a file over several connections at once, with each connection
+ * fetching a different byte range of the file.
+ * 
+ * <p>The file is preallocated and each segment is written at its own position.
+ * Segments are retried individually, waiting a little longer before each
+ * retry. If the server does not support ranged requests, the file is
+ * downloaded over a single connection as {@link URLConnectionDownloader}
+ * would.</p>
+ */
+public class SegmentedDownloader extends URLConnectionDownloader {
+
+    private static final Logger logger = 
+            Logger.getLogger(SegmentedDownloader.class.getCanonicalName());
+    private static final int READ_BUFFER_SIZE = 1024 * 64;
+    private static final int SEGMENT_TRIES = 3;
+    private static final long SEGMENT_RETRY_DELAY = 1000;
+    private static final Random random = new Random();
+    
+    private final int segments;
+    private final AtomicLong readLength = new AtomicLong();
+    private volatile boolean segmented = false;
+    private long length = -1;
+    private String etag;
+
+    /**
+     * Construct the downloader instance.
+     * 
+     * @param url url to download
+     * @param file file to write to
+     * @param segments number of segments to split the file into
+     */
+    public SegmentedDownloader(URL url, File file, int segments) {
+        super(url, file);
+        this.segments = Math.max(1, segments);
+    }
+
+    @Override
+    public long getTotalLength() {
+        return segmented ? length : super.getTotalLength();
+    }
+
+    @Override
+    public long getDownloadedLength() {
+        return segmented ? readLength.get() : super.getDownloadedLength();
+    }
+
+    @Override
+    public String getEtag() {
+        return segmented ? etag : super.getEtag();
+    }
+
+    @Override
+    public boolean download() throws IOException, InterruptedException {
+        segmented = false;
+        length = -1;
+        String validator = null;
+        boolean supportsRanges = false;
+        
+        // Find out the length and whether the server supports ranges
+        HttpURLConnection conn = null;
+        try {
+            conn = (HttpURLConnection) fixURL(getUrl()).openConnection();
+            conn.setRequestMethod("HEAD");
+            if (getEtagCheck() != null) {
+                conn.setRequestProperty("If-None-Match", "\"" + getEtagCheck() + "\"");
+            }
+            conn.setReadTimeout(getTimeout());
+
+            LauncherUtils.checkInterrupted();
+            
+            conn.connect();
+            
+            if (conn.getResponseCode() == 304 && getEtagCheck() != null) {
+                return false;
+            }
+            
+            if (conn.getResponseCode() == 200) {
+                supportsRanges = "bytes".equalsIgnoreCase(
+                        conn.getHeaderField("Accept-Ranges"));
+                validator = getValidator(conn);
+                etag = parseEtag(conn);
+                try {
+                    length = Long.parseLong(conn.getHeaderField("Content-Length"));
+                } catch (NumberFormatException e) {
+                }
+            }
+        } finally {
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+        
+        if (!supportsRanges || validator == null || length < segments) {
+            logger.info("Can't split " + getUrl() + "; downloading it whole");
+            return super.download();
+        }
+        
+        segmented = true;
+        readLength.set(0);
+        
+        // A partial download from before cannot be resumed in pieces
+        getValidatorFile().delete();
+
+        fireConnectionStarted();
+        fireLengthKnown();
+        
+        RandomAccessFile raf = null;
+        ExecutorService executor = Executors.newFixedThreadPool(
+                segments, new SegmentThreadFactory());
+        ProgressEventUpdater progressUpdater = new ProgressEventUpdater();
+        
+        try {
+            raf = new RandomAccessFile(getFile(), "rw");
+            raf.setLength(length);
+            FileChannel channel = raf.getChannel();
+            
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            long segmentSize = (length + segments - 1) / segments;
+            for (long start = 0; start < length; start += segmentSize) {
+                long end = Math.min(length, start + segmentSize) - 1;
+                futures.add(executor.submit(new Segment(channel, start, end, validator)));
+            }
+            
+            progressUpdater.start();
+            
+            for (Future<Object> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof InterruptedException) {
+                        throw (InterruptedException) cause;
+                    } else {
+                        throw new IOException(cause.getMessage(), cause);
+                    }
+                }
+            }
+        } finally {
+            progressUpdater.stop();
+            executor.shutdownNow();
+            LauncherUtils.close(raf);
+        }
+        
+        if (isRunning()) {
+            // The segments arrive out of order, so hash the finished file
+            updateDigest();
+            fireDownloadCompleted();
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Update the message digest with the contents of the downloaded file.
+     * 
+     * @throws IOException on I/O error
+     * @throws InterruptedException on interruption
+     */
+    private void updateDigest() throws IOException, InterruptedException {
+        if (getDigest() == null) {
+            return;
+        }
+        
+        getDigest().reset();
+        
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(getFile()));
+            byte[] data = new byte[READ_BUFFER_SIZE];
+            int len;
+            while ((len = in.read(data)) >= 0) {
+                getDigest().update(data, 0, len);
+                LauncherUtils.checkInterrupted();
+            }
+        } finally {
+            LauncherUtils.close(in);
+        }
+    }
+    
+    /**
+     * Downloads one byte range of the file.
+     */
+    private class Segment implements Callable<Object> {
+        private final FileChannel channel;
+        private final long end;
+        private final String validator;
+        private long position;
+        
+        /**
+         * Construct the segment.
+         * 
+         * @param channel channel to write to
+         * @param start offset of the first byte
+         * @param end offset of the last byte
+         * @param validator the validator of the file
+         */
+        public Segment(FileChannel channel, long start, long end, String validator) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+            this.validator = validator;
+        }
+
+        @Override
+        public Object call() throws IOException, InterruptedException {
+            IOException lastException = null;
+            
+            for (int trial = 0; trial < SEGMENT_TRIES; trial++) {
+                try {
+                    fetch();
+                    return null;
+                } catch (IOException e) {
+                    lastException = e;
+                    logger.log(Level.WARNING, "Failed to download bytes " + position + 
+                            "-" + end + " of " + getUrl() + "; retrying...", e);
+                }
+                
+                if (trial + 1 < SEGMENT_TRIES) {
+                    Thread.sleep(getRetryDelay(trial));
+                }
+            }
+            
+            throw lastException;
+        }
+        
+        /**
+         * Get how long to wait before the given retry. The delay doubles with
+         * every retry and is randomized so that the segments do not all
+         * retry at the same moment.
+         * 
+         * @param retry the number of earlier retries
+         * @return the delay in milliseconds
+         */
+        private long getRetryDelay(int retry) {
+            long delay = SEGMENT_RETRY_DELAY << retry;
+            return delay / 2 + (long) (random.nextDouble() * delay / 2);
+        }
+        
+        /**
+         * Fetch the rest of the segment, continuing from where the last
+         * attempt stopped.
+         * 
+         * @throws IOException on I/O error
+         * @throws InterruptedException on interruption
+         */
+        private void fetch() throws IOException, InterruptedException {
+            HttpURLConnection conn = null;
+            InputStream in = null;
+            
+            try {
+                conn = (HttpURLConnection) fixURL(getUrl()).openConnection();
+                conn.setRequestMethod("GET");
+                conn.setRequestProperty("Range", "bytes=" + position + "-" + end);
+                conn.setRequestProperty("If-Range", validator);
+                conn.setReadTimeout(getTimeout());
+
+                LauncherUtils.checkInterrupted();
+                
+                conn.connect();
+                
+                // A 200 here means that the file changed since we started
+                if (conn.getResponseCode() != 206 || getRangeStart(conn) != position) {
+                    throw new IOException("Did not get expected 206 code for bytes " + 
+                            position + "-" + end + ", got " + conn.getResponseCode());
+                }
+                
+                in = conn.getInputStream();
+                byte[] data = new byte[READ_BUFFER_SIZE];
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                int len;
+                
+                while (position <= end && isRunning() && (len = in.read(data, 0, 
+                        (int) Math.min(READ_BUFFER_SIZE, end - position + 1))) >= 0) {
+                    buffer.clear();
+                    buffer.limit(len);
+                    long writePosition = position;
+                    while (buffer.hasRemaining()) {
+                        writePosition += channel.write(buffer, writePosition);
+                    }
+                    position += len;
+                    readLength.addAndGet(len);
+                    
+                    throttle(len);
+                    LauncherUtils.checkInterrupted();
+                }
+                
+                if (position <= end && isRunning()) {
+                    throw new IOException("Connection closed before bytes " + 
+                            position + "-" + end + " were received");
+                }
+            } finally {
+                LauncherUtils.close(in);
+                if (conn != null) {
+                    conn.disconnect();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Creates named daemon threads for the segments of a download.
+     */
+    private static class SegmentThreadFactory implements ThreadFactory {
+        private int count = 0;
+        
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Segment Download #" + (++count));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -19,29 +19,65 @@
 package com.sk89q.mclauncher.util;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 
 
 /**
  * Used for downloading files via HTTP.
  * 
+ * <p>When downloading to a file, a partial file left behind by an earlier
+ * attempt is resumed with a ranged request if the server still has the same
+ * version of the resource.</p>
+ * 
  * @author sk89q
  */
 public class URLConnectionDownloader extends AbstractDownloader {
 
+    private static final Logger logger = 
+            Logger.getLogger(URLConnectionDownloader.class.getCanonicalName());
     private static final int READ_BUFFER_SIZE = 1024 * 8;
+    private static final int CHANNEL_BUFFER_SIZE = 1024 * 256;
+    private static final int DIGEST_CHUNK_SIZE = 1024 * 256;
+    private static final int DIGEST_QUEUE_DEPTH = 8;
+    private static final long DIGEST_PIPELINE_THRESHOLD = 1024 * 1024 * 4;
+    
+    // Direct buffers are expensive to allocate, so each thread keeps one
+    private static final ThreadLocal<ByteBuffer> channelBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(CHANNEL_BUFFER_SIZE);
+        }
+    };
+    private static final Pattern contentRangePattern =
+            Pattern.compile("^bytes (\\d+)-\\d+/(?:\\d+|\\*)$");
     
     private long length;
     private long readLength;
     private String etag;
     private HttpURLConnection conn;
+    private boolean useChannels = true;
     
     /**
      * Construct the downloader instance.
@@ -53,6 +89,36 @@ public class URLConnectionDownloader extends AbstractDownloader {
         super(url, output);
     }
     
+    /**
+     * Construct the downloader instance to download to a file.
+     * 
+     * @param url url to download
+     * @param file file to write to
+     */
+    public URLConnectionDownloader(URL url, File file) {
+        super(url, file);
+    }
+    
+    /**
+     * Get whether downloads to a file are copied through a file channel
+     * rather than an output stream.
+     * 
+     * @return true if channels are used
+     */
+    public boolean getUseChannels() {
+        return useChannels;
+    }
+
+    /**
+     * Set whether downloads to a file are copied through a file channel
+     * rather than an output stream.
+     * 
+     * @param useChannels true to use channels
+     */
+    public void setUseChannels(boolean useChannels) {
+        this.useChannels = useChannels;
+    }
+    
     public HttpURLConnection getConnection() {
         if (conn == null) {
             throw new IllegalArgumentException("Connection does not currently exist");
@@ -78,8 +144,23 @@ public class URLConnectionDownloader extends AbstractDownloader {
     @Override
     public boolean download() throws IOException, InterruptedException {
         conn = null;
-        BufferedInputStream buffInput = null;
+        boolean complete = false;
         length = -1;
+        readLength = 0;
+        
+        if (getDigest() != null) {
+            getDigest().reset();
+        }
+        
+        // See if there is a partial file that we can continue from
+        long resumeOffset = 0;
+        String resumeValidator = null;
+        if (getFile() != null && getFile().length() > 0) {
+            resumeValidator = readValidator();
+            if (resumeValidator != null) {
+                resumeOffset = getFile().length();
+            }
+        }
 
         try {
             conn = (HttpURLConnection) fixURL(getUrl()).openConnection();
@@ -87,6 +168,11 @@ public class URLConnectionDownloader extends AbstractDownloader {
             if (getEtagCheck() != null) {
                 conn.setRequestProperty("If-None-Match", "\"" + getEtagCheck() + "\"");
             }
+            if (resumeOffset > 0) {
+                // If-Range makes the server send the whole file if it has changed
+                conn.setRequestProperty("Range", "bytes=" + resumeOffset + "-");
+                conn.setRequestProperty("If-Range", resumeValidator);
+            }
             conn.setDoOutput(true);
             conn.setReadTimeout(getTimeout());
 
@@ -94,11 +180,24 @@ public class URLConnectionDownloader extends AbstractDownloader {
 
             conn.connect();
             
+            boolean resumed = false;
+            
             if (conn.getResponseCode() == 304) {
                 if (getEtagCheck() == null) {
                     throw new IOException("Got unexpected 304 code");
                 }
+                complete = true;
                 return false;
+            } else if (conn.getResponseCode() == 206 && resumeOffset > 0) {
+                if (getRangeStart(conn) != resumeOffset) {
+                    discardPartial();
+                    throw new IOException("Got unexpected range " + 
+                            conn.getHeaderField("Content-Range"));
+                }
+                resumed = true;
+            } else if (conn.getResponseCode() == 416 && resumeOffset > 0) {
+                discardPartial();
+                throw new IOException("Server could not resume the download");
             } else if (conn.getResponseCode() != 200) {
                 throw new IOException("Did not get expected 200 code, got " + 
                         conn.getResponseCode());
@@ -113,57 +212,346 @@ public class URLConnectionDownloader extends AbstractDownloader {
             if (s != null) {
                 try {
                     length = Long.parseLong(s);
+                    if (resumed) {
+                        length += resumeOffset;
+                    }
                 } catch (NumberFormatException e) {
                 }
             }
 
             // Get etag
-            etag = conn.getHeaderField("Etag");
-            if (etag != null) {
-                if (etag.matches("^W/")) {
-                    etag = null;
-                } else {
-                    etag = etag.substring(1, etag.length() - 1);
-                }
+            etag = parseEtag(conn);
+            
+            if (resumed) {
+                logger.info("Resuming " + getUrl() + " from byte " + resumeOffset);
+                primeDigest(resumeOffset);
+                readLength = resumeOffset;
+            } else if (getFile() != null) {
+                writeValidator(getValidator(conn));
             }
             
             fireLengthKnown();
             
             ProgressEventUpdater progressUpdater = new ProgressEventUpdater();
-            (new Thread(progressUpdater)).start();
+            progressUpdater.start();
+            
+            long startTime = System.nanoTime();
+            long startLength = readLength;
             
             try {
-                buffInput = new BufferedInputStream(conn.getInputStream());
-    
-                byte[] data = new byte[READ_BUFFER_SIZE];
-                int len = 0;
-                while ((len = buffInput.read(data, 0, READ_BUFFER_SIZE)) >= 0 && isRunning()) {
-                    getOutput().write(data, 0, len);
-                    if (getDigest() != null) {
-                        getDigest().update(data, 0, len);
-                    }
-                    readLength += len;
-
-                    LauncherUtils.checkInterrupted();
+                if (getFile() != null && useChannels) {
+                    copyToChannel(conn.getInputStream(), resumed);
+                } else {
+                    copyToStream(conn.getInputStream(), resumed);
                 }
             } finally {
                 progressUpdater.stop();
             }
             
             if (isRunning()) {
+                long elapsed = Math.max(1, (System.nanoTime() - startTime) / 1000000);
+                logger.fine(String.format("Downloaded %,d KB from %s in %,d ms (%,d KB/s, %s copy)",
+                        (readLength - startLength) / 1024, getUrl(), elapsed,
+                        (readLength - startLength) * 1000 / 1024 / elapsed,
+                        getFile() != null && useChannels ? "channel" : "stream"));
+                
                 fireDownloadCompleted();
             }
             
-            getOutput().close();
-            conn.disconnect();
+            // The file is complete, so there is nothing left to resume
+            if (isRunning() && getFile() != null) {
+                getValidatorFile().delete();
+            }
+            
+            complete = isRunning();
         } finally {
-            conn.disconnect();
-            buffInput = null;
+            if (conn != null) {
+                releaseConnection(conn, complete);
+            }
             conn = null;
         }
         
         return true;
     }
+    
+    /**
+     * Copy the response to the output stream through a heap buffer.
+     * 
+     * @param in the response stream
+     * @param append true to append to the file being downloaded to
+     * @throws IOException on I/O error
+     * @throws InterruptedException on interruption
+     */
+    private void copyToStream(InputStream in, boolean append) 
+            throws IOException, InterruptedException {
+        OutputStream out = openOutput(append);
+        DigestPipeline hasher = startHashing();
+        
+        try {
+            BufferedInputStream buffInput = new BufferedInputStream(in);
+            
+            byte[] data = new byte[READ_BUFFER_SIZE];
+            int len = 0;
+            while ((len = buffInput.read(data, 0, READ_BUFFER_SIZE)) >= 0 && isRunning()) {
+                out.write(data, 0, len);
+                if (hasher != null) {
+                    hasher.update(data, 0, len);
+                } else if (getDigest() != null) {
+                    getDigest().update(data, 0, len);
+                }
+                readLength += len;
+
+                throttle(len);
+                LauncherUtils.checkInterrupted();
+            }
+            
+            out.close();
+            
+            if (hasher != null) {
+                hasher.finish();
+            }
+        } finally {
+            if (hasher != null) {
+                hasher.abort();
+            }
+            if (getFile() != null) {
+                LauncherUtils.close(out);
+            }
+        }
+    }
+    
+    /**
+     * Copy the response straight into the file being downloaded to through
+     * one large direct buffer, which is also what the digest is updated from.
+     * 
+     * @param in the response stream
+     * @param append true to append to the file
+     * @throws IOException on I/O error
+     * @throws InterruptedException on interruption
+     */
+    private void copyToChannel(InputStream in, boolean append) 
+            throws IOException, InterruptedException {
+        ReadableByteChannel source = Channels.newChannel(in);
+        FileOutputStream out = new FileOutputStream(getFile(), append);
+        ByteBuffer buffer = channelBuffer.get();
+        buffer.clear();
+        DigestPipeline hasher = startHashing();
+        
+        try {
+            FileChannel target = out.getChannel();
+            boolean eof = false;
+            
+            while (!eof && isRunning()) {
+                // Fill the buffer so that each write to disk is large
+                while (buffer.hasRemaining()) {
+                    if (source.read(buffer) < 0) {
+                        eof = true;
+                        break;
+                    }
+                }
+                
+                buffer.flip();
+                int len = buffer.remaining();
+                if (hasher != null) {
+                    hasher.update(buffer);
+                } else if (getDigest() != null) {
+                    getDigest().update(buffer);
+                    buffer.rewind();
+                }
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                buffer.clear();
+                readLength += len;
+
+                throttle(len);
+                LauncherUtils.checkInterrupted();
+            }
+            
+            if (hasher != null) {
+                hasher.finish();
+            }
+        } finally {
+            if (hasher != null) {
+                hasher.abort();
+            }
+            LauncherUtils.close(out);
+        }
+    }
+    
+    /**
+     * Start hashing the downloaded data on a separate thread, so that hashing
+     * does not hold up reading from the connection.
+     * 
+     * <p>Small downloads, and those of unknown length, are hashed on this
+     * thread, straight from the buffer they are read into, as they would not
+     * gain enough to make up for copying the data to another thread.</p>
+     * 
+     * @return the pipeline, or null to hash on this thread or not at all
+     */
+    private DigestPipeline startHashing() {
+        if (getDigest() == null || !DigestPipeline.isWorthwhile() || 
+                length - readLength < DIGEST_PIPELINE_THRESHOLD) {
+            return null;
+        }
+        
+        DigestPipeline hasher = new DigestPipeline(
+                getDigest(), DIGEST_CHUNK_SIZE, DIGEST_QUEUE_DEPTH);
+        hasher.start();
+        return hasher;
+    }
+    
+    /**
+     * Release a connection once the download is over.
+     * 
+     * @param conn the connection
+     * @param complete true if the whole response was read
+     */
+    protected void releaseConnection(HttpURLConnection conn, boolean complete) {
+        conn.disconnect();
+    }
+    
+    /**
+     * Get the file that stores the validator of a partial download.
+     * 
+     * @return the file
+     */
+    protected File getValidatorFile() {
+        return new File(getFile().getPath() + ".validator");
+    }
+    
+    /**
+     * Read the validator stored for a partial download.
+     * 
+     * @return the validator, or null if there is none
+     */
+    private String readValidator() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(getValidatorFile()));
+            return LauncherUtils.nullEmpty(reader.readLine());
+        } catch (IOException e) {
+            return null;
+        } finally {
+            LauncherUtils.close(reader);
+        }
+    }
+    
+    /**
+     * Store the validator for the download that is starting, so that it can
+     * be resumed later if it is interrupted.
+     * 
+     * @param validator the validator, or null if the download cannot be resumed
+     * @throws IOException on I/O error
+     */
+    private void writeValidator(String validator) throws IOException {
+        File validatorFile = getValidatorFile();
+        if (validator == null) {
+            validatorFile.delete();
+            return;
+        }
+        
+        Writer writer = null;
+        try {
+            writer = new FileWriter(validatorFile);
+            writer.write(validator);
+        } finally {
+            LauncherUtils.close(writer);
+        }
+    }
+    
+    /**
+     * Delete a partial download that cannot be resumed.
+     */
+    private void discardPartial() {
+        getFile().delete();
+        getValidatorFile().delete();
+    }
+    
+    /**
+     * Update the message digest with the bytes that were already downloaded.
+     * 
+     * @param offset the number of bytes already downloaded
+     * @throws IOException on I/O error
+     */
+    private void primeDigest(long offset) throws IOException {
+        if (getDigest() == null) {
+            return;
+        }
+        
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(getFile()));
+            byte[] data = new byte[READ_BUFFER_SIZE];
+            long remaining = offset;
+            int len;
+            while (remaining > 0 && (len = in.read(data, 0, 
+                    (int) Math.min(READ_BUFFER_SIZE, remaining))) >= 0) {
+                getDigest().update(data, 0, len);
+                remaining -= len;
+            }
+            if (remaining > 0) {
+                throw new IOException("Partial download is shorter than expected");
+            }
+        } finally {
+            LauncherUtils.close(in);
+        }
+    }
+    
+    /**
+     * Get the entity tag reported by the server, without quotes.
+     * 
+     * @param conn the connection
+     * @return the entity tag, or null if there is none
+     */
+    protected static String parseEtag(HttpURLConnection conn) {
+        String etag = conn.getHeaderField("Etag");
+        if (etag != null) {
+            if (etag.matches("^W/")) {
+                etag = null;
+            } else {
+                etag = etag.substring(1, etag.length() - 1);
+            }
+        }
+        return etag;
+    }
+    
+    /**
+     * Get the validator that identifies the version of the resource being
+     * downloaded. Weak entity tags cannot be used to resume a download.
+     * 
+     * @param conn the connection
+     * @return the strong entity tag or last modified date, or null
+     */
+    protected static String getValidator(HttpURLConnection conn) {
+        String etag = conn.getHeaderField("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return conn.getHeaderField("Last-Modified");
+    }
+    
+    /**
+     * Get the offset of the first byte in a partial response.
+     * 
+     * @param conn the connection
+     * @return the offset, or -1 if it is not known
+     */
+    protected static long getRangeStart(HttpURLConnection conn) {
+        String range = conn.getHeaderField("Content-Range");
+        if (range == null) {
+            return -1;
+        }
+        Matcher matcher = contentRangePattern.matcher(range.trim());
+        if (!matcher.matches()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(matcher.group(1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 
     /**
      * URL may contain spaces and other nasties that will cause a failure.
@@ -171,7 +559,7 @@ public class URLConnectionDownloader extends AbstractDownloader {
      * @param existing the existing URL to transform
      * @return the new URL, or old one if there was a failure
      */
-    private static URL fixURL(URL existing) {
+    protected static URL fixURL(URL existing) {
         try {
             URL url = new URL(existing.toString());
             URI uri = new URI(
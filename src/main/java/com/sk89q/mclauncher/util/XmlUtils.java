@@ -24,6 +24,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
@@ -54,9 +58,31 @@ import org.xml.sax.SAXException;
  */
 public final class XmlUtils {
     
+    private static final Map<List<Class<?>>, JAXBContext> contexts = 
+            new ConcurrentHashMap<List<Class<?>>, JAXBContext>();
+    
     private XmlUtils() {
     }
     
+    /**
+     * Get the JAXB context for the given classes. Creating a context is slow,
+     * so one is only created the first time that it is needed.
+     * 
+     * @param cls the classes
+     * @return the context
+     * @throws JAXBException thrown on an error
+     */
+    public static JAXBContext getContext(Class<?>... cls) throws JAXBException {
+        List<Class<?>> key = Arrays.asList(cls);
+        JAXBContext context = contexts.get(key);
+        if (context == null) {
+            // Two threads may both create it, which does no harm
+            context = JAXBContext.newInstance(cls);
+            contexts.put(key, context);
+        }
+        return context;
+    }
+    
     /**
      * Parse XML using JAXB and a model class.
      * 
@@ -67,10 +93,8 @@ public final class XmlUtils {
      */
     @SuppressWarnings("unchecked")
     public static <T> T parseJaxb(Class<T> cls, InputStream in) throws JAXBException {
-        JAXBContext context = JAXBContext.newInstance(cls);
-        Marshaller m = context.createMarshaller();
-        m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
-        Unmarshaller um = context.createUnmarshaller();
+        // Unmarshallers are cheap, but not thread safe
+        Unmarshaller um = getContext(cls).createUnmarshaller();
         return (T) um.unmarshal(in);
     }
 
@@ -84,8 +108,7 @@ public final class XmlUtils {
      */
     public static void writeJaxb(Object obj, OutputStream out, Class<?>... cls)
             throws JAXBException {
-        JAXBContext context = JAXBContext.newInstance(cls);
-        Marshaller m = context.createMarshaller();
+        Marshaller m = getContext(cls).createMarshaller();
         m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
         m.marshal(obj, out);
     }
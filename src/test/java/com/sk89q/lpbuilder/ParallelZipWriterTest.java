@@ -0,0 +1,248 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.lpbuilder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sk89q.mclauncher.util.LauncherUtils;
+
+public class ParallelZipWriterTest {
+    
+    private final Random random = new Random(42);
+    private final FileSignatureBuilder builder = new FileSignatureBuilder();
+    private ExecutorService executor;
+    private File dir;
+    private File sourceDir;
+    private List<RelativizedFile> files;
+    
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newFixedThreadPool(4);
+        dir = File.createTempFile("parallelzip", "");
+        dir.delete();
+        dir.mkdir();
+        sourceDir = new File(dir, "files");
+        sourceDir.mkdir();
+        
+        files = new ArrayList<RelativizedFile>();
+        addFile("empty.txt", new byte[0]);
+        addFile("small.txt", "Hello, world!".getBytes("UTF-8"));
+        addFile("dir/random.bin", randomBytes(100000));
+        addFile("dir/été/😀.txt", repeat("compressible ", 10000));
+        // Larger than what is kept in memory, in both forms
+        addFile("large-random.bin", randomBytes(3 * 1024 * 1024));
+        addFile("large-text.txt", repeat("some text that repeats ", 200000));
+        for (int i = 0; i < 50; i++) {
+            addFile("many/" + i + ".txt", repeat("file " + i + " ", i * 100));
+        }
+    }
+    
+    @After
+    public void tearDown() throws InterruptedException {
+        executor.shutdownNow();
+        LauncherUtils.cleanDir(dir);
+        dir.delete();
+    }
+    
+    private byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+    
+    private static byte[] repeat(String s, int count) throws IOException {
+        StringBuilder builder = new StringBuilder(s.length() * count);
+        for (int i = 0; i < count; i++) {
+            builder.append(s);
+        }
+        return builder.toString().getBytes("UTF-8");
+    }
+    
+    private void addFile(String path, byte[] data) throws IOException {
+        File file = new File(sourceDir, path.replace('/', File.separatorChar));
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        files.add(new RelativizedFile(path, file));
+    }
+    
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        return out.toByteArray();
+    }
+    
+    private static byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return readFully(in);
+        } finally {
+            in.close();
+        }
+    }
+    
+    private File write(ExecutorService executor, int window) 
+            throws IOException, InterruptedException {
+        File target = File.createTempFile("archive", ".zip", dir);
+        new ParallelZipWriter(executor, window, builder).write(files, target);
+        return target;
+    }
+    
+    @Test
+    public void testCentralDirectory() throws IOException, InterruptedException {
+        File target = write(executor, 16);
+        
+        ZipFile zip = new ZipFile(target);
+        try {
+            assertEquals(files.size(), zip.size());
+            for (RelativizedFile file : files) {
+                ZipEntry entry = zip.getEntry(file.getPath());
+                assertEquals(file.getFile().length(), entry.getSize());
+                assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+                assertArrayEquals(file.getPath(), readFile(file.getFile()), 
+                        readFully(zip.getInputStream(entry)));
+            }
+        } finally {
+            zip.close();
+        }
+    }
+    
+    @Test
+    public void testLocalHeaders() throws IOException, InterruptedException {
+        File target = write(executor, 16);
+        
+        // Entries are read in order from their local headers, and their
+        // checksums are checked
+        ZipInputStream zip = new ZipInputStream(new FileInputStream(target));
+        try {
+            for (RelativizedFile file : files) {
+                ZipEntry entry = zip.getNextEntry();
+                assertEquals(file.getPath(), entry.getName());
+                assertArrayEquals(file.getPath(), readFile(file.getFile()), readFully(zip));
+            }
+            assertEquals(null, zip.getNextEntry());
+        } finally {
+            zip.close();
+        }
+    }
+    
+    @Test
+    public void testDigests() throws IOException, InterruptedException {
+        File target = File.createTempFile("archive", ".zip", dir);
+        List<byte[]> digests = new ParallelZipWriter(executor, 16, builder).write(files, target);
+        
+        assertEquals(files.size(), digests.size());
+        for (int i = 0; i < files.size(); i++) {
+            assertArrayEquals(builder.fromFile(files.get(i).getFile()), digests.get(i));
+        }
+    }
+    
+    @Test
+    public void testSameOutputOnAnyThreads() throws IOException, InterruptedException {
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        try {
+            byte[] serial = readFile(write(single, 1));
+            assertArrayEquals(serial, readFile(write(executor, 3)));
+            assertArrayEquals(serial, readFile(write(executor, 64)));
+        } finally {
+            single.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void testSameVersionAsSerialWriter() throws IOException, InterruptedException {
+        ZipBucket parallel = new ZipBucket();
+        ZipBucket serial = new ZipBucket();
+        for (RelativizedFile file : files) {
+            parallel.queue(file.getPath(), file.getFile());
+            serial.queue(file.getPath(), file.getFile());
+        }
+        
+        parallel.writeContents(builder, sourceDir, 
+                File.createTempFile("parallel", ".zip", dir), executor, 16);
+        serial.writeContents(builder, sourceDir, File.createTempFile("serial", ".zip", dir));
+        
+        assertEquals(serial.getVersion(), parallel.getVersion());
+    }
+    
+    @Test
+    public void testNoFilesLeftBehind() throws IOException, InterruptedException {
+        File target = write(executor, 16);
+        
+        // Large files are spilled to temporary files next to the target
+        assertEquals(new HashSet<String>(Arrays.asList("files", target.getName())), 
+                new HashSet<String>(Arrays.asList(dir.list())));
+    }
+    
+    @Test
+    public void testEmptyArchive() throws IOException, InterruptedException {
+        files.clear();
+        File target = write(executor, 16);
+        
+        ZipInputStream zip = new ZipInputStream(new FileInputStream(target));
+        try {
+            assertEquals(null, zip.getNextEntry());
+        } finally {
+            zip.close();
+        }
+    }
+    
+    @Test
+    public void testCanWrite() {
+        assertTrue(ParallelZipWriter.canWrite(files));
+        
+        List<RelativizedFile> many = Collections.nCopies(0xFFFF, 
+                new RelativizedFile("a", new File(dir, "missing")));
+        assertFalse(ParallelZipWriter.canWrite(many));
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.xml.bind.JAXBException;
+
+import org.junit.Test;
+
+import com.sk89q.mclauncher.model.PackageFile;
+import com.sk89q.mclauncher.model.PackageManifest;
+import com.sk89q.mclauncher.util.XmlUtils;
+
+public class BinaryManifestTest {
+    
+    private static final String MANIFEST = 
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<package version=\"1.2\">\n" +
+            "  <component id=\"optifine\" default=\"true\">\n" +
+            "    <title>OptiFine</title>\n" +
+            "    <description>Makes the game run faster.</description>\n" +
+            "  </component>\n" +
+            "  <component id=\"core\" required=\"true\">\n" +
+            "    <title>Core</title>\n" +
+            "  </component>\n" +
+            "  <message id=\"terms\" version=\"2\">\n" +
+            "    <title>Terms</title>\n" +
+            "    <phase>pre-download</phase>\n" +
+            "    <agreement>true</agreement>\n" +
+            "    <type>html</type>\n" +
+            "    <content>&lt;b&gt;Agree&lt;/b&gt; to the terms</content>\n" +
+            "  </message>\n" +
+            "  <filegroup source=\"files/\" dest=\"bin/\" verify=\"sha256\">\n" +
+            "    <mirror>http://mirror.example.com/files/</mirror>\n" +
+            "    <mirror>http://other.example.com/files/</mirror>\n" +
+            "    <patch file=\"minecraft.jar\" from=\"00ff10\" size=\"1234\" " +
+                    "hash=\"abcdef\">patches/minecraft.jar.patch</patch>\n" +
+            "    <entries file=\"mods.zip\" from=\"ABCDEF\" size=\"99\">" +
+                    "entries/mods.zip.entries</entries>\n" +
+            "    <file size=\"5000000000\" version=\"0123456789abcdef\" " +
+                    "hash=\"fedcba9876543210\">minecraft.jar</file>\n" +
+            "    <file platform=\"windows\" version=\"1.2.3\">natives/lwjgl.dll</file>\n" +
+            "    <file overwrite=\"never\" component=\"optifine\" version=\"abc\">" +
+                    "config/optifine.txt</file>\n" +
+            "    <archive size=\"10\" version=\"\">mods/été.zip</archive>\n" +
+            "  </filegroup>\n" +
+            "  <filegroup source=\"lib/\" dest=\"lib/\" algorithm=\"SHA-1\">\n" +
+            "    <file>lib/a.jar</file>\n" +
+            "  </filegroup>\n" +
+            "</package>\n";
+    
+    private static PackageManifest parse(String xml) throws JAXBException, IOException {
+        return XmlUtils.parseJaxb(PackageManifest.class, 
+                new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+    
+    private static String toXml(PackageManifest manifest) throws JAXBException, IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlUtils.writeJaxb(manifest, out, PackageManifest.class);
+        return out.toString("UTF-8");
+    }
+    
+    private static byte[] write(PackageManifest manifest) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryManifest.write(manifest, out);
+        return out.toByteArray();
+    }
+    
+    private static PackageManifest read(byte[] data) throws IOException {
+        return BinaryManifest.read(new ByteArrayInputStream(data));
+    }
+    
+    @Test
+    public void testRoundTrip() throws JAXBException, IOException {
+        PackageManifest manifest = parse(MANIFEST);
+        PackageManifest copy = read(write(manifest));
+        
+        assertEquals(toXml(manifest), toXml(copy));
+        
+        PackageFile file = copy.getFileGroups().get(0).getFiles().get(0);
+        assertEquals(5000000000L, file.getSize());
+        assertEquals("0123456789abcdef", file.getVersion());
+    }
+    
+    @Test
+    public void testDigestsAreKeptAsWritten() throws JAXBException, IOException {
+        PackageManifest copy = read(write(parse(MANIFEST)));
+        
+        assertEquals("00ff10", copy.getFileGroups().get(0).getPatches().get(0).getFrom());
+        assertEquals("ABCDEF", copy.getFileGroups().get(0).getEntryDiffs().get(0).getFrom());
+        assertEquals("1.2.3", copy.getFileGroups().get(0).getFiles().get(1).getVersion());
+        assertEquals("abc", copy.getFileGroups().get(0).getFiles().get(2).getVersion());
+        assertEquals("", copy.getFileGroups().get(0).getFiles().get(3).getVersion());
+        assertNull(copy.getFileGroups().get(1).getFiles().get(0).getVersion());
+    }
+    
+    @Test
+    public void testEmptyManifest() throws JAXBException, IOException {
+        PackageManifest manifest = parse("<package version=\"1.0\"/>");
+        assertEquals(toXml(manifest), toXml(read(write(manifest))));
+    }
+    
+    @Test
+    public void testOutputIsStable() throws JAXBException, IOException {
+        byte[] data = write(parse(MANIFEST));
+        assertTrue(Arrays.equals(data, write(read(data))));
+    }
+    
+    @Test
+    public void testTruncatedManifestIsRejected() throws JAXBException, IOException {
+        byte[] data = write(parse(MANIFEST));
+        
+        for (int length = 0; length < data.length; length++) {
+            try {
+                read(Arrays.copyOf(data, length));
+                fail("Read a manifest truncated to " + length + " of " + data.length + " bytes");
+            } catch (IOException e) {
+            }
+        }
+    }
+    
+    @Test(expected = IOException.class)
+    public void testUnknownVersionIsRejected() throws JAXBException, IOException {
+        byte[] data = write(parse(MANIFEST));
+        data[4] = 99;
+        read(data);
+    }
+    
+    @Test(expected = IOException.class)
+    public void testXmlIsRejected() throws IOException {
+        read(MANIFEST.getBytes("UTF-8"));
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLStreamException;
+
+import org.junit.Test;
+
+import com.sk89q.mclauncher.model.FileGroup;
+import com.sk89q.mclauncher.model.PackageManifest;
+import com.sk89q.mclauncher.util.XmlUtils;
+
+public class PackageManifestReaderTest {
+    
+    private static final String MANIFEST = 
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<package version=\"1.2\">\n" +
+            "  <component id=\"optifine\" default=\"true\">\n" +
+            "    <title>OptiFine</title>\n" +
+            "    <description>Makes the game run faster.</description>\n" +
+            "  </component>\n" +
+            "  <component id=\"core\" required=\"true\">\n" +
+            "    <title>Core</title>\n" +
+            "  </component>\n" +
+            "  <message id=\"terms\" version=\"2\">\n" +
+            "    <title>Terms</title>\n" +
+            "    <phase>pre-download</phase>\n" +
+            "    <agreement>true</agreement>\n" +
+            "    <type>html</type>\n" +
+            "    <content>&lt;b&gt;Agree&lt;/b&gt; to the terms</content>\n" +
+            "  </message>\n" +
+            "  <filegroup source=\"files/\" dest=\"bin/\" verify=\"sha256\">\n" +
+            "    <mirror>http://mirror.example.com/files/</mirror>\n" +
+            "    <mirror>http://other.example.com/files/</mirror>\n" +
+            "    <patch file=\"minecraft.jar\" from=\"00ff10\" size=\"1234\" " +
+                    "hash=\"abcdef\">patches/minecraft.jar.patch</patch>\n" +
+            "    <entries file=\"mods.zip\" from=\"ABCDEF\" size=\"99\">" +
+                    "entries/mods.zip.entries</entries>\n" +
+            "    <file size=\"5000000000\" version=\"0123456789abcdef\" " +
+                    "hash=\"fedcba9876543210\">minecraft.jar</file>\n" +
+            "    <file platform=\"windows\" version=\"1.2.3\">natives/lwjgl.dll</file>\n" +
+            "    <file overwrite=\"never\" component=\"optifine\" version=\"abc\">" +
+                    "config/optifine.txt</file>\n" +
+            "    <archive size=\"10\" version=\"\">mods/été.zip</archive>\n" +
+            "  </filegroup>\n" +
+            "  <filegroup source=\"lib/\" dest=\"lib/\" algorithm=\"SHA-1\">\n" +
+            "    <file>lib/a.jar</file>\n" +
+            "  </filegroup>\n" +
+            "</package>\n";
+    
+    private static PackageManifest parseJaxb(String xml) throws JAXBException, IOException {
+        return XmlUtils.parseJaxb(PackageManifest.class, 
+                new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+    
+    private static PackageManifestReader reader(String xml) 
+            throws XMLStreamException, IOException {
+        return new PackageManifestReader(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+    
+    private static String toXml(PackageManifest manifest) throws JAXBException, IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XmlUtils.writeJaxb(manifest, out, PackageManifest.class);
+        return out.toString("UTF-8");
+    }
+    
+    private static void assertSameAsJaxb(String xml) 
+            throws JAXBException, XMLStreamException, IOException {
+        assertEquals(toXml(parseJaxb(xml)), toXml(reader(xml).read()));
+    }
+    
+    @Test
+    public void testMatchesJaxb() throws JAXBException, XMLStreamException, IOException {
+        assertSameAsJaxb(MANIFEST);
+    }
+    
+    @Test
+    public void testEmptyManifest() throws JAXBException, XMLStreamException, IOException {
+        assertSameAsJaxb("<package version=\"1.0\"/>");
+    }
+    
+    @Test
+    public void testUnknownElementsAreSkipped() 
+            throws JAXBException, XMLStreamException, IOException {
+        assertSameAsJaxb(
+                "<package version=\"1.0\">\n" +
+                "  <extra><file>ignored.jar</file></extra>\n" +
+                "  <filegroup source=\"a/\" dest=\"b/\">\n" +
+                "    <note>Not part of the model</note>\n" +
+                "    <file unknown=\"x\">a.jar</file>\n" +
+                "  </filegroup>\n" +
+                "</package>");
+    }
+    
+    @Test
+    public void testUnknownEnumValuesAreLeftUnset() 
+            throws JAXBException, XMLStreamException, IOException {
+        assertSameAsJaxb(
+                "<package version=\"1.0\">\n" +
+                "  <component id=\"a\"><title>A</title></component>\n" +
+                "  <filegroup source=\"a/\" dest=\"b/\" verify=\"crc\">\n" +
+                "    <file overwrite=\"sometimes\" platform=\"beos\">a.jar</file>\n" +
+                "  </filegroup>\n" +
+                "</package>");
+    }
+    
+    @Test
+    public void testGroupsAreReadOneAtATime() 
+            throws JAXBException, XMLStreamException, IOException {
+        PackageManifestReader reader = reader(MANIFEST);
+        
+        FileGroup first = reader.nextGroup();
+        assertEquals("files/", first.getSource());
+        assertEquals(4, first.getFiles().size());
+        assertEquals(2, reader.getManifest().getComponents().size());
+        assertTrue(reader.getManifest().getFileGroups().isEmpty());
+        
+        FileGroup second = reader.nextGroup();
+        assertEquals("lib/", second.getSource());
+        assertNull(reader.nextGroup());
+        assertNull(reader.nextGroup());
+    }
+    
+    @Test(expected = XMLStreamException.class)
+    public void testOtherRootIsRejected() throws XMLStreamException, IOException {
+        reader("<manifest version=\"1.0\"/>").read();
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sk89q.mclauncher.util.LauncherUtils;
+
+public class UninstallLogTest {
+    
+    private File file;
+    
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("uninstall", ".dat");
+    }
+    
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+    
+    private static UninstallLog createLog() {
+        UninstallLog log = new UninstallLog();
+        log.add("bin/minecraft.jar", "bin/minecraft.jar");
+        log.add("mods.zip", "mods/a.jar");
+        log.add("mods.zip", "mods/b.jar");
+        log.add("mods.zip", "mods/subdir/c.jar");
+        log.add("extra.zip", "mods/a.jar");
+        log.add("extra.zip", "resources/été.ogg");
+        log.add("extra.zip", "resources/😀.png");
+        log.add("extra.zip", "resources/😁.png");
+        return log;
+    }
+    
+    private static UninstallLog read(File file) throws IOException {
+        UninstallLog log = new UninstallLog();
+        log.read(file);
+        return log;
+    }
+    
+    private static void assertSameEntries(UninstallLog expected, UninstallLog actual) {
+        assertArrayEquals(expected.getSortedEntries(), actual.getSortedEntries());
+        assertEquals(expected.getEntrySet().size(), actual.getEntrySet().size());
+        for (Entry<String, Set<String>> entry : expected.getEntrySet()) {
+            assertEquals(entry.getValue(), actual.getGroup(entry.getKey()));
+        }
+    }
+    
+    @Test
+    public void testRoundTrip() throws IOException {
+        UninstallLog log = createLog();
+        log.write(file);
+        
+        UninstallLog copy = read(file);
+        assertSameEntries(log, copy);
+        assertTrue(copy.has("resources/😁.png"));
+        assertTrue(copy.hasGroup("bin/minecraft.jar"));
+        assertFalse(copy.has("mods.zip"));
+    }
+    
+    @Test
+    public void testEmptyRoundTrip() throws IOException {
+        new UninstallLog().write(file);
+        
+        UninstallLog copy = read(file);
+        assertEquals(0, copy.getSortedEntries().length);
+        assertTrue(copy.getEntrySet().isEmpty());
+    }
+    
+    @Test
+    public void testWritesCompactForm() throws IOException {
+        createLog().write(file);
+        
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            assertEquals(0x534B554C, in.readInt());
+            assertEquals(1, in.readInt());
+        } finally {
+            LauncherUtils.close(in);
+        }
+    }
+    
+    @Test
+    public void testReadsTextLog() throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file));
+        try {
+            writer.write("mods.zip:mods/a.jar\n");
+            writer.write("mods.zip:mods/b.jar\n");
+            writer.write("\n");
+            writer.write("not an entry\n");
+            writer.write("  bin/minecraft.jar:bin/minecraft.jar  \n");
+        } finally {
+            writer.close();
+        }
+        
+        UninstallLog log = read(file);
+        assertEquals(new HashSet<String>(Arrays.asList("mods/a.jar", "mods/b.jar")), 
+                log.getGroup("mods.zip"));
+        assertArrayEquals(new String[] { "bin/minecraft.jar", "mods/a.jar", "mods/b.jar" }, 
+                log.getSortedEntries());
+        
+        // A migrated log is saved in the compact form
+        log.write(file);
+        assertSameEntries(log, read(file));
+    }
+    
+    @Test
+    public void testTruncatedLogIsRejected() throws IOException {
+        createLog().write(file);
+        long length = file.length();
+        
+        // Anything shorter than the header is not recognized as a compact log
+        for (long size = length - 1; size >= 8; size--) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(size);
+            } finally {
+                raf.close();
+            }
+            
+            try {
+                read(file);
+                fail("Read a log truncated to " + size + " of " + length + " bytes");
+            } catch (IOException e) {
+            }
+        }
+    }
+    
+    @Test(expected = IOException.class)
+    public void testUnknownVersionIsRejected() throws IOException {
+        createLog().write(file);
+        
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(4);
+            raf.writeInt(99);
+        } finally {
+            raf.close();
+        }
+        
+        read(file);
+    }
+    
+    @Test
+    public void testDifference() {
+        UninstallLog oldLog = createLog();
+        UninstallLog newLog = new UninstallLog();
+        newLog.add("mods.zip", "mods/a.jar");
+        newLog.add("mods.zip", "mods/new.jar");
+        newLog.add("bin/minecraft.jar", "bin/minecraft.jar");
+        
+        assertEquals(Arrays.asList("mods/b.jar", "mods/subdir/c.jar", 
+                "resources/été.ogg", "resources/😀.png", 
+                "resources/😁.png"), oldLog.difference(newLog));
+    }
+    
+    @Test
+    public void testRelativePaths() throws IOException {
+        File base = new File(file.getParentFile(), "install").getAbsoluteFile();
+        UninstallLog log = new UninstallLog();
+        log.setBaseDir(base);
+        log.add(new File(base, "mods.zip"), new File(base, "mods/../mods/./a.jar"));
+        
+        assertTrue(log.has("mods/a.jar"));
+        assertTrue(log.has(new File(base, "mods/a.jar")));
+        assertEquals(new HashSet<String>(Arrays.asList("mods/a.jar")), log.getGroup("mods.zip"));
+    }
+
+}
@@ -0,0 +1,297 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.update;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sk89q.mclauncher.model.Component;
+import com.sk89q.mclauncher.util.LauncherUtils;
+
+public class UpdateCacheTest {
+    
+    private File dir;
+    private File file;
+    
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("updatecache", "");
+        dir.delete();
+        dir.mkdir();
+        file = new File(dir, "update_cache.dat");
+    }
+    
+    @After
+    public void tearDown() throws InterruptedException {
+        LauncherUtils.cleanDir(dir);
+        dir.delete();
+    }
+    
+    private static Component createComponent(String id, boolean selected) {
+        Component component = new Component();
+        component.setId(id);
+        component.setSelected(selected);
+        return component;
+    }
+    
+    private static boolean isSelected(UpdateCache cache, String id) {
+        Component component = createComponent(id, false);
+        cache.recallSelection(component);
+        return component.isSelected();
+    }
+    
+    private static void setLength(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+    
+    private UpdateCache createCache() throws IOException {
+        UpdateCache cache = new UpdateCache(file);
+        cache.setLastUpdateId("1.0");
+        cache.setFileVersion("minecraft.jar", "abc");
+        cache.setFileVersion("mods/été.zip", "def");
+        cache.setInstalledHash("bin/minecraft.jar", "0123");
+        cache.storeSelection(createComponent("optional", true));
+        MirrorStats stats = cache.getMirrorStats("http://mirror.example.com/");
+        stats.setLatency(50);
+        stats.setThroughput(1024);
+        stats.setFailures(2);
+        cache.write();
+        return cache;
+    }
+    
+    private static void assertCreated(UpdateCache cache) {
+        assertEquals("1.0", cache.getLastUpdateId());
+        assertEquals("abc", cache.getFileVersion("minecraft.jar"));
+        assertEquals("def", cache.getFileVersion("mods/été.zip"));
+        assertEquals("0123", cache.getInstalledHash("bin/minecraft.jar"));
+        assertTrue(isSelected(cache, "optional"));
+        MirrorStats stats = cache.getMirrorStats("http://mirror.example.com/");
+        assertEquals(50, stats.getLatency(), 0);
+        assertEquals(1024, stats.getThroughput(), 0);
+        assertEquals(2, stats.getFailures());
+    }
+    
+    @Test
+    public void testRoundTrip() throws IOException {
+        createCache();
+        assertCreated(new UpdateCache(file));
+    }
+    
+    @Test
+    public void testChangesAreAppended() throws IOException {
+        UpdateCache cache = createCache();
+        long length = file.length();
+        
+        cache.touch("minecraft.jar");
+        cache.setFileVersion("mods/été.zip", "fed");
+        cache.setInstalledHash("bin/minecraft.jar", null);
+        cache.setLastUpdateId(null);
+        cache.write();
+        assertTrue(file.length() > length);
+        
+        UpdateCache copy = new UpdateCache(file);
+        assertNull(copy.getLastUpdateId());
+        assertEquals("abc", copy.getFileVersion("minecraft.jar"));
+        assertEquals("fed", copy.getFileVersion("mods/été.zip"));
+        assertNull(copy.getInstalledHash("bin/minecraft.jar"));
+    }
+    
+    @Test
+    public void testUntouchedVersionsAreForgotten() throws IOException {
+        createCache();
+        UpdateCache cache = new UpdateCache(file);
+        cache.touch("minecraft.jar");
+        cache.write();
+        
+        UpdateCache copy = new UpdateCache(file);
+        assertEquals("abc", copy.getFileVersion("minecraft.jar"));
+        assertNull(copy.getFileVersion("mods/été.zip"));
+    }
+    
+    @Test
+    public void testUnsavedChangesAreDiscarded() throws IOException {
+        UpdateCache cache = createCache();
+        long length = file.length();
+        
+        cache.touch("minecraft.jar");
+        cache.touch("mods/été.zip");
+        cache.setLastUpdateId("2.0");
+        cache.setFileVersion("minecraft.jar", "xyz");
+        cache.write();
+        
+        // Every cut in the last save leaves the cache as it was before
+        for (long size = file.length() - 1; size >= length; size--) {
+            setLength(file, size);
+            assertCreated(new UpdateCache(file));
+        }
+    }
+    
+    @Test
+    public void testDamagedTailIsDiscarded() throws IOException {
+        createCache();
+        
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length());
+            raf.writeInt(4);
+            raf.writeInt(12345);
+            raf.write(new byte[] { 2, 0, 0, 0 });
+        } finally {
+            raf.close();
+        }
+        
+        assertCreated(new UpdateCache(file));
+    }
+    
+    @Test
+    public void testSavingAfterDamagedTail() throws IOException {
+        UpdateCache cache = createCache();
+        long length = file.length();
+        
+        cache.touch("minecraft.jar");
+        cache.touch("mods/été.zip");
+        cache.setLastUpdateId("2.0");
+        cache.write();
+        setLength(file, file.length() - 1);
+        
+        // The cut off save is dropped before the next save is appended
+        cache = new UpdateCache(file);
+        cache.touch("minecraft.jar");
+        cache.touch("mods/été.zip");
+        cache.setFileVersion("minecraft.jar", "xyz");
+        cache.write();
+        assertTrue(file.length() > length);
+        
+        UpdateCache copy = new UpdateCache(file);
+        assertEquals("1.0", copy.getLastUpdateId());
+        assertEquals("xyz", copy.getFileVersion("minecraft.jar"));
+        assertEquals("def", copy.getFileVersion("mods/été.zip"));
+    }
+    
+    @Test
+    public void testInterruptedCompaction() throws IOException {
+        createCache();
+        
+        // The old journal was removed, but the new one was not renamed yet
+        File compactFile = new File(file.getPath() + ".new");
+        assertTrue(file.renameTo(compactFile));
+        
+        assertCreated(new UpdateCache(file));
+        assertTrue(file.exists());
+        assertFalse(compactFile.exists());
+    }
+    
+    @Test
+    public void testUnfinishedCompactionIsIgnored() throws IOException {
+        createCache();
+        
+        // The new journal was still being written when it was cut off
+        File compactFile = new File(file.getPath() + ".new");
+        FileOutputStream out = new FileOutputStream(compactFile);
+        try {
+            out.write(new byte[] { 0x53, 0x4B });
+        } finally {
+            out.close();
+        }
+        
+        assertCreated(new UpdateCache(file));
+        assertFalse(compactFile.exists());
+    }
+    
+    @Test
+    public void testJournalIsCompacted() throws IOException {
+        UpdateCache cache = createCache();
+        long length = file.length();
+        
+        for (int i = 0; i < 1000; i++) {
+            cache.touch("minecraft.jar");
+            cache.touch("mods/été.zip");
+            cache.setLastUpdateId("1." + i);
+            cache.write();
+        }
+        
+        assertTrue(file.length() < length * 100);
+        
+        UpdateCache copy = new UpdateCache(file);
+        assertEquals("1.999", copy.getLastUpdateId());
+        assertEquals("abc", copy.getFileVersion("minecraft.jar"));
+    }
+    
+    @Test
+    public void testRetainInstalledHashes() throws IOException {
+        UpdateCache cache = createCache();
+        cache.touch("minecraft.jar");
+        cache.touch("mods/été.zip");
+        cache.setInstalledHash("mods/a.jar", "4567");
+        cache.retainInstalledHashes(new HashSet<String>(Arrays.asList("mods/a.jar")));
+        cache.write();
+        
+        UpdateCache copy = new UpdateCache(file);
+        assertNull(copy.getInstalledHash("bin/minecraft.jar"));
+        assertEquals("4567", copy.getInstalledHash("mods/a.jar"));
+    }
+    
+    @Test
+    public void testReadsXmlCache() throws IOException {
+        Writer writer = new OutputStreamWriter(
+                new FileOutputStream(new File(dir, "update_cache.xml")), "UTF-8");
+        try {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            writer.write("<cache>\n");
+            writer.write("  <current>1.0</current>\n");
+            writer.write("  <entry hash=\"abc\">minecraft.jar</entry>\n");
+            writer.write("  <entry hash=\"def\">mods/été.zip</entry>\n");
+            writer.write("  <component id=\"optional\" selected=\"true\">optional</component>\n");
+            writer.write("  <installed path=\"bin/minecraft.jar\" hash=\"0123\"/>\n");
+            writer.write("  <mirror url=\"http://mirror.example.com/\" latency=\"50\" " +
+                    "throughput=\"1024\" failures=\"2\"/>\n");
+            writer.write("</cache>\n");
+        } finally {
+            writer.close();
+        }
+        
+        assertCreated(new UpdateCache(file));
+        
+        // The cache was moved to the journal
+        assertTrue(file.exists());
+        new File(dir, "update_cache.xml").delete();
+        assertCreated(new UpdateCache(file));
+    }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.mclauncher.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BinaryDeltaTest {
+    
+    private final Random random = new Random(42);
+    private File oldFile;
+    private File newFile;
+    
+    @Before
+    public void setUp() throws IOException {
+        oldFile = File.createTempFile("delta", ".old");
+        newFile = File.createTempFile("delta", ".new");
+    }
+    
+    @After
+    public void tearDown() {
+        oldFile.delete();
+        newFile.delete();
+    }
+    
+    private byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+    
+    private static void write(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+    
+    private static byte[] concat(byte[] ... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+    
+    private byte[] createPatch(byte[] oldData, byte[] newData) throws IOException {
+        write(oldFile, oldData);
+        write(newFile, newData);
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        BinaryDelta.create(oldFile, newFile, patch);
+        return patch.toByteArray();
+    }
+    
+    private byte[] applyPatch(byte[] patch) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryDelta.apply(oldFile, new ByteArrayInputStream(patch), out);
+        return out.toByteArray();
+    }
+    
+    private byte[] roundTrip(byte[] oldData, byte[] newData) throws IOException {
+        byte[] patch = createPatch(oldData, newData);
+        assertArrayEquals(newData, applyPatch(patch));
+        return patch;
+    }
+    
+    @Test
+    public void testIdentical() throws IOException {
+        byte[] data = randomBytes(100000);
+        byte[] patch = roundTrip(data, data);
+        assertTrue(patch.length < 100);
+    }
+    
+    @Test
+    public void testEmptyFiles() throws IOException {
+        roundTrip(new byte[0], new byte[0]);
+        roundTrip(new byte[0], randomBytes(1000));
+        roundTrip(randomBytes(1000), new byte[0]);
+    }
+    
+    @Test
+    public void testSmallerThanBlock() throws IOException {
+        roundTrip(randomBytes(5), randomBytes(7));
+        roundTrip(new byte[] { 1, 2, 3 }, new byte[] { 1, 2, 3, 4 });
+    }
+    
+    @Test
+    public void testUnrelatedFiles() throws IOException {
+        roundTrip(randomBytes(50000), randomBytes(60000));
+    }
+    
+    @Test
+    public void testEditedFile() throws IOException {
+        byte[] a = randomBytes(40000);
+        byte[] b = randomBytes(30000);
+        byte[] c = randomBytes(50000);
+        byte[] oldData = concat(a, b, c);
+        
+        // Moved, inserted, removed and changed bytes
+        byte[] changed = Arrays.copyOf(b, b.length);
+        changed[100] ^= 1;
+        changed[20000] ^= 1;
+        byte[] newData = concat(c, randomBytes(500), changed, 
+                Arrays.copyOfRange(a, 1000, 30000));
+        
+        byte[] patch = roundTrip(oldData, newData);
+        assertTrue("The patch has " + patch.length + " bytes", patch.length < 2000);
+    }
+    
+    @Test
+    public void testRepeatedBlocks() throws IOException {
+        byte[] block = randomBytes(32);
+        byte[] oldData = concat(block, block, block, block, randomBytes(100), block);
+        byte[] newData = concat(block, randomBytes(3), block, block, block, block, block);
+        roundTrip(oldData, newData);
+    }
+    
+    @Test
+    public void testWrongFileIsRejected() throws IOException {
+        byte[] oldData = randomBytes(10000);
+        byte[] patch = createPatch(oldData, randomBytes(10000));
+        write(oldFile, Arrays.copyOf(oldData, 9999));
+        
+        try {
+            applyPatch(patch);
+            fail("Applied a patch to the wrong file");
+        } catch (IOException e) {
+        }
+    }
+    
+    @Test
+    public void testTruncatedPatchIsRejected() throws IOException {
+        byte[] oldData = randomBytes(20000);
+        byte[] newData = concat(Arrays.copyOfRange(oldData, 5000, 20000), randomBytes(3000));
+        byte[] patch = createPatch(oldData, newData);
+        
+        for (int length = 0; length < patch.length; length++) {
+            try {
+                applyPatch(Arrays.copyOf(patch, length));
+                fail("Applied a patch truncated to " + length + " of " + patch.length + " bytes");
+            } catch (IOException e) {
+            }
+        }
+    }
+    
+    @Test(expected = IOException.class)
+    public void testNotAPatch() throws IOException {
+        write(oldFile, randomBytes(100));
+        applyPatch(randomBytes(200));
+    }
+
+}